@@ -0,0 +1,97 @@
+package db.database;
+
+import db.TSDBConfiguration;
+import db.TSDBConfiguration.WALProperties.Backend;
+import db.TSDBConfiguration.WALProperties.Durability;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+// Configurations, temp directories and series shared by the benchmarks
+public final class BenchmarkSupport {
+    // 2023-11-14, far enough from now that no retention applies unless a benchmark asks for it
+    public static final long BASE_TIMESTAMP = 1_700_000_000_000L;
+    public static final long RETENTION_MS = 365L * 24 * 3600 * 1000 * 100;
+
+    private BenchmarkSupport() {
+    }
+
+    public static TSDBConfiguration configuration(Path directory, int shards, Durability durability, Backend backend) {
+        return configuration(directory, shards, durability, backend, 64L << 20);
+    }
+
+    // Snapshots and WAL segments of rotationByteSize below the directory, full snapshots only
+    public static TSDBConfiguration configuration(Path directory, int shards, Durability durability, Backend backend, long rotationByteSize) {
+        var snapshot = new TSDBConfiguration.SnapshotProperties(directory.resolve("snapshot").toString(), 0, 0, 0);
+        var wal = new TSDBConfiguration.WALProperties(directory.resolve("wal").toString(), rotationByteSize, durability, 1000, 65536, 60_000, backend, 1);
+        return new TSDBConfiguration(snapshot, wal, RETENTION_MS, shards,
+            new TSDBConfiguration.RetentionProperties(1000, 10000),
+            new TSDBConfiguration.RollupProperties(5000, 10000),
+            new TSDBConfiguration.QueryCacheProperties(0),
+            new TSDBConfiguration.IngestProperties(1L << 20, 1, 1),
+            new TSDBConfiguration.ColdStorageProperties(null, 0, 60000, 1L << 30),
+            null);
+    }
+
+    // In-memory only, no WAL
+    public static TSDBConfiguration configuration() {
+        return configuration(Path.of(System.getProperty("java.io.tmpdir")), 1, Durability.NONE, Backend.STREAM);
+    }
+
+    // The WAL of the configuration, one per shard, written below its temp directory
+    public static ShardedWriteAheadLog writeAheadLog(TSDBConfiguration configuration) {
+        return new db.DatabaseConfiguration().writeAheadLog(configuration, new TSDBMetrics());
+    }
+
+    // The WAL of a single shard, written to the configured path
+    public static WriteAheadLogImpl shardLog(TSDBConfiguration configuration) {
+        return new WriteAheadLogImpl(configuration.walProperties(), new TSDBMetrics());
+    }
+
+    /**
+     * Labels of the index-th series: a host label unique to the series, a region
+     * label shared by a tenth of them and a service label shared by a hundredth.
+     */
+    public static Map<String, String> labels(int index) {
+        Map<String, String> labels = new TreeMap<>();
+        labels.put("host", "host-" + index);
+        labels.put("region", "region-" + index % 10);
+        labels.put("service", "service-" + index % 100);
+        return labels;
+    }
+
+    public static Path createTempDirectory() {
+        try {
+            return Files.createTempDirectory("tsdb-benchmark");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static void deleteRecursively(Path directory) {
+        if (directory == null || !Files.exists(directory)) return;
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static void close(Closeable writeAheadLog) {
+        try {
+            writeAheadLog.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to close the WAL", e);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package db.database;
+
+import db.model.DataPoint;
+import db.model.MetricLabel;
+import db.model.Resolution;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * InMemoryTSDB.query by labels at growing cardinality. One metric has cardinality series of ten
+ * samples each, see BenchmarkSupport.labels: a region matches a tenth of them, a region and a
+ * service a hundredth, and an exact label set a single one.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LabelQueryBenchmark {
+    private static final int SAMPLES = 10;
+
+    @Param({"100", "10000", "100000"})
+    public int cardinality;
+
+    private InMemoryTSDB tsdb;
+    private Resolution resolution;
+    private MetricLabel exact;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        var configuration = BenchmarkSupport.configuration();
+        var resolutions = new Resolutions(configuration);
+        tsdb = new InMemoryTSDB(resolutions, new EvictOldDataPolicy(), null);
+        resolution = resolutions.get("1s");
+
+        for (int i = 0; i < cardinality; i++) {
+            var series = tsdb.getOrCreateSeries("http_requests", BenchmarkSupport.labels(i));
+            for (int sample = 0; sample < SAMPLES; sample++) {
+                tsdb.putInternal(series, BenchmarkSupport.BASE_TIMESTAMP + sample * 1000L, i + sample);
+            }
+        }
+        exact = new MetricLabel(BenchmarkSupport.labels(cardinality / 2));
+    }
+
+    private long end() {
+        return BenchmarkSupport.BASE_TIMESTAMP + SAMPLES * 1000L;
+    }
+
+    @Benchmark
+    public Map<MetricLabel, List<DataPoint>> oneLabel() {
+        return tsdb.query("http_requests", Map.of("region", "region-3"), BenchmarkSupport.BASE_TIMESTAMP, end(), resolution);
+    }
+
+    @Benchmark
+    public Map<MetricLabel, List<DataPoint>> twoLabels() {
+        return tsdb.query("http_requests", Map.of("region", "region-3", "service", "service-13"),
+            BenchmarkSupport.BASE_TIMESTAMP, end(), resolution);
+    }
+
+    // Matching only, without reading the points of the matches
+    @Benchmark
+    public List<Series> matchOneLabel() {
+        return tsdb.matchSeries("http_requests", Map.of("region", "region-3"));
+    }
+
+    @Benchmark
+    public List<DataPoint> exactSeries() {
+        return tsdb.query("http_requests", exact, BenchmarkSupport.BASE_TIMESTAMP, end(), resolution);
+    }
+}
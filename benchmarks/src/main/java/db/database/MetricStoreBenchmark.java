@@ -0,0 +1,97 @@
+package db.database;
+
+import db.model.DataPoint;
+import db.model.Resolution;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single series: appending samples in timestamp order, and reading a range back at each
+ * resolution from a store holding a day of samples one second apart, rolled up.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricStoreBenchmark {
+    private static final int DAY_SECONDS = 24 * 3600;
+
+    private static double[] randomWalk(int length) {
+        double[] values = new double[length];
+        double value = 100;
+        for (int i = 0; i < length; i++) {
+            value += Math.round((Math.random() - 0.5) * 100) / 10.0;
+            values[i] = value;
+        }
+        return values;
+    }
+
+    @State(Scope.Thread)
+    public static class WriteState {
+        private final Resolutions resolutions = new Resolutions(BenchmarkSupport.configuration());
+        private final double[] values = randomWalk(4096);
+        private MetricStore store;
+        private long nextTimestamp;
+        private int nextValue;
+
+        // A fresh store per iteration, so the series does not grow across the whole run
+        @Setup(Level.Iteration)
+        public void setUp() {
+            store = new MetricStore(resolutions.all());
+            nextTimestamp = BenchmarkSupport.BASE_TIMESTAMP;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ReadState {
+        // Range read, ending at the latest sample
+        @Param({"60", "1440"})
+        public int rangeMinutes;
+
+        @Param({"1s", "1m", "1h"})
+        public String resolution;
+
+        private Resolution queried;
+        private MetricStore store;
+        private long end;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            var resolutions = new Resolutions(BenchmarkSupport.configuration());
+            queried = resolutions.get(resolution);
+
+            double[] values = randomWalk(4096);
+            store = new MetricStore(resolutions.all());
+            for (int second = 0; second < DAY_SECONDS; second++) {
+                store.addDataPoint(BenchmarkSupport.BASE_TIMESTAMP + second * 1000L, values[second % values.length]);
+            }
+            end = BenchmarkSupport.BASE_TIMESTAMP + DAY_SECONDS * 1000L;
+            store.rollUp(end);
+        }
+    }
+
+    @Benchmark
+    public void addDataPoint(WriteState state) {
+        state.store.addDataPoint(state.nextTimestamp, state.values[state.nextValue++ & (state.values.length - 1)]);
+        state.nextTimestamp += 1000;
+    }
+
+    @Benchmark
+    public List<DataPoint> query(ReadState state) {
+        return state.store.query(state.end - state.rangeMinutes * 60_000L, state.end, state.queried);
+    }
+}
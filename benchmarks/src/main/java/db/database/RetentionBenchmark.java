@@ -0,0 +1,77 @@
+package db.database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pass of the retention sweeper over the database: InMemoryTSDB.sweepRetention in ticks of
+ * sweep-batch-size series, with series holding two hours of samples a minute apart. The clock
+ * advances by a minute per pass, so every pass drops the oldest minute of every series. Once the
+ * two hours are dropped the series are refilled, outside the measurement. Scores are per pass.
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RetentionBenchmark {
+    private static final int BATCH_SIZE = 10_000;
+    private static final int MINUTES = 120;
+
+    @Param({"10000", "100000"})
+    public int seriesCount;
+
+    private InMemoryTSDB tsdb;
+    private Series[] series;
+    private int passes;
+    private long start = BenchmarkSupport.BASE_TIMESTAMP;
+    private long now;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        var configuration = BenchmarkSupport.configuration();
+        tsdb = new InMemoryTSDB(new Resolutions(configuration), new EvictOldDataPolicy(), null);
+        series = new Series[seriesCount];
+        for (int i = 0; i < seriesCount; i++) {
+            series[i] = tsdb.getOrCreateSeries("cpu_usage", BenchmarkSupport.labels(i));
+        }
+        passes = MINUTES;
+    }
+
+    // A pass takes milliseconds, checking per invocation costs nothing next to it
+    @Setup(Level.Invocation)
+    public void refillWhenDrained() {
+        if (passes < MINUTES) return;
+
+        for (Series s : series) {
+            for (int minute = 0; minute < MINUTES; minute++) {
+                tsdb.putInternal(s, start + minute * 60_000L, minute);
+            }
+        }
+        passes = 0;
+        now = start + BenchmarkSupport.RETENTION_MS + 60_000;
+        start += MINUTES * 60_000L;
+    }
+
+    @Benchmark
+    public void sweep() {
+        for (int cursor = 0; cursor < seriesCount; ) {
+            cursor = tsdb.sweepRetention(cursor, BATCH_SIZE, now);
+        }
+        now += 60_000;
+        passes++;
+    }
+}
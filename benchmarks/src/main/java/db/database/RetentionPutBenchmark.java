@@ -0,0 +1,86 @@
+package db.database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What retention costs a put: a sample written to each series in turn, with retention applied on
+ * every put as it used to be, with the parallelStream over the resolutions it used to fork or
+ * the resolutions looped on the calling thread, or left to the sweeper, which runs off the ingest
+ * path and so costs a put nothing. The WAL is the same in every mode and is left out: samples go
+ * through putInternal. RetentionBenchmark times the sweeper itself.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RetentionPutBenchmark {
+    public enum Retention {
+        PER_PUT_PARALLEL, PER_PUT, SWEEPER
+    }
+
+    // The policy applied on every put before the sweeper: a fork-join task per resolution
+    private static final RetentionPolicy PARALLEL_POLICY = (metricStore, now) -> metricStore.getResolutions()
+        .parallelStream()
+        .forEach(resolution -> {
+            long cutoff = MetricUtils.normalizeTimestamp(now - resolution.retentionMs(), resolution);
+            if (cutoff > 0) {
+                metricStore.dropBefore(resolution, cutoff);
+            }
+        });
+
+    @Param({"1000", "100000"})
+    public int seriesCount;
+
+    @Param({"PER_PUT_PARALLEL", "PER_PUT", "SWEEPER"})
+    public Retention retention;
+
+    private InMemoryTSDB tsdb;
+    private RetentionPolicy policy;
+    private Series[] series;
+    private int next;
+    private long timestamp;
+
+    // A fresh database per iteration, so the series hold a bounded number of samples
+    @Setup(Level.Iteration)
+    public void setUp() {
+        var configuration = BenchmarkSupport.configuration();
+        policy = retention == Retention.PER_PUT_PARALLEL ? PARALLEL_POLICY : new EvictOldDataPolicy();
+        tsdb = new InMemoryTSDB(new Resolutions(configuration), policy, null);
+        series = new Series[seriesCount];
+        for (int i = 0; i < seriesCount; i++) {
+            series[i] = tsdb.getOrCreateSeries("cpu_usage", BenchmarkSupport.labels(i));
+        }
+        next = 0;
+        timestamp = BenchmarkSupport.BASE_TIMESTAMP;
+    }
+
+    @Benchmark
+    public void put() {
+        int index = next;
+        next = index + 1 == seriesCount ? 0 : index + 1;
+        if (next == 0) {
+            timestamp += 1000;
+        }
+
+        var target = series[index];
+        tsdb.putInternal(target, timestamp, index);
+        if (retention != Retention.SWEEPER) {
+            policy.applyRetention(target.getStore(), timestamp);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package db.database;
+
+import db.TSDBConfiguration;
+import db.TSDBConfiguration.WALProperties.Backend;
+import db.TSDBConfiguration.WALProperties.Durability;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SnapshotManager.save and loadBySnapshot of a database whose series hold ten minutes of samples
+ * one second apart. Snapshots are full ones, max-deltas is 0.
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+    private static final int SAMPLES = 600;
+
+    @Param({"1000", "10000"})
+    public int seriesCount;
+
+    private Path directory;
+    private Resolutions resolutions;
+    private SnapshotManager snapshotManager;
+    private InMemoryTSDB tsdb;
+    private File snapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkSupport.createTempDirectory();
+        TSDBConfiguration configuration = BenchmarkSupport.configuration(directory, 1, Durability.NONE, Backend.STREAM);
+        resolutions = new Resolutions(configuration);
+        snapshotManager = new SnapshotManager(configuration, resolutions, new TSDBMetrics());
+
+        tsdb = new InMemoryTSDB(resolutions, new EvictOldDataPolicy(), null);
+        for (int i = 0; i < seriesCount; i++) {
+            var series = tsdb.getOrCreateSeries("cpu_usage", BenchmarkSupport.labels(i));
+            for (int sample = 0; sample < SAMPLES; sample++) {
+                tsdb.putInternal(series, BenchmarkSupport.BASE_TIMESTAMP + sample * 1000L, (i + sample) % 100);
+            }
+        }
+        tsdb.rollUp(BenchmarkSupport.BASE_TIMESTAMP + SAMPLES * 1000L);
+
+        snapshotManager.save(tsdb);
+        snapshot = FileUtils.findLatestSnapshot(directory.resolve("snapshot").toFile());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+
+    // Writes a new snapshot and deletes the previous one
+    @Benchmark
+    public void save() throws IOException {
+        snapshotManager.save(tsdb);
+    }
+
+    @Benchmark
+    public InMemoryTSDB load() throws IOException {
+        var loaded = new InMemoryTSDB(resolutions, new EvictOldDataPolicy(), null);
+        snapshotManager.loadBySnapshot(loaded, 0, snapshot);
+        return loaded;
+    }
+}
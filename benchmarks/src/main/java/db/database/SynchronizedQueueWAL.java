@@ -0,0 +1,131 @@
+package db.database;
+
+import db.TSDBConfiguration;
+import db.TSDBConfiguration.WALProperties.Durability;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The WAL append path before the ring buffer, kept as the baseline of WALAppendBenchmark: a
+ * synchronized append feeding an unbounded LinkedBlockingQueue, drained in groups by one writer
+ * thread. It writes the same segments as WriteAheadLogImpl, so only the hand-off differs.
+ */
+final class SynchronizedQueueWAL implements Closeable {
+    private static final int MAX_BATCH_SIZE = 4096;
+
+    private record PendingAppend(Series series, long timestamp, double value, long sequence) {
+    }
+
+    private final TSDBConfiguration.WALProperties walProperties;
+    private final BlockingQueue<PendingAppend> writeQueue = new LinkedBlockingQueue<>();
+    private final Object durabilityMonitor = new Object();
+    private final AtomicLong appendSequence = new AtomicLong();
+    private volatile long writtenSequence;
+    private volatile long durableSequence;
+    private long lastSyncMillis = System.currentTimeMillis();
+
+    private final Thread writerThread;
+    private volatile boolean running = true;
+    private WALSegmentWriter logWriter;
+    private int logFileCount;
+
+    SynchronizedQueueWAL(TSDBConfiguration.WALProperties walProperties) throws IOException {
+        this.walProperties = walProperties;
+        Path.of(walProperties.path()).toFile().mkdirs();
+        this.logWriter = newSegment(1);
+        this.writerThread = new Thread(this::processQueue, "WAL-Writer-Baseline");
+        writerThread.start();
+    }
+
+    private WALSegmentWriter newSegment(long firstSequence) throws IOException {
+        var path = Path.of(walProperties.path(), "metrics_" + ++logFileCount + ".log");
+        return switch (walProperties.backend()) {
+            case STREAM -> new StreamWALSegmentWriter(path, walProperties.rotationByteSize(), firstSequence);
+            case MMAP -> new MappedWALSegmentWriter(path, MappedWALSegmentWriter.segmentCapacity(walProperties.rotationByteSize()), firstSequence);
+        };
+    }
+
+    synchronized long append(Series series, long timestamp, double value) {
+        if (!running) return 0;
+
+        long sequence = appendSequence.incrementAndGet();
+        writeQueue.add(new PendingAppend(series, timestamp, value, sequence));
+        return sequence;
+    }
+
+    void awaitDurability() throws InterruptedException {
+        if (walProperties.durability() != Durability.EVERY_BATCH) return;
+
+        long target = appendSequence.get();
+        synchronized (durabilityMonitor) {
+            while (durableSequence < target && running) {
+                durabilityMonitor.wait(100);
+            }
+        }
+    }
+
+    private void processQueue() {
+        List<PendingAppend> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            while (running || !writeQueue.isEmpty()) {
+                PendingAppend first = writeQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    writeQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    for (var entry : batch) {
+                        logWriter.append(entry.series(), entry.timestamp(), entry.value());
+                        if (logWriter.isFull()) {
+                            logWriter.close();
+                            logWriter = newSegment(logWriter.nextSequence());
+                        }
+                    }
+                    logWriter.flush();
+                    writtenSequence = batch.get(batch.size() - 1).sequence();
+                    batch.clear();
+                }
+                syncIfDue();
+            }
+        } catch (IOException | InterruptedException e) {
+            throw new IllegalStateException("Baseline WAL writer failed", e);
+        }
+    }
+
+    private void syncIfDue() throws IOException {
+        long written = writtenSequence;
+        if (written == durableSequence) return;
+
+        long now = System.currentTimeMillis();
+        boolean sync = switch (walProperties.durability()) {
+            case NONE -> false;
+            case INTERVAL_MS -> now - lastSyncMillis >= walProperties.fsyncIntervalMs();
+            case EVERY_BATCH -> true;
+        };
+        if (!sync) return;
+
+        logWriter.force();
+        lastSyncMillis = now;
+        synchronized (durabilityMonitor) {
+            durableSequence = written;
+            durabilityMonitor.notifyAll();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logWriter.close();
+    }
+}
@@ -0,0 +1,117 @@
+package db.database;
+
+import db.TSDBConfiguration.WALProperties.Backend;
+import db.TSDBConfiguration.WALProperties.Durability;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * InMemoryTSDB.put, WAL included, from 1 to 64 producer threads writing to shared series, over 1, 2, 4
+ * and 8 shards. Each producer walks the series with its own stride, so producers collide on
+ * series and on the WAL the way concurrent clients do. Every iteration starts from an empty
+ * database and WAL in a temp directory.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TSDBPutBenchmark {
+    @Param({"10000"})
+    public int seriesCount;
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    @Param({"NONE"})
+    public Durability durability;
+
+    private Path directory;
+    private ShardedWriteAheadLog writeAheadLog;
+    private InMemoryTSDB tsdb;
+    private Series[] series;
+
+    @State(Scope.Thread)
+    public static class Producer {
+        private int next;
+        private int stride;
+        private long timestamp = BenchmarkSupport.BASE_TIMESTAMP;
+
+        @Setup
+        public void setUp(ThreadParams threads) {
+            next = threads.getThreadIndex();
+            stride = 2 * threads.getThreadIndex() + 1;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        directory = BenchmarkSupport.createTempDirectory();
+        var configuration = BenchmarkSupport.configuration(directory, shards, durability, Backend.STREAM);
+        writeAheadLog = BenchmarkSupport.writeAheadLog(configuration);
+        tsdb = new InMemoryTSDB(new Resolutions(configuration), new EvictOldDataPolicy(), writeAheadLog);
+
+        series = new Series[seriesCount];
+        for (int i = 0; i < seriesCount; i++) {
+            series[i] = tsdb.getOrCreateSeries("cpu_usage", BenchmarkSupport.labels(i));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        BenchmarkSupport.close(writeAheadLog);
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+
+    private void put(Producer producer) {
+        int index = producer.next;
+        producer.next = (index + producer.stride) % seriesCount;
+        if (producer.next < producer.stride) {
+            // A pass over the series is done, the next one writes the following second
+            producer.timestamp += 1000;
+        }
+        tsdb.put(series[index], producer.timestamp, index);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void put1Producer(Producer producer) {
+        put(producer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void put4Producers(Producer producer) {
+        put(producer);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void put16Producers(Producer producer) {
+        put(producer);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void put64Producers(Producer producer) {
+        put(producer);
+    }
+}
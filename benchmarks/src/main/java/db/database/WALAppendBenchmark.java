@@ -0,0 +1,145 @@
+package db.database;
+
+import db.TSDBConfiguration.WALProperties.Backend;
+import db.TSDBConfiguration.WALProperties.Durability;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WriteAheadLogImpl.append per durability mode and backend, from 1 to 64 producer threads, against
+ * the synchronized LinkedBlockingQueue it replaced (SynchronizedQueueWAL). A producer that outruns
+ * the writer thread waits for room in the ring buffer, so sustained append throughput is what the
+ * writer gets to disk; the baseline queue grows instead. appendDurable acknowledges like a put in
+ * every-batch mode: a batch of appends, then waiting until they are durable.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WALAppendBenchmark {
+    private static final int BATCH_SIZE = 100;
+    private static final int SERIES_COUNT = 1000;
+
+    public enum Implementation {
+        RING_BUFFER, SYNCHRONIZED_QUEUE
+    }
+
+    @Param({"NONE", "INTERVAL_MS", "EVERY_BATCH"})
+    public Durability durability;
+
+    @Param({"STREAM", "MMAP"})
+    public Backend backend;
+
+    @Param({"RING_BUFFER", "SYNCHRONIZED_QUEUE"})
+    public Implementation implementation;
+
+    private Path directory;
+    private WriteAheadLogImpl writeAheadLog;
+    private SynchronizedQueueWAL baseline;
+    private Series[] series;
+
+    // Each producer walks the series from its own offset, a second further per pass
+    @State(Scope.Thread)
+    public static class Producer {
+        private int next;
+        private long timestamp = BenchmarkSupport.BASE_TIMESTAMP;
+
+        @Setup
+        public void setUp(ThreadParams threads) {
+            next = threads.getThreadIndex() % SERIES_COUNT;
+        }
+    }
+
+    // A fresh WAL per iteration, so the segments written stay bounded
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        directory = BenchmarkSupport.createTempDirectory();
+        var configuration = BenchmarkSupport.configuration(directory, 1, durability, backend);
+        switch (implementation) {
+            case RING_BUFFER -> writeAheadLog = BenchmarkSupport.shardLog(configuration);
+            case SYNCHRONIZED_QUEUE -> baseline = new SynchronizedQueueWAL(configuration.walProperties());
+        }
+
+        var registry = new SeriesRegistry(new Resolutions(configuration).all());
+        series = new Series[SERIES_COUNT];
+        for (int i = 0; i < SERIES_COUNT; i++) {
+            series[i] = registry.getOrCreate("cpu_usage", BenchmarkSupport.labels(i));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        BenchmarkSupport.close(implementation == Implementation.RING_BUFFER ? writeAheadLog : baseline);
+        writeAheadLog = null;
+        baseline = null;
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+
+    private long appendNext(Producer producer) {
+        int index = producer.next;
+        producer.next = index + 1 == SERIES_COUNT ? 0 : index + 1;
+        if (producer.next == 0) {
+            producer.timestamp += 1000;
+        }
+        return implementation == Implementation.RING_BUFFER
+            ? writeAheadLog.append(series[index], producer.timestamp, index)
+            : baseline.append(series[index], producer.timestamp, index);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long append1Producer(Producer producer) {
+        return appendNext(producer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long append4Producers(Producer producer) {
+        return appendNext(producer);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long append16Producers(Producer producer) {
+        return appendNext(producer);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long append64Producers(Producer producer) {
+        return appendNext(producer);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void appendDurable(Producer producer) throws InterruptedException {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            appendNext(producer);
+        }
+        if (implementation == Implementation.RING_BUFFER) {
+            writeAheadLog.awaitDurability();
+        } else {
+            baseline.awaitDurability();
+        }
+    }
+}
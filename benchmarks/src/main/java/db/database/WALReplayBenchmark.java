@@ -0,0 +1,107 @@
+package db.database;
+
+import db.TSDBConfiguration.WALProperties.Backend;
+import db.TSDBConfiguration.WALProperties.Durability;
+import db.model.WALEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replaying a WAL of a million entries over 10k series: decoding its segments with
+ * WriteAheadLogIterator, and replaying them into an empty database sequentially or with
+ * ParallelWALReplayer. Scores are per entry.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WALReplayBenchmark {
+    private static final int ENTRIES = 1_000_000;
+    private static final int SERIES_COUNT = 10_000;
+
+    @Param({"STREAM", "MMAP"})
+    public Backend backend;
+
+    private Path directory;
+    private Resolutions resolutions;
+    private File[] segments;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        directory = BenchmarkSupport.createTempDirectory();
+        // Small segments, so there are a few of them to replay in parallel
+        var configuration = BenchmarkSupport.configuration(directory, 1, Durability.NONE, backend, 1L << 20);
+        resolutions = new Resolutions(configuration);
+        var writeAheadLog = BenchmarkSupport.shardLog(configuration);
+
+        var registry = new SeriesRegistry(resolutions.all());
+        Series[] series = new Series[SERIES_COUNT];
+        for (int i = 0; i < SERIES_COUNT; i++) {
+            series[i] = registry.getOrCreate("cpu_usage", BenchmarkSupport.labels(i));
+        }
+        for (int i = 0; i < ENTRIES; i++) {
+            writeAheadLog.append(series[i % SERIES_COUNT], BenchmarkSupport.BASE_TIMESTAMP + (i / SERIES_COUNT) * 1000L, i);
+        }
+        BenchmarkSupport.close(writeAheadLog);
+
+        segments = writeAheadLog.segmentsFrom(WALCheckpoint.NONE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public void decode(Blackhole blackhole) {
+        var iterator = new WriteAheadLogIterator(segments, WALCheckpoint.NONE);
+        while (iterator.hasNext()) {
+            WALEntry entry = iterator.next();
+            blackhole.consume(entry);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Replay {
+        // Threads of the ParallelWALReplayer, 1 replays on the benchmark thread
+        @Param({"1", "4"})
+        public int parallelism;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public InMemoryTSDB replay(Replay replay) throws IOException {
+        var tsdb = new InMemoryTSDB(resolutions, new EvictOldDataPolicy(), null);
+        if (replay.parallelism > 1) {
+            new ParallelWALReplayer(tsdb, replay.parallelism).replay(segments, WALCheckpoint.NONE);
+        } else {
+            var iterator = new WriteAheadLogIterator(segments, WALCheckpoint.NONE);
+            while (iterator.hasNext()) {
+                var entry = iterator.next();
+                tsdb.putInternal(entry.metricName(), entry.label(), entry.timestamp(), entry.value());
+            }
+        }
+        return tsdb;
+    }
+}
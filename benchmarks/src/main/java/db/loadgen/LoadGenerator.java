@@ -0,0 +1,163 @@
+package db.loadgen;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load against a running database: puts to /metrics/put and queries to /metrics/query,
+ * sent at a fixed rate whatever the server's latency, see {@link LoadOptions#USAGE} for the options.
+ * Each request has a due time on the schedule and its latency is measured from it, so a stalled
+ * server is charged for every request that should have been sent meanwhile, the correction for
+ * coordinated omission. When max-in-flight requests are outstanding sending waits, and the wait
+ * is charged the same way.
+ */
+public class LoadGenerator {
+    private static final long PROGRESS_INTERVAL_SECONDS = 5;
+
+    private final LoadOptions options;
+    private final Workload workload;
+    private final HttpClient client;
+    private final ExecutorService clientExecutor;
+    private final Semaphore inFlight;
+    private final AtomicLong sent = new AtomicLong();
+
+    private final RequestStats puts = new RequestStats("put");
+    private final RequestStats queries = new RequestStats("query");
+    // Requests due during the warmup, never printed
+    private final RequestStats warmupPuts = new RequestStats("put");
+    private final RequestStats warmupQueries = new RequestStats("query");
+
+    LoadGenerator(LoadOptions options) {
+        this.options = options;
+        this.workload = new Workload(options);
+        this.clientExecutor = Executors.newFixedThreadPool(options.threads(), runnable -> {
+            var thread = new Thread(runnable, "LoadGenerator-Client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(options.timeout())
+            .executor(clientExecutor)
+            .build();
+        this.inFlight = new Semaphore(options.maxInFlight());
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (Arrays.asList(args).contains("--help")) {
+            System.out.println(LoadOptions.USAGE);
+            return;
+        }
+
+        LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(LoadOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+        new LoadGenerator(options).run();
+    }
+
+    void run() throws InterruptedException {
+        URI putUri = options.url().resolve("/metrics/put");
+        URI queryUri = options.url().resolve("/metrics/query");
+        double periodNanos = 1e9 / options.rate();
+
+        System.out.printf(Locale.ROOT, "%.1f requests/s to %s for %ds after a %ds warmup, %.0f%% queries, %d series over %d metrics, %s%n",
+            options.rate(), options.url(), options.duration().toSeconds(), options.warmup().toSeconds(),
+            options.readRatio() * 100, options.series(), options.metrics(), options.distribution().name().toLowerCase());
+
+        long start = System.nanoTime();
+        long measureFrom = start + options.warmup().toNanos();
+        long end = measureFrom + options.duration().toNanos();
+        ScheduledExecutorService progress = progressReporter(start);
+
+        long maxLag = 0;
+        long throttled = 0;
+        for (long i = 0; ; i++) {
+            long due = start + (long) (i * periodNanos);
+            if (due >= end) break;
+
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                LockSupport.parkNanos(due - now);
+            }
+            if (!inFlight.tryAcquire()) {
+                throttled++;
+                inFlight.acquire();
+            }
+            maxLag = Math.max(maxLag, System.nanoTime() - due);
+
+            boolean measured = due >= measureFrom;
+            if (workload.nextIsQuery()) {
+                send(queryUri, workload.queryBody(System.currentTimeMillis()), 0, due, measured ? queries : warmupQueries);
+            } else {
+                send(putUri, workload.putBody(System.currentTimeMillis()), options.batchSize(), due, measured ? puts : warmupPuts);
+            }
+        }
+
+        // Timeouts bound every request, so they all complete shortly after
+        long drainMillis = options.timeout().toMillis() + 5000;
+        if (!inFlight.tryAcquire(options.maxInFlight(), drainMillis, TimeUnit.MILLISECONDS)) {
+            System.out.printf("%d requests still outstanding %d ms after the run, they are not counted%n",
+                options.maxInFlight() - inFlight.availablePermits(), drainMillis);
+        }
+        progress.shutdownNow();
+        clientExecutor.shutdownNow();
+
+        double seconds = options.duration().toNanos() / 1e9;
+        System.out.println();
+        puts.print(System.out, seconds);
+        queries.print(System.out, seconds);
+        System.out.printf(Locale.ROOT, "sending fell behind the schedule by at most %.3fms, waited for max-in-flight %d times%n",
+            maxLag / 1e6, throttled);
+    }
+
+    private void send(URI uri, String body, int samples, long due, RequestStats stats) {
+        var request = HttpRequest.newBuilder(uri)
+            .timeout(options.timeout())
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build();
+
+        long sentNanos = System.nanoTime();
+        sent.incrementAndGet();
+        client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+            long now = System.nanoTime();
+            if (error != null) {
+                stats.failed(error, due, sentNanos, now);
+            } else {
+                stats.answered(response.statusCode(), samples, due, sentNanos, now);
+            }
+            inFlight.release();
+        });
+    }
+
+    private ScheduledExecutorService progressReporter(long start) {
+        var progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "LoadGenerator-Progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progress.scheduleAtFixedRate(() -> {
+            long completed = puts.completed() + queries.completed() + warmupPuts.completed() + warmupQueries.completed();
+            System.out.printf("[%ds] sent %d, completed %d, in flight %d%n", (System.nanoTime() - start) / 1_000_000_000,
+                sent.get(), completed, options.maxInFlight() - inFlight.availablePermits());
+        }, PROGRESS_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        return progress;
+    }
+}
@@ -0,0 +1,151 @@
+package db.loadgen;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Options of the load generator, given as {@code --name value} pairs; see {@link #USAGE}.
+ */
+record LoadOptions(URI url,
+                   // requests per second, puts and queries together
+                   double rate,
+                   Duration duration,
+                   Duration warmup,
+                   // samples per put
+                   int batchSize,
+                   // share of the requests that are queries
+                   double readRatio,
+                   int metrics,
+                   int series,
+                   // label names and their number of values, the first one varies fastest across series
+                   Map<String, Integer> labels,
+                   Distribution distribution,
+                   double zipfExponent,
+                   Duration queryRange,
+                   String resolution,
+                   // labels of the picked series a query filters on, the first ones
+                   int queryLabels,
+                   int maxInFlight,
+                   Duration timeout,
+                   int threads) {
+
+    enum Distribution {
+        UNIFORM,
+        // series of lower index are written and queried more often, by Zipf's law
+        ZIPF
+    }
+
+    static final String USAGE = """
+        Usage: java -cp benchmarks/target/benchmarks.jar db.loadgen.LoadGenerator [--name value]...
+
+          --url            base URL of the database                      http://localhost:8080
+          --rate           requests per second, open loop                100
+          --duration       measured run time                             60s
+          --warmup         run time before measuring                     10s
+          --batch-size     samples per put                               100
+          --read-ratio     share of the requests that are queries        0
+          --metrics        metric names the series are spread over       1
+          --series         series written, at most the label combinations 10000
+          --labels         label names and value counts                  host:1000,region:10,service:100
+          --distribution   how series are picked: uniform or zipf        uniform
+          --zipf-exponent  skew of the zipf distribution                 1.0
+          --query-range    time range of a query, ending now             1h
+          --resolution     resolution queried                            1m
+          --query-labels   labels of a series a query filters on         1
+          --max-in-flight  requests outstanding before sending waits     1000
+          --timeout        request timeout                               30s
+          --threads        HTTP client threads                           4
+
+        Durations take ms, s, m or h.""";
+
+    private static final Set<String> NAMES = Set.of("url", "rate", "duration", "warmup", "batch-size", "read-ratio",
+        "metrics", "series", "labels", "distribution", "zipf-exponent", "query-range", "resolution", "query-labels",
+        "max-in-flight", "timeout", "threads");
+
+    LoadOptions {
+        if (rate <= 0) throw new IllegalArgumentException("rate must be positive");
+        if (batchSize <= 0) throw new IllegalArgumentException("batch-size must be positive");
+        if (readRatio < 0 || readRatio > 1) throw new IllegalArgumentException("read-ratio must be between 0 and 1");
+        if (metrics <= 0 || series <= 0) throw new IllegalArgumentException("metrics and series must be positive");
+        if (queryLabels < 0 || queryLabels > labels.size()) throw new IllegalArgumentException("query-labels must be between 0 and the number of labels");
+        if (maxInFlight <= 0 || threads <= 0) throw new IllegalArgumentException("max-in-flight and threads must be positive");
+
+        long combinations = (long) metrics;
+        for (int values : labels.values()) {
+            combinations = Math.min(Long.MAX_VALUE / values, combinations) * values;
+        }
+        if (series > combinations) {
+            throw new IllegalArgumentException("series " + series + " exceed the " + combinations + " combinations of metrics and labels");
+        }
+    }
+
+    static LoadOptions parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !NAMES.contains(args[i].substring(2))) {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value of " + args[i]);
+            }
+            values.put(args[i].substring(2), args[i + 1]);
+        }
+
+        return new LoadOptions(
+            URI.create(values.getOrDefault("url", "http://localhost:8080")),
+            Double.parseDouble(values.getOrDefault("rate", "100")),
+            duration(values.getOrDefault("duration", "60s")),
+            duration(values.getOrDefault("warmup", "10s")),
+            Integer.parseInt(values.getOrDefault("batch-size", "100")),
+            Double.parseDouble(values.getOrDefault("read-ratio", "0")),
+            Integer.parseInt(values.getOrDefault("metrics", "1")),
+            Integer.parseInt(values.getOrDefault("series", "10000")),
+            labels(values.getOrDefault("labels", "host:1000,region:10,service:100")),
+            Distribution.valueOf(values.getOrDefault("distribution", "uniform").toUpperCase()),
+            Double.parseDouble(values.getOrDefault("zipf-exponent", "1.0")),
+            duration(values.getOrDefault("query-range", "1h")),
+            values.getOrDefault("resolution", "1m"),
+            Integer.parseInt(values.getOrDefault("query-labels", "1")),
+            Integer.parseInt(values.getOrDefault("max-in-flight", "1000")),
+            duration(values.getOrDefault("timeout", "30s")),
+            Integer.parseInt(values.getOrDefault("threads", "4")));
+    }
+
+    private static Map<String, Integer> labels(String value) {
+        Map<String, Integer> labels = new LinkedHashMap<>();
+        for (String label : value.split(",")) {
+            String[] nameAndCount = label.split(":");
+            if (nameAndCount.length != 2) {
+                throw new IllegalArgumentException("Labels are given as name:count, not " + label);
+            }
+            int count = Integer.parseInt(nameAndCount[1]);
+            if (count <= 0) {
+                throw new IllegalArgumentException("Label " + nameAndCount[0] + " needs at least one value");
+            }
+            labels.put(nameAndCount[0], count);
+        }
+        return labels;
+    }
+
+    private static Duration duration(String value) {
+        int unit = 0;
+        while (unit < value.length() && Character.isDigit(value.charAt(unit))) {
+            unit++;
+        }
+        if (unit == 0) {
+            throw new IllegalArgumentException("Invalid duration " + value);
+        }
+        long amount = Long.parseLong(value.substring(0, unit));
+        return switch (value.substring(unit)) {
+            case "ms" -> Duration.ofMillis(amount);
+            case "s" -> Duration.ofSeconds(amount);
+            case "m" -> Duration.ofMinutes(amount);
+            case "h" -> Duration.ofHours(amount);
+            default -> throw new IllegalArgumentException("Invalid duration " + value + ", use ms, s, m or h");
+        };
+    }
+}
@@ -0,0 +1,88 @@
+package db.loadgen;
+
+import db.database.LatencyHistogram;
+
+import java.io.PrintStream;
+import java.net.http.HttpTimeoutException;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outcomes of one kind of request over the measured part of a run. Latency runs from the time the
+ * request was due to be sent by the schedule, so time spent waiting behind a slow server or a
+ * saturated client counts against the server, which a closed loop would hide. Service time runs
+ * from the actual send and is what a closed-loop client reports. Answered requests and timeouts
+ * are recorded, the latter at their timeout; requests rejected with 429 or 503 and failures are
+ * only counted, their quick answers would flatter the percentiles.
+ */
+class RequestStats {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    private final LongAdder answered = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    RequestStats(String name) {
+        this.name = name;
+    }
+
+    void answered(int status, int samplesSent, long dueNanos, long sentNanos, long nowNanos) {
+        if (status == 429 || status == 503) {
+            rejected.increment();
+        } else if (status / 100 != 2) {
+            failed.increment();
+        } else {
+            answered.increment();
+            samples.add(samplesSent);
+            latency.record(nowNanos - dueNanos);
+            serviceTime.record(nowNanos - sentNanos);
+        }
+    }
+
+    void failed(Throwable error, long dueNanos, long sentNanos, long nowNanos) {
+        if (error instanceof HttpTimeoutException || error.getCause() instanceof HttpTimeoutException) {
+            timedOut.increment();
+            latency.record(nowNanos - dueNanos);
+            serviceTime.record(nowNanos - sentNanos);
+        } else {
+            failed.increment();
+        }
+    }
+
+    long completed() {
+        return answered.sum() + rejected.sum() + failed.sum() + timedOut.sum();
+    }
+
+    void print(PrintStream out, double seconds) {
+        if (completed() == 0) return;
+
+        out.printf(Locale.ROOT, "%s: %d answered (%.1f/s), %d samples (%.0f/s), %d rejected, %d failed, %d timed out%n",
+            name, answered.sum(), answered.sum() / seconds, samples.sum(), samples.sum() / seconds,
+            rejected.sum(), failed.sum(), timedOut.sum());
+        printLatencies(out, "latency", latency.snapshot());
+        printLatencies(out, "service", serviceTime.snapshot());
+    }
+
+    private static void printLatencies(PrintStream out, String label, LatencyHistogram.Snapshot snapshot) {
+        var line = new StringBuilder(String.format(Locale.ROOT, "  %-8s", label));
+        for (double percentile : PERCENTILES) {
+            line.append(String.format(Locale.ROOT, "  p%s %s", trim(percentile), millis(snapshot.valueAtQuantile(percentile / 100))));
+        }
+        line.append("  max ").append(millis(snapshot.maxNanos()))
+            .append("  mean ").append(millis((long) snapshot.meanNanos()));
+        out.println(line);
+    }
+
+    private static String trim(double percentile) {
+        return percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3fms", nanos / 1e6);
+    }
+}
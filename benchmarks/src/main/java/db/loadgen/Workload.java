@@ -0,0 +1,93 @@
+package db.loadgen;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * The series of a load run and the request bodies written for them. The index of a series is split
+ * in mixed radix over the metric names and then the labels in the order given, so every index below
+ * the number of combinations is a distinct series. Series are picked uniformly or by Zipf's law,
+ * index 0 being the hottest. Not thread-safe, the scheduler thread builds every body.
+ */
+class Workload {
+    private final LoadOptions options;
+    private final String[] labelNames;
+    private final int[] labelValues;
+    // Cumulative probabilities of the series for the zipf distribution, null when uniform
+    private final double[] cumulative;
+    private final SplittableRandom random = new SplittableRandom();
+    private final StringBuilder body = new StringBuilder(1024);
+
+    Workload(LoadOptions options) {
+        this.options = options;
+        this.labelNames = options.labels().keySet().toArray(String[]::new);
+        this.labelValues = options.labels().values().stream().mapToInt(Integer::intValue).toArray();
+        this.cumulative = options.distribution() == LoadOptions.Distribution.ZIPF ? zipf(options.series(), options.zipfExponent()) : null;
+    }
+
+    private static double[] zipf(int series, double exponent) {
+        double[] cumulative = new double[series];
+        double sum = 0;
+        for (int rank = 0; rank < series; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < series; rank++) {
+            cumulative[rank] /= sum;
+        }
+        return cumulative;
+    }
+
+    boolean nextIsQuery() {
+        return options.readRatio() > 0 && random.nextDouble() < options.readRatio();
+    }
+
+    // A /metrics/put body of batch-size samples stamped with timestampMillis
+    String putBody(long timestampMillis) {
+        body.setLength(0);
+        body.append('[');
+        for (int i = 0; i < options.batchSize(); i++) {
+            if (i > 0) body.append(',');
+            int series = nextSeries();
+            body.append("{\"metricName\":\"").append(metricName(series)).append("\",\"labels\":{");
+            appendLabels(series, labelNames.length);
+            body.append("},\"timestamp\":").append(timestampMillis)
+                .append(",\"value\":").append(random.nextDouble() * 100).append('}');
+        }
+        return body.append(']').toString();
+    }
+
+    // A /metrics/query body over the query range ending at nowMillis, matching a series on its first query-labels labels
+    String queryBody(long nowMillis) {
+        int series = nextSeries();
+        body.setLength(0);
+        body.append("{\"metricName\":\"").append(metricName(series)).append("\",\"labels\":{");
+        appendLabels(series, options.queryLabels());
+        return body.append("},\"from\":").append(nowMillis - options.queryRange().toMillis())
+            .append(",\"to\":").append(nowMillis)
+            .append(",\"resolution\":\"").append(options.resolution()).append("\"}")
+            .toString();
+    }
+
+    private int nextSeries() {
+        if (cumulative == null) {
+            return random.nextInt(options.series());
+        }
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(index < 0 ? -index - 1 : index, options.series() - 1);
+    }
+
+    private String metricName(int series) {
+        return "loadgen_metric_" + series % options.metrics();
+    }
+
+    private void appendLabels(int series, int count) {
+        int rest = series / options.metrics();
+        for (int label = 0; label < count; label++) {
+            if (label > 0) body.append(',');
+            body.append('"').append(labelNames[label]).append("\":\"")
+                .append(labelNames[label]).append('-').append(rest % labelValues[label]).append('"');
+            rest /= labelValues[label];
+        }
+    }
+}
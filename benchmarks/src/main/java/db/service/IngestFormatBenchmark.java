@@ -0,0 +1,169 @@
+package db.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import db.TSDBConfiguration.WALProperties.Backend;
+import db.TSDBConfiguration.WALProperties.Durability;
+import db.database.BenchmarkSupport;
+import db.database.EvictOldDataPolicy;
+import db.database.InMemoryTSDB;
+import db.database.IngestQueue;
+import db.database.Resolutions;
+import db.database.ShardedWriteAheadLog;
+import db.database.TSDBMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The same samples ingested as a JSON /put body and as a line-protocol /write body, from the bytes
+ * of the body until they are written through the ingest queue, WAL included. Every invocation
+ * rewrites the timestamps of the body to the next second, in place, so samples arrive in order.
+ * Scores are per sample.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IngestFormatBenchmark {
+    private static final int SAMPLES = 1000;
+    private static final int TIMESTAMP_DIGITS = 13;
+    private static final TypeReference<List<MetricPutRequest>> PUT_REQUESTS = new TypeReference<>() {
+    };
+
+    // Distinct series written by a body, out of SAMPLES samples
+    @Param({"10", "1000"})
+    public int seriesCount;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private Path directory;
+    private ShardedWriteAheadLog writeAheadLog;
+    private InMemoryTSDB tsdb;
+    private IngestQueue ingestQueue;
+    private SeriesKeyCache seriesKeys;
+
+    private Body json;
+    private Body lines;
+    private long timestamp;
+
+    // A body and where its timestamps are
+    private record Body(byte[] bytes, int[] timestampOffsets) {
+        void setTimestamps(long timestamp) {
+            byte[] digits = Long.toString(timestamp).getBytes(StandardCharsets.US_ASCII);
+            for (int offset : timestampOffsets) {
+                System.arraycopy(digits, 0, bytes, offset, TIMESTAMP_DIGITS);
+            }
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        directory = BenchmarkSupport.createTempDirectory();
+        var configuration = BenchmarkSupport.configuration(directory, 1, Durability.NONE, Backend.STREAM);
+        writeAheadLog = BenchmarkSupport.writeAheadLog(configuration);
+        tsdb = new InMemoryTSDB(new Resolutions(configuration), new EvictOldDataPolicy(), writeAheadLog);
+        ingestQueue = new IngestQueue(tsdb, configuration, new TSDBMetrics());
+        seriesKeys = new SeriesKeyCache();
+        timestamp = BenchmarkSupport.BASE_TIMESTAMP;
+
+        json = jsonBody();
+        lines = lineProtocolBody();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        ingestQueue.close();
+        BenchmarkSupport.close(writeAheadLog);
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+
+    private Body jsonBody() {
+        var body = new ByteArrayOutputStream();
+        List<Integer> offsets = new ArrayList<>();
+        write(body, "[");
+        for (int i = 0; i < SAMPLES; i++) {
+            var labels = BenchmarkSupport.labels(i % seriesCount);
+            write(body, (i > 0 ? "," : "") + "{\"metricName\":\"http_requests\",\"labels\":{\"host\":\"" + labels.get("host")
+                + "\",\"region\":\"" + labels.get("region") + "\",\"service\":\"" + labels.get("service") + "\"},\"timestamp\":");
+            offsets.add(body.size());
+            write(body, BenchmarkSupport.BASE_TIMESTAMP + ",\"value\":" + (i % 100) * 1.5 + "}");
+        }
+        write(body, "]");
+        return new Body(body.toByteArray(), offsets.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private Body lineProtocolBody() {
+        var body = new ByteArrayOutputStream();
+        List<Integer> offsets = new ArrayList<>();
+        for (int i = 0; i < SAMPLES; i++) {
+            var labels = BenchmarkSupport.labels(i % seriesCount);
+            write(body, "http_requests,host=" + labels.get("host") + ",region=" + labels.get("region")
+                + ",service=" + labels.get("service") + " " + (i % 100) * 1.5 + " ");
+            offsets.add(body.size());
+            write(body, BenchmarkSupport.BASE_TIMESTAMP + "\n");
+        }
+        return new Body(body.toByteArray(), offsets.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private static void write(ByteArrayOutputStream body, String text) {
+        body.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void json() throws IOException {
+        timestamp += 1000;
+        json.setTimestamps(timestamp);
+
+        List<MetricPutRequest> requests = objectMapper.readValue(json.bytes(), PUT_REQUESTS);
+        ingestQueue.submit(new IngestQueue.Batch() {
+            @Override
+            public int size() {
+                return requests.size();
+            }
+
+            @Override
+            public void writeTo(InMemoryTSDB tsdb) {
+                for (var request : requests) {
+                    tsdb.put(request.metricName(), request.labels(), request.timestamp(), request.value());
+                }
+            }
+        }).join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long lineProtocol() {
+        timestamp += 1000;
+        lines.setTimestamps(timestamp);
+
+        var parser = new LineProtocolParser(ingestQueue, tsdb, seriesKeys);
+        parser.feed(DefaultDataBufferFactory.sharedInstance.wrap(lines.bytes()));
+        parser.finish();
+        parser.queueBatches().block();
+        parser.written().join();
+        return parser.accepted();
+    }
+}
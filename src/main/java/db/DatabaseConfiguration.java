@@ -2,8 +2,9 @@ package db;
 
 import db.database.InMemoryTSDB;
 import db.database.RetentionPolicy;
+import db.database.ShardedWriteAheadLog;
+import db.database.TSDBMetrics;
 import db.database.TSDBBootstrapper;
-import db.database.WriteAheadLog;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -19,6 +20,12 @@ public class DatabaseConfiguration {
         return new ScheduledThreadPoolExecutor(corePoolSize);
     }
 
+    // One log per shard when sharded, each below the configured path
+    @Bean
+    public ShardedWriteAheadLog writeAheadLog(TSDBConfiguration configuration, TSDBMetrics metrics) {
+        return new ShardedWriteAheadLog(configuration.walProperties(), Math.max(1, configuration.shards()), metrics);
+    }
+
     @Bean
     public InMemoryTSDB inMemoryTSDB(TSDBBootstrapper tsdbBootstrapper) throws IOException {
         return tsdbBootstrapper.restore();
@@ -1,12 +1,92 @@
 package db;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+import java.util.List;
 
 @ConfigurationProperties(prefix = "configuration")
-public record TSDBConfiguration(SnapshotProperties snapshot, WALProperties walProperties, long retentionMs) {
-    public record SnapshotProperties(String path, long initialDelayMs, long intervalMs) {
+public record TSDBConfiguration(SnapshotProperties snapshot,
+                                WALProperties walProperties,
+                                long retentionMs,
+                                // series are hashed to this many shards, each with its own WAL, writer thread and snapshots
+                                @DefaultValue("1") int shards,
+                                @DefaultValue RetentionProperties retention,
+                                @DefaultValue RollupProperties rollup,
+                                @DefaultValue QueryCacheProperties queryCache,
+                                @DefaultValue IngestProperties ingest,
+                                @DefaultValue ColdStorageProperties coldStorage,
+                                // rollup tiers, secondly, minutely and hourly when empty
+                                List<ResolutionProperties> resolutions) {
+    public record SnapshotProperties(String path,
+                                     long initialDelayMs,
+                                     long intervalMs,
+                                     // delta snapshots chained to a base before a new base is written
+                                     @DefaultValue("8") int maxDeltas) {
+    }
+
+    public record WALProperties(String path,
+                                long rotationByteSize,
+                                @DefaultValue("interval-ms") Durability durability,
+                                @DefaultValue("1000") long fsyncIntervalMs,
+                                @DefaultValue("65536") int bufferCapacity,
+                                @DefaultValue("1000") long appendTimeoutMs,
+                                @DefaultValue("stream") Backend backend,
+                                @DefaultValue("0") int replayParallelism) {
+        public enum Durability {
+            // never fsync, leave it to the OS
+            NONE,
+            // fsync at most every fsyncIntervalMs
+            INTERVAL_MS,
+            // fsync every group commit, puts are acknowledged once durable
+            EVERY_BATCH
+        }
+
+        public enum Backend {
+            // segments grow by appends through a FileChannel
+            STREAM,
+            // segments are preallocated to rotation-byte-size, memory mapped and recycled
+            MMAP
+        }
+    }
+
+    public record RetentionProperties(@DefaultValue("1000") long sweepIntervalMs,
+                                      // series visited per sweep tick
+                                      @DefaultValue("10000") int sweepBatchSize) {
+    }
+
+    public record RollupProperties(@DefaultValue("5000") long intervalMs,
+                                   // age a bucket of the finest tier reaches before it is rolled up
+                                   @DefaultValue("10000") long delayMs) {
+    }
+
+    // Points the query cache keeps before evicting the least recently used queries, 0 disables it
+    public record QueryCacheProperties(@DefaultValue("1000000") long maxPoints) {
+    }
+
+    // Capacity is in samples accepted but not written yet, puts beyond it are answered with 429
+    public record IngestProperties(@DefaultValue("262144") long capacity,
+                                   // threads writing accepted batches, 0 = one per core
+                                   @DefaultValue("0") int workers,
+                                   // Retry-After sent with a 429
+                                   @DefaultValue("1") long retryAfterSeconds) {
+    }
+
+    /**
+     * Sealed chunks older than ageMs are moved to block files below path, memory mapped, and leave
+     * the heap; 0 keeps everything on the heap. Block files already written are read back on
+     * startup whenever a path is set.
+     */
+    public record ColdStorageProperties(String path,
+                                        @DefaultValue("0") long ageMs,
+                                        @DefaultValue("60000") long intervalMs,
+                                        // a block file is closed and a new one started beyond this size, capped at 1.5 GB
+                                        @DefaultValue("1073741824") long maxBlockBytes) {
     }
 
-    public record WALProperties(String path, long rotationByteSize) {
+    // A rollup tier: bucket width such as 10s, 5m or 1d, and how long its buckets are kept,
+    // retention-ms when not set
+    public record ResolutionProperties(Duration width, Duration retention) {
     }
 }
@@ -0,0 +1,207 @@
+package db.database;
+
+import db.model.Resolution;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import static db.database.WALFormat.getString;
+import static db.database.WALFormat.getVarLong;
+import static db.database.WALFormat.unZigZag;
+
+// Reads a binary snapshot through its footer index, see SnapshotFormat for the layout
+class BinarySnapshotReader implements Closeable {
+    private final File file;
+    private final FileChannel channel;
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+    private final SummaryColumns columns = new SummaryColumns(1024);
+
+    private final byte version;
+    private final long latestTimestamp;
+    // 0 for snapshots written before WAL entries were numbered
+    private final long walSequence;
+    // Configured resolution of every column of a block, null for columns of resolutions no longer configured
+    private final Resolution[] columnResolutions;
+
+    BinarySnapshotReader(File file, Resolutions resolutions) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        var header = read(0, (int) Math.min(channel.size(), SnapshotFormat.MAX_HEADER_SIZE));
+        header.position(SnapshotFormat.MAGIC.length);
+        this.version = header.get();
+        this.latestTimestamp = header.getLong();
+        this.walSequence = version >= SnapshotFormat.VERSION ? header.getLong() : 0;
+
+        long[] widths;
+        if (version == SnapshotFormat.FIXED_RESOLUTIONS_VERSION) {
+            widths = SnapshotFormat.FIXED_RESOLUTION_WIDTHS;
+        } else {
+            widths = new long[(int) getVarLong(header)];
+            for (int i = 0; i < widths.length; i++) {
+                widths[i] = getVarLong(header);
+            }
+        }
+
+        this.columnResolutions = new Resolution[widths.length];
+        for (int i = 0; i < widths.length; i++) {
+            columnResolutions[i] = resolutions.byWidth(widths[i]);
+        }
+    }
+
+    record IndexEntry(String metricName, Map<String, String> tags, long latestTimestamp, long appliedSequence,
+                      long blockOffset, int blockLength, int blockChecksum) {
+    }
+
+    long latestTimestamp() {
+        return latestTimestamp;
+    }
+
+    // Where the shard's WAL is replayed from after this snapshot
+    WALCheckpoint checkpoint() {
+        return version >= SnapshotFormat.VERSION ? WALCheckpoint.atSequence(walSequence) : WALCheckpoint.atTimestamp(latestTimestamp);
+    }
+
+    List<IndexEntry> readIndex() throws IOException {
+        long size = channel.size();
+        if (size < SnapshotFormat.HEADER_SIZE + SnapshotFormat.TRAILER_SIZE) {
+            throw new IOException("Truncated snapshot " + file);
+        }
+
+        var trailer = read(size - SnapshotFormat.TRAILER_SIZE, SnapshotFormat.TRAILER_SIZE);
+        long footerOffset = trailer.getLong();
+        int footerChecksum = trailer.getInt();
+        byte[] magic = new byte[SnapshotFormat.MAGIC.length];
+        trailer.get(magic);
+        if (!Arrays.equals(magic, SnapshotFormat.MAGIC) || footerOffset < SnapshotFormat.HEADER_SIZE
+            || footerOffset > size - SnapshotFormat.TRAILER_SIZE) {
+            throw new IOException("Snapshot " + file + " has no valid trailer, it was not completely written");
+        }
+
+        var footer = read(footerOffset, (int) (size - SnapshotFormat.TRAILER_SIZE - footerOffset));
+        verify(footer, footerChecksum, "footer");
+
+        int seriesCount = (int) getVarLong(footer);
+        List<IndexEntry> index = new ArrayList<>(seriesCount);
+        for (int i = 0; i < seriesCount; i++) {
+            String metricName = getString(footer);
+            int tagCount = (int) getVarLong(footer);
+            Map<String, String> tags = new LinkedHashMap<>();
+            for (int t = 0; t < tagCount; t++) {
+                tags.put(getString(footer), getString(footer));
+            }
+            long latest = footer.getLong();
+            long appliedSequence = version >= SnapshotFormat.VERSION ? footer.getLong() : 0;
+            index.add(new IndexEntry(metricName, tags, latest, appliedSequence, footer.getLong(), footer.getInt(), footer.getInt()));
+        }
+        return index;
+    }
+
+    // Bulk loads the columns of a series block into its store, resolution by resolution. The buckets
+    // of a delta snapshot replace the stored ones. Resolutions that are no longer configured are
+    // skipped, new ones stay empty.
+    void load(IndexEntry entry, MetricStore store, boolean delta) throws IOException {
+        var buffer = read(entry.blockOffset(), entry.blockLength());
+        verify(buffer, entry.blockChecksum(), "block of " + entry.metricName() + entry.tags());
+
+        for (var resolution : columnResolutions) {
+            readColumns(buffer);
+            if (resolution == null) {
+                continue;
+            }
+            if (delta) {
+                store.overwrite(resolution, columns);
+            } else {
+                store.load(resolution, columns);
+            }
+        }
+        store.restoreLatestTimestamp(entry.latestTimestamp());
+        store.restoreAppliedSequence(entry.appliedSequence());
+    }
+
+    // Decodes the columns of one resolution. Snapshots before the summaries restore every bucket as a single sample.
+    private void readColumns(ByteBuffer buffer) {
+        int size = (int) getVarLong(buffer);
+        columns.clear();
+
+        // Counts stay 0, the single sample marker, until the summaries are complete
+        long timestamp = 0;
+        for (int i = 0; i < size; i++) {
+            long encoded = getVarLong(buffer);
+            timestamp = i == 0 ? unZigZag(encoded) : timestamp + encoded;
+            columns.accept(timestamp, 0, 0, 0, 0, 0);
+        }
+
+        boolean summaries = version >= SnapshotFormat.TIMESTAMP_CHECKPOINT_VERSION;
+        if (summaries) {
+            for (int i = 0; i < size; i++) {
+                columns.counts[i] = getVarLong(buffer);
+            }
+        }
+
+        long bits = 0;
+        for (int i = 0; i < size; i++) {
+            bits ^= SnapshotFormat.getXor(buffer);
+            columns.sums[i] = Double.longBitsToDouble(bits);
+        }
+
+        if (summaries) {
+            readAgainstSums(buffer, columns.mins);
+            readAgainstSums(buffer, columns.maxs);
+            readAgainstSums(buffer, columns.lasts);
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (columns.counts[i] == 0) {
+                double sum = columns.sums[i];
+                columns.set(i, columns.buckets[i], 1, sum, sum, sum, sum);
+            }
+        }
+    }
+
+    // Reads the values of the buckets holding more than a single sample
+    private void readAgainstSums(ByteBuffer buffer, double[] values) {
+        for (int i = 0; i < columns.size; i++) {
+            if (columns.counts[i] != 0) {
+                values[i] = Double.longBitsToDouble(SnapshotFormat.getXor(buffer) ^ Double.doubleToRawLongBits(columns.sums[i]));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        if (block.capacity() < length) {
+            block = ByteBuffer.allocate(Math.max(length, block.capacity() * 2));
+        }
+        block.clear().limit(length);
+        while (block.hasRemaining()) {
+            if (channel.read(block, offset + block.position()) < 0) {
+                throw new IOException("Unexpected end of snapshot " + file);
+            }
+        }
+        return block.flip();
+    }
+
+    private void verify(ByteBuffer buffer, int checksum, String what) throws IOException {
+        crc.reset();
+        crc.update(buffer.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch in the " + what + " of snapshot " + file);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package db.database;
+
+import db.model.Resolution;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import static db.database.WALFormat.putString;
+import static db.database.WALFormat.putVarLong;
+import static db.database.WALFormat.zigZag;
+
+// Writes a binary snapshot, see SnapshotFormat for the layout. Not thread safe.
+class BinarySnapshotWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // Room for a varint, a long or a double
+    private static final int MAX_FIELD_SIZE = 10;
+
+    private final List<Resolution> resolutions;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CRC32C crc = new CRC32C();
+    private final SummaryColumns columns = new SummaryColumns(1024);
+    // Footer entries, built up while the blocks are written
+    private ByteBuffer footer = ByteBuffer.allocate(64 * 1024);
+    private int seriesCount;
+    // Bytes handed to the channel so far
+    private long position;
+
+    // walSequence: the snapshot will hold every WAL entry of the shard up to it
+    BinarySnapshotWriter(Path path, long latestTimestamp, long walSequence, List<Resolution> resolutions) throws IOException {
+        this.resolutions = resolutions;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        buffer.put(SnapshotFormat.MAGIC).put(SnapshotFormat.VERSION).putLong(latestTimestamp).putLong(walSequence);
+        putVarLong(buffer, resolutions.size());
+        for (var resolution : resolutions) {
+            putVarLong(buffer, resolution.widthMs());
+        }
+    }
+
+    // Writes every bucket of the series held on the heap, cold chunks are in block files already.
+    // The caller holds the series' monitor, so the block matches the applied sequence recorded with it.
+    void write(Series series) throws IOException {
+        write(series, null);
+    }
+
+    // Writes the heap buckets of every resolution that cover the raw timestamp range, all of them when it is null
+    void write(Series series, MetricStore.DirtyRange range) throws IOException {
+        flush();
+        long blockOffset = position;
+        crc.reset();
+
+        var store = series.getStore();
+        for (var resolution : resolutions) {
+            columns.clear();
+            if (range == null) {
+                store.forEachHotSummary(resolution, columns);
+            } else {
+                store.forEachHotSummary(range.from(), range.to(), resolution, columns);
+            }
+            writeColumns();
+        }
+        flush();
+
+        writeFooterEntry(series, blockOffset, (int) (position - blockOffset), (int) crc.getValue());
+        seriesCount++;
+    }
+
+    int seriesCount() {
+        return seriesCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            long footerOffset = position;
+
+            var header = ByteBuffer.allocate(MAX_FIELD_SIZE);
+            putVarLong(header, seriesCount);
+            header.flip();
+            footer.flip();
+
+            crc.reset();
+            crc.update(header.duplicate());
+            crc.update(footer.duplicate());
+
+            writeFully(header);
+            writeFully(footer);
+            var trailer = ByteBuffer.allocate(SnapshotFormat.TRAILER_SIZE);
+            trailer.putLong(footerOffset).putInt((int) crc.getValue()).put(SnapshotFormat.MAGIC).flip();
+            writeFully(trailer);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeColumns() throws IOException {
+        int size = columns.size;
+        ensure(MAX_FIELD_SIZE);
+        putVarLong(buffer, size);
+
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            ensure(MAX_FIELD_SIZE);
+            long timestamp = columns.buckets[i];
+            putVarLong(buffer, i == 0 ? zigZag(timestamp) : timestamp - previous);
+            previous = timestamp;
+        }
+
+        for (int i = 0; i < size; i++) {
+            ensure(MAX_FIELD_SIZE);
+            putVarLong(buffer, isSingle(i) ? 0 : columns.counts[i]);
+        }
+
+        long previousBits = 0;
+        for (int i = 0; i < size; i++) {
+            ensure(1 + Double.BYTES);
+            long bits = Double.doubleToRawLongBits(columns.sums[i]);
+            SnapshotFormat.putXor(buffer, bits ^ previousBits);
+            previousBits = bits;
+        }
+
+        writeAgainstSums(columns.mins);
+        writeAgainstSums(columns.maxs);
+        writeAgainstSums(columns.lasts);
+    }
+
+    private void writeAgainstSums(double[] values) throws IOException {
+        for (int i = 0; i < columns.size; i++) {
+            if (isSingle(i)) continue;
+            ensure(1 + Double.BYTES);
+            SnapshotFormat.putXor(buffer, Double.doubleToRawLongBits(values[i]) ^ Double.doubleToRawLongBits(columns.sums[i]));
+        }
+    }
+
+    private boolean isSingle(int i) {
+        double sum = columns.sums[i];
+        return columns.counts[i] == 1 && columns.mins[i] == sum && columns.maxs[i] == sum && columns.lasts[i] == sum;
+    }
+
+    private void writeFooterEntry(Series series, long blockOffset, int blockLength, int blockChecksum) {
+        while (true) {
+            int start = footer.position();
+            try {
+                putString(footer, series.getMetricName());
+                var tags = series.getLabel().tagsView();
+                putVarLong(footer, tags.size());
+                for (var tag : tags.entrySet()) {
+                    putString(footer, tag.getKey());
+                    putString(footer, tag.getValue());
+                }
+                footer.putLong(series.getStore().getLatestTimestamp());
+                footer.putLong(series.getStore().getAppliedSequence());
+                footer.putLong(blockOffset).putInt(blockLength).putInt(blockChecksum);
+                return;
+            } catch (BufferOverflowException e) {
+                footer.position(start);
+                footer = ByteBuffer.allocate(footer.capacity() * 2).put(footer.flip());
+            }
+        }
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    // Writes out the buffered bytes, adding them to the checksum of the current block
+    private void flush() throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        position += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package db.database;
+
+import db.model.MetricLabel;
+import db.model.WALEntry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+import static db.database.WALFormat.getString;
+import static db.database.WALFormat.getVarLong;
+import static db.database.WALFormat.unZigZag;
+
+// Decodes a memory mapped binary segment, stops at the first torn or corrupt record
+@Slf4j
+class BinaryWALSegmentReader implements WALSegmentReader {
+    private final File file;
+    private final ByteBuffer buffer;
+    private final CRC32C crc = new CRC32C();
+    private SeriesDefinition[] definitions = new SeriesDefinition[64];
+    private long previousTimestamp;
+    private long highestTimestamp = Long.MIN_VALUE;
+    // Sequence number of the next sample, 0 while the segment has not numbered its samples
+    private long nextSequence;
+    private boolean ended;
+
+    BinaryWALSegmentReader(File file) throws IOException {
+        this.file = file;
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.limit((int) dataEnd(buffer));
+        buffer.position(buffer.get(WALFormat.MAGIC.length) == WALFormat.MAPPED_VERSION ? WALFormat.MAPPED_HEADER_SIZE : WALFormat.HEADER_SIZE);
+    }
+
+    // End of the valid data: the committed offset for preallocated segments, the file size otherwise
+    private static long dataEnd(ByteBuffer segment) {
+        if (segment.get(WALFormat.MAGIC.length) != WALFormat.MAPPED_VERSION) {
+            return segment.capacity();
+        }
+        long committed = segment.getLong(WALFormat.COMMITTED_OFFSET_POSITION);
+        return Math.max(WALFormat.MAPPED_HEADER_SIZE, Math.min(committed, segment.capacity()));
+    }
+
+    @Override
+    public WALEntry next() {
+        while (!ended && buffer.hasRemaining()) {
+            ByteBuffer body = nextRecord();
+            if (body == null) {
+                ended = true;
+                break;
+            }
+
+            switch (body.get()) {
+                case WALFormat.SEGMENT_START -> nextSequence = body.getLong();
+                case WALFormat.SERIES_DEFINITION -> readSeriesDefinition(body);
+                case WALFormat.SAMPLE -> {
+                    int id = (int) getVarLong(body);
+                    var definition = id < definitions.length ? definitions[id] : null;
+                    if (definition == null) {
+                        log.warn("WAL sample references undefined series {} in {}, ignoring the rest of the segment", id, file);
+                        ended = true;
+                        break;
+                    }
+                    long timestamp = previousTimestamp + unZigZag(getVarLong(body));
+                    double value = body.getDouble();
+                    previousTimestamp = timestamp;
+                    highestTimestamp = Math.max(highestTimestamp, timestamp);
+                    long sequence = nextSequence > 0 ? nextSequence++ : 0;
+                    return new WALEntry(sequence, timestamp, definition.metricName(), definition.label(), value);
+                }
+                case WALFormat.SEGMENT_END -> ended = true;
+                default -> {
+                    log.warn("Unknown WAL record type in {}, ignoring the rest of the segment", file);
+                    ended = true;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Validates the next record and returns its body, or null if the segment's valid data ends here
+    private ByteBuffer nextRecord() {
+        int start = buffer.position();
+        try {
+            long length = getVarLong(buffer);
+            if (length <= 0 || length > buffer.remaining() - 4) {
+                throw new IllegalStateException("Record length " + length + " out of bounds");
+            }
+            int checksum = buffer.getInt();
+            ByteBuffer body = buffer.slice(buffer.position(), (int) length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                throw new IllegalStateException("Checksum mismatch");
+            }
+            buffer.position(buffer.position() + (int) length);
+            return body;
+        } catch (RuntimeException e) {
+            log.warn("Torn WAL record at offset {} of {}: {}", start, file, e.getMessage());
+            return null;
+        }
+    }
+
+    private void readSeriesDefinition(ByteBuffer body) {
+        int id = (int) getVarLong(body);
+        String metricName = getString(body);
+        int tagCount = (int) getVarLong(body);
+        var tags = new TreeMap<String, String>();
+        for (int i = 0; i < tagCount; i++) {
+            tags.put(getString(body), getString(body));
+        }
+
+        if (id >= definitions.length) {
+            definitions = Arrays.copyOf(definitions, Math.max(id + 1, definitions.length * 2));
+        }
+        definitions[id] = new SeriesDefinition(metricName, new MetricLabel(tags));
+    }
+
+    static long lastTimestamp(File file) throws IOException {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(WALFormat.MAPPED_HEADER_SIZE);
+            channel.read(header, 0);
+            long size = header.get(WALFormat.MAGIC.length) == WALFormat.MAPPED_VERSION
+                ? Math.min(header.getLong(WALFormat.COMMITTED_OFFSET_POSITION), channel.size())
+                : channel.size();
+
+            if (size >= WALFormat.HEADER_SIZE + WALFormat.SEGMENT_END_SIZE) {
+                var trailer = ByteBuffer.allocate(WALFormat.SEGMENT_END_SIZE);
+                channel.read(trailer, size - WALFormat.SEGMENT_END_SIZE);
+                trailer.flip();
+
+                if (trailer.get() == WALFormat.SEGMENT_END_SIZE - 5) {
+                    int checksum = trailer.getInt();
+                    var crc = new CRC32C();
+                    crc.update(trailer.duplicate());
+                    if ((int) crc.getValue() == checksum && trailer.get() == WALFormat.SEGMENT_END) {
+                        return trailer.getLong();
+                    }
+                }
+            }
+        }
+
+        // Segment was not closed cleanly, scan it
+        try (var reader = new BinaryWALSegmentReader(file)) {
+            while (reader.next() != null) {
+                // only interested in the highest timestamp
+            }
+            return reader.highestTimestamp;
+        }
+    }
+
+    // Sequence number of the first sample, 0 when the segment does not number its samples
+    static long firstSequence(File file) throws IOException {
+        try (var reader = new BinaryWALSegmentReader(file)) {
+            var body = reader.buffer.hasRemaining() ? reader.nextRecord() : null;
+            return body != null && body.get() == WALFormat.SEGMENT_START ? body.getLong() : 0;
+        }
+    }
+
+    // Sequence number of the last readable sample, one before the first for a segment without any
+    static long lastSequence(File file) throws IOException {
+        try (var reader = new BinaryWALSegmentReader(file)) {
+            while (reader.next() != null) {
+                // only interested in the numbering
+            }
+            return Math.max(0, reader.nextSequence - 1);
+        }
+    }
+
+    @Override
+    public void close() {
+        // mapping is released once the buffer is garbage collected
+    }
+
+    private record SeriesDefinition(String metricName, MetricLabel label) {
+    }
+}
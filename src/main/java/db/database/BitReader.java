@@ -0,0 +1,33 @@
+package db.database;
+
+// Reads a bit stream produced by BitWriter
+class BitReader {
+    private final long[] words;
+    private int bitPosition;
+
+    BitReader(long[] words) {
+        this.words = words;
+    }
+
+    boolean readBit() {
+        return readBits(1) == 1L;
+    }
+
+    long readBits(int bitCount) {
+        if (bitCount == 0) return 0L;
+
+        int wordIndex = bitPosition >>> 6;
+        int offset = bitPosition & 63;
+        int available = 64 - offset;
+        bitPosition += bitCount;
+
+        if (bitCount <= available) {
+            return (words[wordIndex] << offset) >>> (64 - bitCount);
+        }
+
+        int overflow = bitCount - available;
+        long high = (words[wordIndex] << offset) >>> offset;
+        long low = words[wordIndex + 1] >>> (64 - overflow);
+        return (high << overflow) | low;
+    }
+}
@@ -0,0 +1,50 @@
+package db.database;
+
+import java.util.Arrays;
+
+// Append-only bit stream backed by a long[], bits are written most significant first
+class BitWriter {
+    private long[] words;
+    private int bitPosition;
+
+    BitWriter(int initialWords) {
+        this.words = new long[Math.max(1, initialWords)];
+    }
+
+    void writeBit(boolean bit) {
+        writeBits(bit ? 1L : 0L, 1);
+    }
+
+    // Writes the lowest bitCount bits of value
+    void writeBits(long value, int bitCount) {
+        if (bitCount == 0) return;
+
+        int wordIndex = bitPosition >>> 6;
+        int free = 64 - (bitPosition & 63);
+        ensureCapacity(wordIndex + 2);
+
+        long bits = bitCount == 64 ? value : value & ((1L << bitCount) - 1);
+        if (bitCount <= free) {
+            words[wordIndex] |= bits << (free - bitCount);
+        } else {
+            int overflow = bitCount - free;
+            words[wordIndex] |= bits >>> overflow;
+            words[wordIndex + 1] |= bits << (64 - overflow);
+        }
+        bitPosition += bitCount;
+    }
+
+    int bitLength() {
+        return bitPosition;
+    }
+
+    long[] toWords() {
+        return Arrays.copyOf(words, (bitPosition + 63) >>> 6);
+    }
+
+    private void ensureCapacity(int required) {
+        if (required > words.length) {
+            words = Arrays.copyOf(words, Math.max(required, words.length * 2));
+        }
+    }
+}
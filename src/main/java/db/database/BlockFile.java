@@ -0,0 +1,122 @@
+package db.database;
+
+import db.model.Resolution;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import static db.database.WALFormat.getString;
+import static db.database.WALFormat.getVarLong;
+import static db.database.WALFormat.unZigZag;
+
+/**
+ * A block file of the cold tier, mapped read-only, see {@link BlockFormat} for the layout. Chunks
+ * read from it are views of the mapping: the file stays mapped while any of them is referenced and
+ * is unmapped once they are all collected, deleting the file in the meantime is safe.
+ */
+class BlockFile {
+    private final Path path;
+    private final MappedByteBuffer mapping;
+
+    // A sealed chunk of one resolution of a series
+    record Chunk(Resolution resolution, long chunkId, GorillaChunk chunk) {
+    }
+
+    // The chunks of a series in the file, those of resolutions no longer configured left out
+    record SeriesEntry(String metricName, Map<String, String> tags, List<Chunk> chunks) {
+    }
+
+    private BlockFile(Path path, MappedByteBuffer mapping) {
+        this.path = path;
+        this.mapping = mapping;
+    }
+
+    static BlockFile open(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < BlockFormat.HEADER_SIZE + BlockFormat.TRAILER_SIZE) {
+                throw new IOException("Truncated block file " + path);
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Block file " + path + " is larger than 2 GB");
+            }
+            var mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapping.order(ByteOrder.LITTLE_ENDIAN);
+            return new BlockFile(path, mapping);
+        }
+    }
+
+    Path path() {
+        return path;
+    }
+
+    List<SeriesEntry> readIndex(Resolutions resolutions) throws IOException {
+        int size = mapping.capacity();
+        var trailer = mapping.slice(size - BlockFormat.TRAILER_SIZE, BlockFormat.TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        int indexChecksum = trailer.getInt();
+        byte[] magic = new byte[BlockFormat.MAGIC.length];
+        trailer.get(magic);
+        if (!Arrays.equals(magic, BlockFormat.MAGIC) || indexOffset < BlockFormat.HEADER_SIZE
+            || indexOffset > size - BlockFormat.TRAILER_SIZE) {
+            throw new IOException("Block file " + path + " has no valid trailer, it was not completely written");
+        }
+
+        ByteBuffer index = mapping.slice((int) indexOffset, (int) (size - BlockFormat.TRAILER_SIZE - indexOffset));
+        var crc = new CRC32C();
+        crc.update(index.duplicate());
+        if ((int) crc.getValue() != indexChecksum) {
+            throw new IOException("Corrupted index in block file " + path);
+        }
+
+        int seriesCount = (int) getVarLong(index);
+        List<SeriesEntry> entries = new ArrayList<>(seriesCount);
+        for (int i = 0; i < seriesCount; i++) {
+            String metricName = getString(index);
+            int tagCount = (int) getVarLong(index);
+            Map<String, String> tags = new LinkedHashMap<>();
+            for (int t = 0; t < tagCount; t++) {
+                tags.put(getString(index), getString(index));
+            }
+
+            int chunkCount = (int) getVarLong(index);
+            List<Chunk> chunks = new ArrayList<>(chunkCount);
+            for (int c = 0; c < chunkCount; c++) {
+                long widthMs = getVarLong(index);
+                long chunkId = unZigZag(getVarLong(index));
+                int count = (int) getVarLong(index);
+                long minTimestamp = unZigZag(getVarLong(index));
+                long maxTimestamp = minTimestamp + getVarLong(index);
+                long wordOffset = getVarLong(index);
+                int wordCount = (int) getVarLong(index);
+
+                var resolution = resolutions.byWidth(widthMs);
+                if (resolution != null) {
+                    chunks.add(new Chunk(resolution, chunkId, chunk(wordOffset, wordCount, count, minTimestamp, maxTimestamp)));
+                }
+            }
+            entries.add(new SeriesEntry(metricName, tags, chunks));
+        }
+        return entries;
+    }
+
+    // The chunk whose words start at the word offset, read in place through the mapping
+    GorillaChunk chunk(long wordOffset, int wordCount, int count, long minTimestamp, long maxTimestamp) {
+        var words = mapping
+            .slice((int) (BlockFormat.HEADER_SIZE + wordOffset * Long.BYTES), wordCount * Long.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .asLongBuffer();
+        return GorillaChunk.mapped(words, count, minTimestamp, maxTimestamp);
+    }
+}
@@ -0,0 +1,133 @@
+package db.database;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import static db.database.WALFormat.putString;
+import static db.database.WALFormat.putVarLong;
+import static db.database.WALFormat.zigZag;
+
+// Writes a block file of the cold tier, see BlockFormat for the layout. Not thread safe.
+class BlockFileWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // Room for the varint series count
+    private static final int MAX_FIELD_SIZE = 10;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    // Index entries, built up while the chunks are written
+    private ByteBuffer index = ByteBuffer.allocate(64 * 1024);
+    private int seriesCount;
+    private long wordsWritten;
+
+    BlockFileWriter(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        buffer.put(BlockFormat.MAGIC).put(BlockFormat.VERSION).put(new byte[BlockFormat.HEADER_SIZE - BlockFormat.MAGIC.length - 1]);
+    }
+
+    /**
+     * Writes the words of the series' chunks and indexes them under the series.
+     *
+     * @return the word offset of every chunk from the start of the data, in the order given
+     */
+    long[] write(Series series, List<BlockFile.Chunk> chunks) throws IOException {
+        long[] offsets = new long[chunks.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = wordsWritten;
+            var words = chunks.get(i).chunk().words();
+            while (words.hasRemaining()) {
+                if (buffer.remaining() < Long.BYTES) {
+                    flush();
+                }
+                buffer.putLong(words.get());
+            }
+            wordsWritten += words.capacity();
+        }
+
+        writeIndexEntry(series, chunks, offsets);
+        seriesCount++;
+        return offsets;
+    }
+
+    // Bytes of the file so far, without the index
+    long size() {
+        return BlockFormat.HEADER_SIZE + wordsWritten * Long.BYTES;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            long indexOffset = size();
+
+            var header = ByteBuffer.allocate(MAX_FIELD_SIZE);
+            putVarLong(header, seriesCount);
+            header.flip();
+            index.flip();
+
+            var crc = new CRC32C();
+            crc.update(header.duplicate());
+            crc.update(index.duplicate());
+
+            writeFully(header);
+            writeFully(index);
+            var trailer = ByteBuffer.allocate(BlockFormat.TRAILER_SIZE);
+            trailer.putLong(indexOffset).putInt((int) crc.getValue()).put(BlockFormat.MAGIC).flip();
+            writeFully(trailer);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeIndexEntry(Series series, List<BlockFile.Chunk> chunks, long[] offsets) {
+        while (true) {
+            int start = index.position();
+            try {
+                putString(index, series.getMetricName());
+                var tags = series.getLabel().tagsView();
+                putVarLong(index, tags.size());
+                for (var tag : tags.entrySet()) {
+                    putString(index, tag.getKey());
+                    putString(index, tag.getValue());
+                }
+
+                putVarLong(index, chunks.size());
+                for (int i = 0; i < offsets.length; i++) {
+                    var chunk = chunks.get(i);
+                    putVarLong(index, chunk.resolution().widthMs());
+                    putVarLong(index, zigZag(chunk.chunkId()));
+                    putVarLong(index, chunk.chunk().count());
+                    putVarLong(index, zigZag(chunk.chunk().minTimestamp()));
+                    putVarLong(index, chunk.chunk().maxTimestamp() - chunk.chunk().minTimestamp());
+                    putVarLong(index, offsets[i]);
+                    putVarLong(index, chunk.chunk().words().capacity());
+                }
+                return;
+            } catch (BufferOverflowException e) {
+                index.position(start);
+                index = ByteBuffer.allocate(index.capacity() * 2).put(index.flip());
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package db.database;
+
+import lombok.experimental.UtilityClass;
+
+/**
+ * Block file layout of the cold tier, written once and never modified:
+ * <pre>
+ * header  : "TBLK" magic, 1 byte version, 3 zero bytes
+ * data    : the words of the sealed chunks, Gorilla encoded as on the heap (see {@link GorillaChunk}),
+ *           little endian longs, the chunks of a series next to each other
+ * index   : varint series count, per series
+ *             metric name, varint tag count, (name, value)*, varint chunk count, per chunk
+ *               varint bucket width in ms, zigzag varint chunk id, varint summary count,
+ *               zigzag varint first bucket, varint last bucket - first bucket,
+ *               varint word offset from the start of the data, varint word count
+ * trailer : long index offset, int CRC32C of the index, "TBLK" magic
+ * </pre>
+ * The header keeps the data aligned to longs, so chunks are read through the mapping in place.
+ * Strings use the WAL encoding, see {@link WALFormat}.
+ */
+@UtilityClass
+public class BlockFormat {
+    static final byte[] MAGIC = {'T', 'B', 'L', 'K'};
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int TRAILER_SIZE = Long.BYTES + Integer.BYTES + MAGIC.length;
+    static final String SUFFIX = ".block";
+}
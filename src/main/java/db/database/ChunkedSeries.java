@@ -0,0 +1,382 @@
+package db.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Time series of bucket summaries for a single resolution. Summaries are grouped in fixed-size
+ * time chunks: the newest chunk is kept as an uncompressed head so it can be appended and merged into
+ * cheaply, older chunks are sealed into immutable {@link GorillaChunk}s. Sealed chunks may be cold,
+ * their words in a block file of the cold tier; they are read like the others, and a write into one
+ * re-encodes it on the heap.
+ */
+class ChunkedSeries {
+    static final int BUCKETS_PER_CHUNK = 720;
+    private static final int INITIAL_HEAD_CAPACITY = 8;
+    private static final int HEAD_OVERHEAD_BYTES = 96;
+    // A bucket plus its five summary values
+    private static final int HEAD_BYTES_PER_BUCKET = 48;
+    // TreeMap.Entry plus the boxed chunk id
+    private static final int CHUNK_ENTRY_OVERHEAD_BYTES = 56;
+
+    private final TreeMap<Long, GorillaChunk> sealedChunks = new TreeMap<>();
+    private long headChunkId = Long.MIN_VALUE;
+    private SummaryColumns head = new SummaryColumns(INITIAL_HEAD_CAPACITY);
+    private long evictedBefore = Long.MIN_VALUE;
+    // Samples before it were handed to rollUp
+    private long rollupWatermark = Long.MIN_VALUE;
+
+    // Adds a single sample to the bucket
+    boolean merge(long timestamp, double value) {
+        return merge(timestamp, 1, value, value, value, value);
+    }
+
+    /**
+     * Folds the summary into the one of the bucket, creating it if needed.
+     *
+     * @return true if the bucket lies below the rollup watermark, so rollUp will never see it
+     */
+    synchronized boolean merge(long timestamp, long count, double sum, double min, double max, double last) {
+        if (timestamp < evictedBefore) return false;
+
+        long chunkId = Math.floorDiv(timestamp, BUCKETS_PER_CHUNK);
+        if (chunkId > headChunkId) {
+            moveHeadTo(chunkId);
+        }
+
+        if (chunkId == headChunkId) {
+            mergeIntoHead(timestamp, count, sum, min, max, last, false);
+        } else {
+            mergeIntoSealed(chunkId, timestamp, count, sum, min, max, last);
+        }
+        return timestamp < rollupWatermark;
+    }
+
+    // Builds the series from sorted, distinct summaries without going through merge, replacing the
+    // cold chunks attached before the snapshot was loaded. Summaries are merged one by one if the
+    // series already holds data on the heap.
+    synchronized void load(SummaryColumns summaries) {
+        if (head.size > 0 || sealedChunks.values().stream().anyMatch(chunk -> !chunk.isCold())) {
+            summaries.forEach(this::merge);
+            return;
+        }
+
+        int size = summaries.size;
+        int start = 0;
+        while (start < size) {
+            long chunkId = Math.floorDiv(summaries.buckets[start], BUCKETS_PER_CHUNK);
+            int end = start + 1;
+            while (end < size && Math.floorDiv(summaries.buckets[end], BUCKETS_PER_CHUNK) == chunkId) {
+                end++;
+            }
+
+            if (end < size) {
+                sealedChunks.put(chunkId, GorillaChunk.encode(summaries, start, end));
+            } else {
+                headChunkId = chunkId;
+                head = summaries.copy(start, end, INITIAL_HEAD_CAPACITY);
+                sealedChunks.remove(chunkId);
+            }
+            start = end;
+        }
+    }
+
+    // Sets the given sorted, distinct summaries, replacing the ones already stored for those buckets
+    synchronized void overwrite(SummaryColumns summaries) {
+        int size = summaries.size;
+        int start = 0;
+        while (start < size && summaries.buckets[start] < evictedBefore) {
+            start++;
+        }
+
+        while (start < size) {
+            long chunkId = Math.floorDiv(summaries.buckets[start], BUCKETS_PER_CHUNK);
+            int end = start + 1;
+            while (end < size && Math.floorDiv(summaries.buckets[end], BUCKETS_PER_CHUNK) == chunkId) {
+                end++;
+            }
+
+            if (chunkId >= headChunkId) {
+                if (chunkId > headChunkId) {
+                    moveHeadTo(chunkId);
+                }
+                for (int i = start; i < end; i++) {
+                    mergeIntoHead(summaries.buckets[i], summaries.counts[i], summaries.sums[i],
+                        summaries.mins[i], summaries.maxs[i], summaries.lasts[i], true);
+                }
+            } else {
+                overwriteSealed(chunkId, summaries, start, end);
+            }
+            start = end;
+        }
+    }
+
+    // Streams every summary with from <= bucket <= to in bucket order
+    void forEach(long from, long to, SummaryConsumer consumer) {
+        forEach(from, to, false, consumer);
+    }
+
+    // Streams the summaries in range, skipping the cold chunks when hotOnly is set
+    void forEach(long from, long to, boolean hotOnly, SummaryConsumer consumer) {
+        View view;
+        synchronized (this) {
+            view = capture(from, to, hotOnly);
+        }
+        if (view != null) {
+            view.forEach(consumer);
+        }
+    }
+
+    // Streams the summaries from the rollup watermark up to, excluding, until and moves the watermark to until
+    void rollUp(long until, SummaryConsumer consumer) {
+        View view;
+        synchronized (this) {
+            if (until <= rollupWatermark) return;
+            view = capture(rollupWatermark, until - 1, false);
+            rollupWatermark = until;
+        }
+        if (view != null) {
+            view.forEach(consumer);
+        }
+    }
+
+    synchronized long rollupWatermark() {
+        return rollupWatermark;
+    }
+
+    // Marks the samples before the timestamp as rolled up, used once restored data already holds their rollups
+    synchronized void advanceRollupWatermark(long timestamp) {
+        rollupWatermark = Math.max(rollupWatermark, timestamp);
+    }
+
+    synchronized long evictedBefore() {
+        return evictedBefore;
+    }
+
+    // Hides every sample older than cutoff. Memory is released a whole chunk at a time, once every
+    // sample of the chunk has expired; the expired samples of a straddling chunk stay until then.
+    synchronized void dropBefore(long cutoff) {
+        if (cutoff <= evictedBefore) return;
+        evictedBefore = cutoff;
+
+        long cutoffChunkId = Math.floorDiv(cutoff, BUCKETS_PER_CHUNK);
+        sealedChunks.headMap(cutoffChunkId).clear();
+        var straddling = sealedChunks.get(cutoffChunkId);
+        if (straddling != null && straddling.maxTimestamp() < cutoff) {
+            sealedChunks.remove(cutoffChunkId);
+        }
+
+        if (head.size > 0 && head.buckets[head.size - 1] < cutoff) {
+            head = new SummaryColumns(INITIAL_HEAD_CAPACITY);
+        }
+    }
+
+    synchronized long sampleCount() {
+        long count = head.size;
+        for (var chunk : sealedChunks.values()) {
+            count += chunk.count();
+        }
+        return count;
+    }
+
+    synchronized long sizeInBytes() {
+        long bytes = HEAD_OVERHEAD_BYTES + (long) HEAD_BYTES_PER_BUCKET * head.capacity();
+        for (var chunk : sealedChunks.values()) {
+            bytes += CHUNK_ENTRY_OVERHEAD_BYTES + chunk.sizeInBytes();
+        }
+        return bytes;
+    }
+
+    synchronized long coldBytes() {
+        long bytes = 0;
+        for (var chunk : sealedChunks.values()) {
+            bytes += chunk.coldBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Sealed chunks still on the heap whose id is below beforeChunkId, except the ones with an id
+     * within [skipFrom, skipTo], in chunk id order.
+     */
+    synchronized List<Map.Entry<Long, GorillaChunk>> heapChunks(long beforeChunkId, long skipFrom, long skipTo) {
+        List<Map.Entry<Long, GorillaChunk>> chunks = new ArrayList<>();
+        for (var entry : sealedChunks.headMap(beforeChunkId).entrySet()) {
+            long chunkId = entry.getKey();
+            if (!entry.getValue().isCold() && (chunkId < skipFrom || chunkId > skipTo)) {
+                chunks.add(Map.entry(chunkId, entry.getValue()));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Swaps a chunk for its cold copy, unless it was rewritten or dropped since it was copied.
+     *
+     * @return true if the cold copy is now the chunk
+     */
+    synchronized boolean replace(long chunkId, GorillaChunk expected, GorillaChunk cold) {
+        if (sealedChunks.get(chunkId) != expected) return false;
+
+        sealedChunks.put(chunkId, cold);
+        return true;
+    }
+
+    // Adds a cold chunk read from a block file on restore, replacing an older copy of the chunk
+    synchronized void attach(long chunkId, GorillaChunk cold) {
+        if (cold.maxTimestamp() < evictedBefore || chunkId == headChunkId) return;
+        sealedChunks.put(chunkId, cold);
+    }
+
+    // Copies out what a read of [from, to] needs, sealed chunks are immutable and shared. Caller holds the lock.
+    private View capture(long from, long to, boolean hotOnly) {
+        from = Math.max(from, evictedBefore);
+        if (from > to) return null;
+
+        var chunks = sealedChunks
+            .subMap(Math.floorDiv(from, BUCKETS_PER_CHUNK), true, Math.floorDiv(to, BUCKETS_PER_CHUNK), true)
+            .values()
+            .stream()
+            .filter(chunk -> !hotOnly || !chunk.isCold())
+            .toArray(GorillaChunk[]::new);
+
+        return new View(from, to, chunks, head.copy(lowerBound(from), upperBound(to), 0));
+    }
+
+    private record View(long from, long to, GorillaChunk[] chunks, SummaryColumns head) {
+        void forEach(SummaryConsumer consumer) {
+            for (var chunk : chunks) {
+                if (chunk.maxTimestamp() < from || chunk.minTimestamp() > to) continue;
+
+                var decoder = chunk.decoder();
+                while (decoder.next()) {
+                    long timestamp = decoder.timestamp();
+                    if (timestamp > to) break;
+                    if (timestamp >= from) decoder.emit(consumer);
+                }
+            }
+
+            head.forEach(consumer);
+        }
+    }
+
+    private void sealHead() {
+        if (head.size == 0) return;
+
+        sealedChunks.put(headChunkId, GorillaChunk.encode(head, 0, head.size));
+        head = new SummaryColumns(INITIAL_HEAD_CAPACITY);
+    }
+
+    // Seals the head and starts the chunk's one. A chunk already sealed under that id, only possible
+    // for a cold chunk attached on restore, is decoded back into the head.
+    private void moveHeadTo(long chunkId) {
+        sealHead();
+        headChunkId = chunkId;
+
+        var sealed = sealedChunks.remove(chunkId);
+        if (sealed != null) {
+            head = new SummaryColumns(Math.max(INITIAL_HEAD_CAPACITY, sealed.count()));
+            var decoder = sealed.decoder();
+            while (decoder.next()) {
+                decoder.emit(head);
+            }
+        }
+    }
+
+    private void mergeIntoHead(long timestamp, long count, double sum, double min, double max, double last, boolean replace) {
+        int index = head.size == 0 || head.buckets[head.size - 1] < timestamp
+            ? -(head.size + 1)
+            : Arrays.binarySearch(head.buckets, 0, head.size, timestamp);
+
+        if (index >= 0) {
+            if (replace) {
+                head.set(index, timestamp, count, sum, min, max, last);
+            } else {
+                head.combine(index, count, sum, min, max, last);
+            }
+            return;
+        }
+
+        head.insert(-index - 1, BUCKETS_PER_CHUNK, timestamp, count, sum, min, max, last);
+    }
+
+    // Out of order write into an already sealed chunk: decode, merge and re-encode it
+    private void mergeIntoSealed(long chunkId, long timestamp, long count, double sum, double min, double max, double last) {
+        var chunk = sealedChunks.get(chunkId);
+        var merged = new SummaryColumns(chunk == null ? 1 : chunk.count() + 1);
+        if (chunk != null) {
+            var decoder = chunk.decoder();
+            while (decoder.next()) {
+                decoder.emit(merged);
+            }
+        }
+
+        int index = Arrays.binarySearch(merged.buckets, 0, merged.size, timestamp);
+        if (index >= 0) {
+            merged.combine(index, count, sum, min, max, last);
+        } else {
+            merged.insert(-index - 1, merged.size + 1, timestamp, count, sum, min, max, last);
+        }
+
+        sealedChunks.put(chunkId, GorillaChunk.encode(merged, 0, merged.size));
+    }
+
+    // Decodes a sealed chunk once, replaces the given summaries in it and re-encodes it
+    private void overwriteSealed(long chunkId, SummaryColumns summaries, int from, int to) {
+        var chunk = sealedChunks.get(chunkId);
+        int existing = chunk == null ? 0 : chunk.count();
+        var merged = new SummaryColumns(existing + to - from);
+        int next = from;
+
+        if (chunk != null) {
+            var decoder = chunk.decoder();
+            while (decoder.next()) {
+                long timestamp = decoder.timestamp();
+                while (next < to && summaries.buckets[next] < timestamp) {
+                    copy(summaries, next++, merged);
+                }
+                if (next < to && summaries.buckets[next] == timestamp) {
+                    copy(summaries, next++, merged);
+                    continue;
+                }
+                decoder.emit(merged);
+            }
+        }
+        while (next < to) {
+            copy(summaries, next++, merged);
+        }
+
+        sealedChunks.put(chunkId, GorillaChunk.encode(merged, 0, merged.size));
+    }
+
+    private static void copy(SummaryColumns from, int index, SummaryColumns to) {
+        to.accept(from.buckets[index], from.counts[index], from.sums[index], from.mins[index], from.maxs[index], from.lasts[index]);
+    }
+
+    // Index of the first head summary with bucket >= the given one
+    private int lowerBound(long timestamp) {
+        int low = 0;
+        int high = head.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (head.buckets[mid] < timestamp) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // Index of the first head summary with bucket > the given one
+    private int upperBound(long timestamp) {
+        int low = 0;
+        int high = head.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (head.buckets[mid] <= timestamp) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,302 @@
+package db.database;
+
+import db.TSDBConfiguration;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The cold tier. Sealed chunks older than the configured age are written to immutable block files,
+ * in one directory per shard below the configured path, and swapped in their series for views of
+ * the file's memory mapping: they leave the heap while reads merge them with the hot chunks as
+ * before. Only chunks the snapshot chain already holds are moved, see
+ * {@link MetricStore#coldCandidates}, and a block file is forced to disk and renamed into place
+ * before any of its chunks is swapped. Snapshots skip cold chunks; on startup the block files are
+ * attached first and the snapshot chain is loaded over them. A block file is deleted once every
+ * chunk in it is past the retention of its resolution.
+ */
+@Slf4j
+@Service
+public class ColdStorage {
+    // The index has to fit in the 2 GB a block file can map as well
+    private static final long MAX_BLOCK_BYTES = 3L << 29;
+
+    // Null when no path is configured
+    private final Path[] shardPaths;
+    private final long ageMs;
+    private final long maxBlockBytes;
+    private final Resolutions resolutions;
+    private final TSDBMetrics metrics;
+    // Block files written or attached, in no particular order
+    private final List<Block> blocks = new ArrayList<>();
+    private long lastFileTime;
+
+    // A block file, and when every chunk in it has expired
+    private record Block(Path path, long size, long expiresAt) {
+    }
+
+    // A chunk written to the block file being built, to be swapped once the file is in place
+    private record Spilled(MetricStore store, BlockFile.Chunk chunk, long wordOffset) {
+    }
+
+    public ColdStorage(TSDBConfiguration configuration, Resolutions resolutions, TSDBMetrics metrics) throws IOException {
+        var properties = configuration.coldStorage();
+        this.resolutions = resolutions;
+        this.metrics = metrics;
+        this.ageMs = properties.ageMs();
+        this.maxBlockBytes = Math.min(properties.maxBlockBytes(), MAX_BLOCK_BYTES);
+
+        if (properties.path() == null || properties.path().isBlank()) {
+            if (ageMs > 0) {
+                throw new IllegalStateException("configuration.cold-storage.path must be set when age-ms is");
+            }
+            this.shardPaths = null;
+            return;
+        }
+
+        Path root = Paths.get(properties.path());
+        Files.createDirectories(root);
+        int shardCount = Math.max(1, configuration.shards());
+        FileUtils.checkShardLayout(root, shardCount);
+        this.shardPaths = new Path[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            shardPaths[shard] = FileUtils.shardDirectory(root, shard, shardCount);
+            Files.createDirectories(shardPaths[shard]);
+        }
+    }
+
+    public boolean isEnabled() {
+        return shardPaths != null && ageMs > 0;
+    }
+
+    /**
+     * Attaches the chunks of every block file to their series, oldest file first so the latest copy
+     * of a chunk wins. Expired and incomplete block files are deleted.
+     */
+    public synchronized void attach(InMemoryTSDB tsdb) throws IOException {
+        if (shardPaths == null) return;
+
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        int files = 0;
+        long chunks = 0;
+        for (var shardPath : shardPaths) {
+            for (var file : blockFiles(shardPath)) {
+                BlockFile block;
+                List<BlockFile.SeriesEntry> entries;
+                try {
+                    block = BlockFile.open(file);
+                    entries = block.readIndex(resolutions);
+                } catch (IOException e) {
+                    log.warn("Skipping unreadable block file {}", file, e);
+                    continue;
+                }
+
+                long expiresAt = Long.MIN_VALUE;
+                for (var entry : entries) {
+                    for (var chunk : entry.chunks()) {
+                        expiresAt = Math.max(expiresAt, expiresAt(chunk));
+                    }
+                }
+                if (expiresAt <= now) {
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+
+                for (var entry : entries) {
+                    var store = tsdb.getOrCreateSeries(entry.metricName(), entry.tags()).getStore();
+                    for (var chunk : entry.chunks()) {
+                        store.attachCold(chunk.resolution(), chunk.chunkId(), chunk.chunk());
+                        chunks++;
+                    }
+                }
+                blocks.add(new Block(file, Files.size(file), expiresAt));
+                lastFileTime = Math.max(lastFileTime, fileTime(file));
+                files++;
+            }
+        }
+        log.info("Attached {} cold chunks of {} block files in {} ms", chunks, files, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Moves the chunks that turned cold since the previous run to new block files and deletes the
+     * block files whose chunks have all expired.
+     */
+    public synchronized void spill(InMemoryTSDB tsdb, long nowMillis) throws IOException {
+        if (!isEnabled()) return;
+
+        long start = System.nanoTime();
+        // A shard failing leaves the others to be spilled
+        IOException failure = null;
+        for (int shard = 0; shard < shardPaths.length; shard++) {
+            try {
+                spill(tsdb, shard, nowMillis - ageMs);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        deleteExpired(nowMillis);
+        metrics.getColdSpills().recordSince(start);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Bytes of the block files in use
+    public synchronized long blockBytes() {
+        long bytes = 0;
+        for (var block : blocks) {
+            bytes += block.size();
+        }
+        return bytes;
+    }
+
+    private void spill(InMemoryTSDB tsdb, int shard, long cutoffMillis) throws IOException {
+        BlockFileWriter writer = null;
+        Path path = null;
+        List<Spilled> spilled = new ArrayList<>();
+        try {
+            for (var series : tsdb.getSeries(shard)) {
+                var store = series.getStore();
+                List<BlockFile.Chunk> chunks = new ArrayList<>();
+                for (var resolution : resolutions.all()) {
+                    for (var candidate : store.coldCandidates(resolution, cutoffMillis)) {
+                        chunks.add(new BlockFile.Chunk(resolution, candidate.getKey(), candidate.getValue()));
+                    }
+                }
+                if (chunks.isEmpty()) continue;
+
+                if (writer == null) {
+                    path = nextPath(shard);
+                    writer = new BlockFileWriter(tempPath(path));
+                }
+                long[] offsets = writer.write(series, chunks);
+                for (int i = 0; i < offsets.length; i++) {
+                    spilled.add(new Spilled(store, chunks.get(i), offsets[i]));
+                }
+
+                if (writer.size() >= maxBlockBytes) {
+                    var full = writer;
+                    writer = null;
+                    seal(full, path, spilled);
+                    spilled.clear();
+                }
+            }
+            if (writer != null) {
+                var last = writer;
+                writer = null;
+                seal(last, path, spilled);
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+                Files.deleteIfExists(tempPath(path));
+            }
+        }
+    }
+
+    // Completes the block file, puts it in place and swaps the chunks written to it for their mapped copies
+    private void seal(BlockFileWriter writer, Path path, List<Spilled> spilled) throws IOException {
+        Path tempPath = tempPath(path);
+        try {
+            writer.close();
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+
+        var block = BlockFile.open(path);
+        int swapped = 0;
+        long expiresAt = Long.MIN_VALUE;
+        for (var entry : spilled) {
+            var chunk = entry.chunk();
+            var heapChunk = chunk.chunk();
+            var cold = block.chunk(entry.wordOffset(), heapChunk.words().capacity(), heapChunk.count(),
+                heapChunk.minTimestamp(), heapChunk.maxTimestamp());
+            if (entry.store().replaceWithCold(chunk.resolution(), chunk.chunkId(), heapChunk, cold)) {
+                swapped++;
+            }
+            expiresAt = Math.max(expiresAt, expiresAt(chunk));
+        }
+        long size = Files.size(path);
+        blocks.add(new Block(path, size, expiresAt));
+        metrics.getColdChunks().add(swapped);
+
+        log.info("Wrote block file {} with {} chunks ({} bytes), {} moved off the heap", path, spilled.size(), size, swapped);
+    }
+
+    private void deleteExpired(long nowMillis) {
+        for (Iterator<Block> iterator = blocks.iterator(); iterator.hasNext(); ) {
+            var block = iterator.next();
+            if (block.expiresAt() > nowMillis) continue;
+
+            // Chunks of the file still referenced keep reading from its mapping
+            try {
+                Files.deleteIfExists(block.path());
+                iterator.remove();
+            } catch (IOException e) {
+                log.warn("Could not delete expired block file {}", block.path(), e);
+            }
+        }
+    }
+
+    // The time the last bucket of the chunk leaves its resolution's retention
+    private static long expiresAt(BlockFile.Chunk chunk) {
+        var resolution = chunk.resolution();
+        return (chunk.chunkId() + 1) * ChunkedSeries.BUCKETS_PER_CHUNK * resolution.widthMs() + resolution.retentionMs();
+    }
+
+    // Named by creation time, later files hold later copies of a chunk
+    private Path nextPath(int shard) {
+        lastFileTime = Math.max(System.currentTimeMillis(), lastFileTime + 1);
+        return shardPaths[shard].resolve(lastFileTime + BlockFormat.SUFFIX);
+    }
+
+    private static Path tempPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    // The complete block files of the directory, oldest first; leftovers of an interrupted spill are deleted
+    private static List<Path> blockFiles(Path directory) throws IOException {
+        File[] temps = directory.toFile().listFiles((dir, name) -> name.endsWith(BlockFormat.SUFFIX + ".tmp"));
+        if (temps != null) {
+            for (var temp : temps) {
+                Files.deleteIfExists(temp.toPath());
+            }
+        }
+
+        File[] files = directory.toFile().listFiles((dir, name) -> name.endsWith(BlockFormat.SUFFIX));
+        if (files == null) {
+            return List.of();
+        }
+        return Arrays.stream(files)
+            .map(File::toPath)
+            .sorted(Comparator.comparingLong(ColdStorage::fileTime))
+            .toList();
+    }
+
+    private static long fileTime(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - BlockFormat.SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package db.database;
 
+import db.TSDBConfiguration;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
@@ -9,41 +10,79 @@ import java.io.IOException;
 @Slf4j
 public class DefaultTSDBBootstrapper implements TSDBBootstrapper {
     private final SnapshotManager snapshotManager;
-    private final WriteAheadLog writeAheadLog;
+    private final ColdStorage coldStorage;
+    private final ShardedWriteAheadLog writeAheadLog;
     private final RetentionPolicy retentionPolicy;
+    private final Resolutions resolutions;
+    private final TSDBMetrics metrics;
+    private final int replayParallelism;
 
     public DefaultTSDBBootstrapper(SnapshotManager snapshotManager,
-                                   WriteAheadLog writeAheadLog,
-                                   RetentionPolicy retentionPolicy) {
+                                   ColdStorage coldStorage,
+                                   ShardedWriteAheadLog writeAheadLog,
+                                   RetentionPolicy retentionPolicy,
+                                   Resolutions resolutions,
+                                   TSDBConfiguration configuration,
+                                   TSDBMetrics metrics) {
         this.snapshotManager = snapshotManager;
+        this.coldStorage = coldStorage;
         this.writeAheadLog = writeAheadLog;
         this.retentionPolicy = retentionPolicy;
+        this.resolutions = resolutions;
+        this.metrics = metrics;
+        int configured = configuration.walProperties().replayParallelism();
+        this.replayParallelism = configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
     }
 
     @Override
     public InMemoryTSDB restore() throws IOException {
-        InMemoryTSDB snapshot = snapshotManager.load(retentionPolicy, writeAheadLog);
-        long latestTimeStamp;
-
-        if (snapshot == null) {
-            snapshot = new InMemoryTSDB(retentionPolicy, writeAheadLog);
-            latestTimeStamp = Long.MIN_VALUE;
-        } else {
-            latestTimeStamp = snapshot.getLatestTimestamp();
+        var snapshot = new InMemoryTSDB(resolutions, retentionPolicy, writeAheadLog);
+        // Cold chunks first, the snapshot chain holds the chunks written since they were moved
+        coldStorage.attach(snapshot);
+        snapshotManager.load(snapshot);
+
+        // Each shard's WAL from the checkpoint of the shard's own snapshot
+        long start = System.nanoTime();
+        long replayed = 0;
+        var shards = writeAheadLog.shards();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            var checkpoint = snapshotManager.checkpoint(shard);
+            var shardLog = shards.get(shard);
+            replayed += replayParallelism > 1
+                    ? new ParallelWALReplayer(snapshot, replayParallelism).replay(shardLog.segmentsFrom(checkpoint), checkpoint)
+                    : replaySequentially(snapshot, shardLog, checkpoint);
+            shardLog.startAfter(lastSequence(snapshot, shard, checkpoint));
         }
+        long elapsedNanos = Math.max(1, System.nanoTime() - start);
+        metrics.getReplayedEntries().set(replayed);
+        metrics.getReplayNanos().set(elapsedNanos);
+
+        log.info("Bootstrapped TSDB with snapshot and replayed {} WAL entries of {} shard(s) in {} ms ({} entries/s, parallelism {})",
+                replayed, shards.size(), elapsedNanos / 1_000_000, replayed * 1_000_000_000L / elapsedNanos, replayParallelism);
+        return snapshot;
+    }
 
-        var iterator = writeAheadLog.readFrom(latestTimeStamp);
+    private long replaySequentially(InMemoryTSDB snapshot, WriteAheadLog shardLog, WALCheckpoint checkpoint) throws IOException {
+        var iterator = shardLog.readFrom(checkpoint);
 
-        int replayed = 0;
+        long replayed = 0;
         while (iterator.hasNext()) {
             var next = iterator.next();
-            snapshot.putInternal(next.metricName(), next.label(), next.timestamp(), next.value());
-            replayed++;
+            var series = snapshot.getOrCreateSeries(next.metricName(), next.label().tagsView());
+            if (snapshot.replay(series, next.sequence(), next.timestamp(), next.value())) {
+                replayed++;
+            }
         }
+        return replayed;
+    }
 
-        log.info("Bootstrapped TSDB with snapshot and replayed {} WAL entries", replayed);
-        return snapshot;
-
+    // Highest sequence number the restored shard holds, new WAL entries are numbered after it
+    private static long lastSequence(InMemoryTSDB snapshot, int shard, WALCheckpoint checkpoint) {
+        long last = checkpoint.sequence();
+        for (var series : snapshot.getSeries(shard)) {
+            last = Math.max(last, series.getStore().getAppliedSequence());
+        }
+        return last;
     }
 
     @Override
@@ -0,0 +1,108 @@
+package db.database;
+
+import db.model.DataPoint;
+import db.model.Downsampling;
+import lombok.experimental.UtilityClass;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thins the points of a series, sorted by timestamp, down to a point budget. Both methods keep the
+ * first and the last point and only ever return points of the series, never averaged ones, so the
+ * bucket timestamps stay valid for the resolution they were read at.
+ */
+@UtilityClass
+public class Downsampler {
+
+    /**
+     * @return the points themselves if they fit the budget, otherwise a new list of at most
+     * maxPoints of them; maxPoints is at least 2
+     */
+    public static List<DataPoint> downsample(List<DataPoint> points, int maxPoints, Downsampling method) {
+        if (points.size() <= maxPoints) {
+            return points;
+        }
+        if (maxPoints < 3) {
+            return List.of(points.get(0), points.get(points.size() - 1));
+        }
+        return switch (method) {
+            case LTTB -> lttb(points, maxPoints);
+            case MINMAX -> minMax(points, maxPoints);
+        };
+    }
+
+    // Picks, slice by slice, the point forming the largest triangle with the point picked in the
+    // previous slice and the average of the next slice
+    private static List<DataPoint> lttb(List<DataPoint> points, int maxPoints) {
+        int size = points.size();
+        List<DataPoint> sampled = new ArrayList<>(maxPoints);
+        sampled.add(points.get(0));
+
+        // The points between the first and the last are split into maxPoints - 2 slices
+        double sliceSize = (double) (size - 2) / (maxPoints - 2);
+        var previous = points.get(0);
+        for (int slice = 0; slice < maxPoints - 2; slice++) {
+            int nextFrom = (int) ((slice + 1) * sliceSize) + 1;
+            int nextTo = Math.min((int) ((slice + 2) * sliceSize) + 1, size);
+            double averageTimestamp = 0;
+            double averageValue = 0;
+            for (int i = nextFrom; i < nextTo; i++) {
+                averageTimestamp += points.get(i).timestamp();
+                averageValue += points.get(i).value();
+            }
+            averageTimestamp /= nextTo - nextFrom;
+            averageValue /= nextTo - nextFrom;
+
+            int from = (int) (slice * sliceSize) + 1;
+            int to = nextFrom;
+            var picked = points.get(from);
+            double largestArea = -1;
+            for (int i = from; i < to; i++) {
+                var point = points.get(i);
+                // Twice the triangle's area, only compared
+                double area = Math.abs((previous.timestamp() - averageTimestamp) * (point.value() - previous.value())
+                    - (previous.timestamp() - point.timestamp()) * (averageValue - previous.value()));
+                if (area > largestArea) {
+                    largestArea = area;
+                    picked = point;
+                }
+            }
+            sampled.add(picked);
+            previous = picked;
+        }
+
+        sampled.add(points.get(size - 1));
+        return sampled;
+    }
+
+    // Keeps the lowest and the highest point of each of (maxPoints - 2) / 2 slices, in timestamp order
+    private static List<DataPoint> minMax(List<DataPoint> points, int maxPoints) {
+        int size = points.size();
+        List<DataPoint> sampled = new ArrayList<>(maxPoints);
+        sampled.add(points.get(0));
+
+        int slices = (maxPoints - 2) / 2;
+        double sliceSize = (double) (size - 2) / slices;
+        for (int slice = 0; slice < slices; slice++) {
+            int from = (int) (slice * sliceSize) + 1;
+            int to = Math.min((int) ((slice + 1) * sliceSize) + 1, size - 1);
+            if (from >= to) continue;
+
+            int min = from;
+            int max = from;
+            for (int i = from + 1; i < to; i++) {
+                double value = points.get(i).value();
+                if (value < points.get(min).value()) min = i;
+                if (value > points.get(max).value()) max = i;
+            }
+            sampled.add(points.get(Math.min(min, max)));
+            if (min != max) {
+                sampled.add(points.get(Math.max(min, max)));
+            }
+        }
+
+        sampled.add(points.get(size - 1));
+        return sampled;
+    }
+}
@@ -1,34 +1,18 @@
 package db.database;
 
-import db.model.Resolution;
 import org.springframework.stereotype.Service;
-import db.TSDBConfiguration;
-
-import java.util.Map;
-import java.util.concurrent.ConcurrentSkipListMap;
 
 @Service
 public class EvictOldDataPolicy implements RetentionPolicy {
-    private final long retentionMillis;
-
-    public EvictOldDataPolicy(TSDBConfiguration configuration) {
-        this.retentionMillis = configuration.retentionMs();
-    }
-
+    // Every resolution keeps its buckets for its own retention period
     public void applyRetention(MetricStore metricStore, long currentTimestampMillis) {
-        metricStore
-            .getMetricsForRetention()
-            .entrySet()
-            .parallelStream()
-            .forEach(entry -> applyRetention(entry, currentTimestampMillis));
-    }
-
-    void applyRetention(Map.Entry<Resolution, ConcurrentSkipListMap<Long, Double>> metricStoreEntry, long currentTimestampMillis) {
-        long cutoffTime = currentTimestampMillis - retentionMillis;
-        long normalizedCutoff = MetricUtils.normalizeTimestamp(cutoffTime, metricStoreEntry.getKey());
+        for (var resolution : metricStore.getResolutions()) {
+            long cutoffTime = currentTimestampMillis - resolution.retentionMs();
+            long normalizedCutoff = MetricUtils.normalizeTimestamp(cutoffTime, resolution);
 
-        if (normalizedCutoff > 0) {
-            metricStoreEntry.getValue().headMap(normalizedCutoff).clear();
+            if (normalizedCutoff > 0) {
+                metricStore.dropBefore(resolution, normalizedCutoff);
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -7,8 +7,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.regex.Matcher;
@@ -23,15 +22,8 @@ public class FileUtils {
     public static Integer findLatestLogFile(String path) {
         File directory = new File(path);
 
-        long cutoff = LocalDateTime.now()
-            .minusDays(14)
-            .atZone(ZoneId.systemDefault())
-            .toInstant()
-            .toEpochMilli();
-
-        File[] files = directory.listFiles((dir, name) ->
-            name.matches(".*_\\d+\\.log") && new File(dir, name).lastModified() > cutoff
-        );
+        // Every numbered segment counts however old, the next one is numbered after all of them
+        File[] files = directory.listFiles((dir, name) -> name.matches(".*_\\d+\\.log"));
 
         if (files == null || files.length == 0) {
             return 0;
@@ -53,6 +45,15 @@ public class FileUtils {
         return max;
     }
 
+    // Orders WAL segments by the number in their name, metrics_10.log comes after metrics_9.log
+    public static void sortBySegmentNumber(File[] files) {
+        Pattern pattern = Pattern.compile(".*_(\\d+)\\.log");
+        Arrays.sort(files, Comparator.comparingLong(file -> {
+            Matcher matcher = pattern.matcher(file.getName());
+            return matcher.matches() ? Long.parseLong(matcher.group(1)) : Long.MAX_VALUE;
+        }));
+    }
+
     public static boolean fileExists(String path) {
         return new File(path).exists();
     }
@@ -77,6 +78,17 @@ public class FileUtils {
             long pos = length - 1;
             raf.seek(pos);
 
+            // Skip the trailing line terminators
+            while (pos > 0) {
+                int b = raf.read();
+                if (b != '\n' && b != '\r') {
+                    break;
+                }
+                raf.seek(--pos);
+            }
+            long end = pos + 1;
+            raf.seek(pos);
+
             // Move backward to find the last newline
             while (pos > 0) {
                 int b = raf.read();
@@ -86,8 +98,14 @@ public class FileUtils {
                 raf.seek(--pos);
             }
 
-            String lastLine = raf.readLine();
-            return lastLine != null ? new String(lastLine.getBytes(), StandardCharsets.UTF_8) : null;
+            raf.seek(pos);
+            int first = raf.read();
+            if (first == '\n' || first == '\r') pos++;
+
+            byte[] bytes = new byte[(int) (end - pos)];
+            raf.seek(pos);
+            raf.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
         }
     }
 
@@ -108,4 +126,41 @@ public class FileUtils {
             })).orElse(null);
 
     }
+
+    /**
+     * Directory of one shard below a WAL or snapshot root: the root itself when there is a single
+     * shard, so unsharded data keeps its layout, shard-N below it otherwise.
+     */
+    public static Path shardDirectory(Path root, int shard, int shardCount) {
+        return shardCount == 1 ? root : root.resolve("shard-" + shard);
+    }
+
+    /**
+     * Series are hashed to shards, data written with another number of shards would be read back
+     * into the wrong shards.
+     *
+     * @throws IllegalStateException if the root holds data of another number of shards
+     */
+    public static void checkShardLayout(Path root, int shardCount) {
+        File[] shardDirectories = root.toFile().listFiles((dir, name) -> name.matches("shard-\\d+"));
+        if (shardDirectories != null && shardDirectories.length > 0) {
+            // Every shard creates its directory, so a layout of n shards holds shard-0 to shard-(n-1)
+            int written = 0;
+            for (File directory : shardDirectories) {
+                written = Math.max(written, Integer.parseInt(directory.getName().substring("shard-".length())) + 1);
+            }
+            if (written != shardCount) {
+                throw new IllegalStateException(root + " holds data of " + written + " shards, " + shardCount
+                    + " are configured; configure the same number of shards as before");
+            }
+        }
+
+        File[] unsharded = root.toFile().listFiles((dir, name) ->
+            name.endsWith(".log") || name.endsWith(".snapshot") || name.endsWith(".delta") || name.endsWith(".recycled")
+                || name.endsWith(BlockFormat.SUFFIX));
+        if (shardCount > 1 && unsharded != null && unsharded.length > 0) {
+            throw new IllegalStateException(root + " holds unsharded data, it was written with a single shard;"
+                + " configure the same number of shards as before");
+        }
+    }
 }
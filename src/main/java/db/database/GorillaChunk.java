@@ -0,0 +1,255 @@
+package db.database;
+
+import java.nio.LongBuffer;
+
+/**
+ * Immutable, compressed block of bucket summaries sorted by bucket. Timestamps are stored as
+ * delta-of-delta and every value column as XOR against its previous value, as described in the
+ * Facebook Gorilla paper.
+ * <p>
+ * A summary of a single sample has min, max and last equal to its sum; it is flagged with one bit
+ * and only its sum is stored. Count, min, max and last are written for the other summaries only.
+ * <p>
+ * The words live on the heap, or in a block file of the cold tier once the chunk was spilled there
+ * (see {@link ColdStorage}). A cold chunk copies its words out of the mapping when it is decoded,
+ * the copy is a small part of the decoding cost and keeps the decoder on plain arrays.
+ */
+class GorillaChunk {
+    private static final int OBJECT_OVERHEAD_BYTES = 48;
+    // The LongBuffer view of the chunk's slice of a mapped block file
+    private static final int MAPPED_VIEW_BYTES = 64;
+
+    // One of the two is set
+    private final long[] words;
+    private final LongBuffer mappedWords;
+    private final int count;
+    private final long minTimestamp;
+    private final long maxTimestamp;
+
+    private GorillaChunk(long[] words, LongBuffer mappedWords, int count, long minTimestamp, long maxTimestamp) {
+        this.words = words;
+        this.mappedWords = mappedWords;
+        this.count = count;
+        this.minTimestamp = minTimestamp;
+        this.maxTimestamp = maxTimestamp;
+    }
+
+    static GorillaChunk encode(SummaryColumns summaries, int from, int to) {
+        if (to <= from) {
+            throw new IllegalArgumentException("Cannot encode an empty chunk");
+        }
+
+        long[] timestamps = summaries.buckets;
+        var writer = new BitWriter((to - from) / 2 + 2);
+        writer.writeBits(timestamps[from], 64);
+
+        var sums = new XorEncoder();
+        var counts = new XorEncoder();
+        var mins = new XorEncoder();
+        var maxs = new XorEncoder();
+        var lasts = new XorEncoder();
+
+        long previousTimestamp = timestamps[from];
+        long previousDelta = 0;
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                long delta = timestamps[i] - previousTimestamp;
+                writeDeltaOfDelta(writer, delta - previousDelta);
+                previousTimestamp = timestamps[i];
+                previousDelta = delta;
+            }
+
+            double sum = summaries.sums[i];
+            sums.write(writer, Double.doubleToRawLongBits(sum));
+            boolean single = summaries.counts[i] == 1
+                && summaries.mins[i] == sum && summaries.maxs[i] == sum && summaries.lasts[i] == sum;
+            writer.writeBit(!single);
+            if (!single) {
+                counts.write(writer, summaries.counts[i]);
+                mins.write(writer, Double.doubleToRawLongBits(summaries.mins[i]));
+                maxs.write(writer, Double.doubleToRawLongBits(summaries.maxs[i]));
+                lasts.write(writer, Double.doubleToRawLongBits(summaries.lasts[i]));
+            }
+        }
+
+        return new GorillaChunk(writer.toWords(), null, to - from, timestamps[from], timestamps[to - 1]);
+    }
+
+    // A chunk whose words were written to a block file, read through its mapping
+    static GorillaChunk mapped(LongBuffer words, int count, long minTimestamp, long maxTimestamp) {
+        return new GorillaChunk(null, words, count, minTimestamp, maxTimestamp);
+    }
+
+    private static void writeDeltaOfDelta(BitWriter writer, long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            writer.writeBit(false);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            writer.writeBits(0b10, 2);
+            writer.writeBits(deltaOfDelta + 63, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            writer.writeBits(0b110, 3);
+            writer.writeBits(deltaOfDelta + 255, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            writer.writeBits(0b1110, 4);
+            writer.writeBits(deltaOfDelta + 2047, 12);
+        } else {
+            writer.writeBits(0b1111, 4);
+            writer.writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    Decoder decoder() {
+        return new Decoder();
+    }
+
+    int count() {
+        return count;
+    }
+
+    long minTimestamp() {
+        return minTimestamp;
+    }
+
+    long maxTimestamp() {
+        return maxTimestamp;
+    }
+
+    boolean isCold() {
+        return mappedWords != null;
+    }
+
+    // The encoded words, a view of the mapping for a cold chunk
+    LongBuffer words() {
+        return isCold() ? mappedWords.duplicate() : LongBuffer.wrap(words);
+    }
+
+    // Heap taken by the chunk, only the view of its words once it is cold
+    long sizeInBytes() {
+        return OBJECT_OVERHEAD_BYTES + (isCold() ? MAPPED_VIEW_BYTES : 8L * words.length);
+    }
+
+    // Bytes of its block file the chunk takes, 0 while it is on the heap
+    long coldBytes() {
+        return isCold() ? 8L * mappedWords.capacity() : 0;
+    }
+
+    private long[] wordArray() {
+        if (!isCold()) return words;
+
+        long[] copy = new long[mappedWords.capacity()];
+        mappedWords.get(0, copy);
+        return copy;
+    }
+
+    // XOR state of one value column, every column starts from 0
+    private static class XorEncoder {
+        private long previousBits;
+        private int previousLeading = -1;
+        private int previousTrailing;
+
+        void write(BitWriter writer, long bits) {
+            long xor = bits ^ previousBits;
+            previousBits = bits;
+
+            if (xor == 0) {
+                writer.writeBit(false);
+                return;
+            }
+            writer.writeBit(true);
+
+            int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                writer.writeBit(false);
+                writer.writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+            } else {
+                int significant = 64 - leading - trailing;
+                writer.writeBit(true);
+                writer.writeBits(leading, 5);
+                writer.writeBits(significant - 1, 6);
+                writer.writeBits(xor >>> trailing, significant);
+                previousLeading = leading;
+                previousTrailing = trailing;
+            }
+        }
+    }
+
+    private static class XorDecoder {
+        private long bits;
+        private int leading = -1;
+        private int trailing;
+
+        long read(BitReader reader) {
+            if (!reader.readBit()) return bits;
+
+            if (reader.readBit()) {
+                leading = (int) reader.readBits(5);
+                int significant = (int) reader.readBits(6) + 1;
+                trailing = 64 - leading - significant;
+            }
+            int significant = 64 - leading - trailing;
+            bits ^= reader.readBits(significant) << trailing;
+            return bits;
+        }
+    }
+
+    // Streaming decoder, reuses its own fields so iterating a chunk allocates nothing per sample
+    class Decoder {
+        private final BitReader reader = new BitReader(wordArray());
+        private final XorDecoder sums = new XorDecoder();
+        private final XorDecoder counts = new XorDecoder();
+        private final XorDecoder mins = new XorDecoder();
+        private final XorDecoder maxs = new XorDecoder();
+        private final XorDecoder lasts = new XorDecoder();
+        private int remaining = count;
+        private long timestamp;
+        private long delta;
+        private long summaryCount;
+        private double sum;
+        private double min;
+        private double max;
+        private double last;
+
+        boolean next() {
+            if (remaining == 0) return false;
+
+            if (remaining == count) {
+                timestamp = reader.readBits(64);
+            } else {
+                delta += readDeltaOfDelta();
+                timestamp += delta;
+            }
+
+            sum = Double.longBitsToDouble(sums.read(reader));
+            if (reader.readBit()) {
+                summaryCount = counts.read(reader);
+                min = Double.longBitsToDouble(mins.read(reader));
+                max = Double.longBitsToDouble(maxs.read(reader));
+                last = Double.longBitsToDouble(lasts.read(reader));
+            } else {
+                summaryCount = 1;
+                min = sum;
+                max = sum;
+                last = sum;
+            }
+            remaining--;
+            return true;
+        }
+
+        long timestamp() {
+            return timestamp;
+        }
+
+        void emit(SummaryConsumer consumer) {
+            consumer.accept(timestamp, summaryCount, sum, min, max, last);
+        }
+
+        private long readDeltaOfDelta() {
+            if (!reader.readBit()) return 0;
+            if (!reader.readBit()) return reader.readBits(7) - 63;
+            if (!reader.readBit()) return reader.readBits(9) - 255;
+            if (!reader.readBit()) return reader.readBits(12) - 2047;
+            return reader.readBits(64);
+        }
+    }
+}
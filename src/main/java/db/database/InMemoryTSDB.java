@@ -1,59 +1,229 @@
 package db.database;
 
+import db.model.AggregateSeries;
+import db.model.Aggregation;
 import db.model.DataPoint;
 import db.model.MetricLabel;
 import db.model.Resolution;
+import db.model.SeriesPoints;
+import db.model.StorageStats;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+/**
+ * Series are hashed by metric name and labels to shards, one per WAL shard (see
+ * {@link ShardedWriteAheadLog#shards()}). A shard has its own registry, WAL and latest timestamp, so writes
+ * to different shards share no lock, no id array and no WAL writer, and snapshots checkpoint each
+ * shard on its own. Reads by label fan out to every shard and merge what they match.
+ */
 @Service
 public class InMemoryTSDB {
-    private final ConcurrentHashMap<String, Map<MetricLabel, MetricStore>> metrics;
-    private long latestTimestamp;
+    private final Resolutions resolutions;
+    private final Shard[] shards;
     private final RetentionPolicy retentionPolicy;
-    private final WriteAheadLog writeAheadLog;
+    private final ShardedWriteAheadLog writeAheadLog;
 
-    public InMemoryTSDB(RetentionPolicy retentionPolicy, WriteAheadLog writeAheadLog) {
-        this.metrics = new ConcurrentHashMap<>();
+    // Latest timestamp updated concurrently by parallel WAL replay
+    private record Shard(SeriesRegistry registry, WriteAheadLog writeAheadLog, LongAccumulator latestTimestamp) {
+    }
+
+    public InMemoryTSDB(Resolutions resolutions, RetentionPolicy retentionPolicy, ShardedWriteAheadLog writeAheadLog) {
+        this.resolutions = resolutions;
         this.retentionPolicy = retentionPolicy;
         this.writeAheadLog = writeAheadLog;
+
+        var logs = writeAheadLog == null ? Collections.<WriteAheadLog>singletonList(null) : writeAheadLog.shards();
+        var ids = new AtomicInteger();
+        this.shards = new Shard[logs.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(new SeriesRegistry(resolutions.all(), i, ids), logs.get(i), new LongAccumulator(Math::max, 0));
+        }
     }
 
-    private Map<MetricLabel, MetricStore> getMetricStoresByMetricKey(String metricKey) {
-        return metrics.getOrDefault(metricKey, Collections.emptyMap());
+    // From String and Map hash codes, which are specified, so a series lands in the same shard after a restart
+    private Shard shardOf(String metricKey, Map<String, String> labels) {
+        if (shards.length == 1) return shards[0];
+
+        int hash = 31 * metricKey.hashCode() + (labels == null ? 0 : labels.hashCode());
+        return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
     }
 
     private MetricStore getStore(String metricKey, MetricLabel metricLabel) {
-        var metricStore = getMetricStoresByMetricKey(metricKey);
-        return metricStore.get(metricLabel);
+        var series = findSeries(metricKey, metricLabel.tagsView());
+        return series != null ? series.getStore() : null;
     }
 
     // Core internal method that inserts data point without WAL or retention logic
+    public void putInternal(Series series, long timestamp, double value) {
+        var metricStore = series.getStore();
+        metricStore.addDataPoint(timestamp, value);
+        shards[series.getShard()].latestTimestamp.accumulate(metricStore.getLatestTimestamp());
+    }
+
+    // Used when restoring a snapshot of the shard, whose stores are loaded directly
+    void restoreLatestTimestamp(int shard, long timestamp) {
+        shards[shard].latestTimestamp.accumulate(timestamp);
+    }
+
     public void putInternal(String metricKey, MetricLabel metricLabel, long timestamp, double value) {
-        var labelMap = metrics.computeIfAbsent(metricKey, k -> new ConcurrentHashMap<>());
-        var metricStore = labelMap.computeIfAbsent(metricLabel, k -> new MetricStore());
+        putInternal(getOrCreateSeries(metricKey, metricLabel.tagsView()), timestamp, value);
+    }
 
-        metricStore.addDataPoint(timestamp, value);
-        latestTimestamp = Math.max(latestTimestamp, metricStore.getLatestTimestamp());
+    /**
+     * Public write API - used in normal runtime, includes WAL. Retention is applied by the background sweeper.
+     * <p>
+     * The write is logged first, so a write the WAL pushes back on is not applied either. Logging and
+     * applying happen under the monitor of the series: a series takes its writes in the order of their
+     * WAL sequence numbers, and a snapshot reading the series under the monitor holds exactly the
+     * writes up to the store's applied sequence. Room in the WAL is reserved before taking the
+     * monitor, so a full WAL keeps no snapshot or spill of the series waiting.
+     */
+    public void put(Series series, long timestamp, double value) {
+        var shard = shards[series.getShard()];
+        var metricStore = series.getStore();
+        shard.writeAheadLog.reserve(1);
+        synchronized (series) {
+            long sequence = shard.writeAheadLog.appendReserved(series, timestamp, value);
+            metricStore.addDataPoint(timestamp, value, sequence);
+        }
+        shard.latestTimestamp.accumulate(metricStore.getLatestTimestamp());
     }
 
-    // Public write API - used in normal runtime, includes WAL and retention
-    public void put(String metricKey, MetricLabel metricLabel, long timestamp, double value) {
-        putInternal(metricKey, metricLabel, timestamp, value);
+    /**
+     * Applies an entry replayed from the shard's WAL, unless the snapshot of its series holds it
+     * already. The entries of a series have to be replayed in WAL order.
+     *
+     * @return false if the entry was skipped
+     */
+    boolean replay(Series series, long sequence, long timestamp, double value) {
+        var metricStore = series.getStore();
+        synchronized (series) {
+            if (sequence > 0 && sequence <= metricStore.getAppliedSequence()) {
+                return false;
+            }
+            metricStore.addDataPoint(timestamp, value, sequence);
+        }
+        shards[series.getShard()].latestTimestamp.accumulate(metricStore.getLatestTimestamp());
+        return true;
+    }
+
+    // Sequence number of the last entry appended to the shard's WAL, snapshots are complete up to the one read before them
+    long lastSequence(int shard) {
+        var log = shards[shard].writeAheadLog;
+        return log == null ? 0 : log.lastSequence();
+    }
+
+    /**
+     * Writes the first count samples of the arrays, each logged and applied as put does. WAL room for
+     * the whole batch is reserved before any sample is applied, so a batch the WAL pushes back on is
+     * not applied at all and can be retried as a whole.
+     *
+     * @throws WALBackpressureException if the WAL of a shard has no room for the batch's samples in time
+     * @throws IllegalArgumentException if the batch's samples of a shard exceed the shard's WAL buffer
+     */
+    public void put(Series[] series, long[] timestamps, double[] values, int count) {
+        int[] shardCounts = new int[shards.length];
+        for (int i = 0; i < count; i++) {
+            shardCounts[series[i].getShard()]++;
+        }
+        reserve(shardCounts);
+
+        int i = 0;
+        while (i < count) {
+            // Runs of samples of one shard, usually the whole batch when unsharded
+            var shard = shards[series[i].getShard()];
+            long latest = 0;
+            try {
+                for (; i < count && shards[series[i].getShard()] == shard; i++) {
+                    synchronized (series[i]) {
+                        long sequence = shard.writeAheadLog.appendReserved(series[i], timestamps[i], values[i]);
+                        series[i].getStore().addDataPoint(timestamps[i], values[i], sequence);
+                    }
+                    latest = Math.max(latest, timestamps[i]);
+                }
+            } finally {
+                shard.latestTimestamp.accumulate(latest);
+            }
+        }
+    }
+
+    // In shard order, so batches reserving room in several shards never wait on each other in a circle
+    private void reserve(int[] shardCounts) {
+        int shard = 0;
+        try {
+            for (; shard < shards.length; shard++) {
+                if (shardCounts[shard] > 0) {
+                    shards[shard].writeAheadLog.reserve(shardCounts[shard]);
+                }
+            }
+        } catch (RuntimeException e) {
+            for (int reserved = 0; reserved < shard; reserved++) {
+                if (shardCounts[reserved] > 0) {
+                    shards[reserved].writeAheadLog.cancelReservation(shardCounts[reserved]);
+                }
+            }
+            throw e;
+        }
+    }
 
-        writeAheadLog.append(metricKey, metricLabel, timestamp, value);
-        retentionPolicy.applyRetention(metrics.get(metricKey).get(metricLabel), System.currentTimeMillis());
+    /**
+     * Applies retention to at most maxSeries series, in order starting at the fromIndex-th series of
+     * all shards, wrapping around to the first series once the end is reached.
+     *
+     * @return the index to resume the sweep from
+     */
+    int sweepRetention(int fromIndex, int maxSeries, long currentTimestampMillis) {
+        int[] sizes = new int[shards.length];
+        long total = 0;
+        for (int i = 0; i < shards.length; i++) {
+            sizes[i] = shards[i].registry.size();
+            total += sizes[i];
+        }
+        if (fromIndex >= total) {
+            fromIndex = 0;
+        }
+
+        int end = (int) Math.min(total, (long) fromIndex + maxSeries);
+        int index = fromIndex;
+        int offset = 0;
+        for (int i = 0; i < shards.length && index < end; i++) {
+            for (; index < end && index - offset < sizes[i]; index++) {
+                retentionPolicy.applyRetention(shards[i].registry.get(index - offset).getStore(), currentTimestampMillis);
+            }
+            offset += sizes[i];
+        }
+        return end;
+    }
+
+    // Rolls every series up to untilMillis, see MetricStore.rollUp
+    void rollUp(long untilMillis) {
+        for (var shard : shards) {
+            int size = shard.registry.size();
+            for (int index = 0; index < size; index++) {
+                shard.registry.get(index).getStore().rollUp(untilMillis);
+            }
+        }
+    }
+
+    public void put(String metricKey, MetricLabel metricLabel, long timestamp, double value) {
+        put(getOrCreateWrittenSeries(metricKey, metricLabel.tagsView()), timestamp, value);
     }
 
     public void put(String metricKey, Map<String, String> labels, long timestamp, double value) {
-        MetricLabel metricLabel = (labels == null) ? new MetricLabel(Collections.emptyMap()) : new MetricLabel(labels);
-        put(metricKey, metricLabel, timestamp, value);
+        put(getOrCreateWrittenSeries(metricKey, labels), timestamp, value);
+    }
+
+    // Waits until the writes made so far are durable, when the WAL is in a strict durability mode
+    public void awaitDurability() throws InterruptedException {
+        writeAheadLog.awaitDurability();
     }
 
     public List<DataPoint> query(String metricKey, MetricLabel metricLabel, long startTime, long endTime, Resolution resolution) {
@@ -62,21 +232,41 @@ public class InMemoryTSDB {
     }
 
     public Map<MetricLabel, List<DataPoint>> query(String metricKey, Map<String, String> labels, long startTime, long endTime, Resolution resolution) {
-        Map<MetricLabel, MetricStore> labelMetricStoreMap = getMetricStoresByMetricKey(metricKey);
-        Map<MetricLabel, List<DataPoint>> response = new HashMap<>();
-
-        labelMetricStoreMap.entrySet().parallelStream().forEach(entry -> {
-            MetricLabel label = entry.getKey();
-            if (label.containsAll(labels)) {
-                MetricStore store = entry.getValue();
-                response.put(label, store.query(startTime, endTime, resolution));
-            }
-        });
+        return matchSeries(metricKey, labels)
+            .parallelStream()
+            .collect(Collectors.toMap(
+                Series::getLabel,
+                series -> series.getStore().query(startTime, endTime, resolution)
+            ));
+    }
 
-        return response;
+    /**
+     * Lazily reads the series matching the labels: a series' points are only read once the stream
+     * gets to it, so a consumer pulling one series at a time holds one series in memory.
+     */
+    public Stream<SeriesPoints> streamQuery(String metricKey, Map<String, String> labels, long startTime, long endTime, Resolution resolution) {
+        return matchSeries(metricKey, labels)
+            .stream()
+            .map(series -> new SeriesPoints(
+                series.getMetricName(),
+                series.getLabel().tagsView(),
+                series.getStore().query(startTime, endTime, resolution)
+            ));
+    }
+
+    /**
+     * Aggregates the series matching the labels into groups, server side. Only the groups are
+     * returned, see {@link Aggregation}.
+     *
+     * @throws IllegalArgumentException if the aggregation is invalid or the range has too many buckets
+     */
+    public List<AggregateSeries> aggregate(String metricKey, Map<String, String> labels, long startTime, long endTime,
+                                           Resolution resolution, Aggregation aggregation) {
+        var aggregator = new SeriesAggregator(aggregation, resolution, startTime, endTime);
+        return aggregator.aggregate(matchSeries(metricKey, labels));
     }
 
-    // Aggregation helpers (sum, avg, min, max)
+    // Aggregation helpers (sum, avg, min, max, count, last)
     public double sum(String metricKey, MetricLabel metricLabel, long startTime, long endTime, Resolution resolution) {
         MetricStore store = getStore(metricKey, metricLabel);
         return store != null ? store.sum(startTime, endTime, resolution) : 0.0;
@@ -97,17 +287,111 @@ public class InMemoryTSDB {
         return store != null ? store.min(startTime, endTime, resolution) : 0.0;
     }
 
-    Map<String, Map<MetricLabel, MetricStore>> getMetrics() {
-        return metrics
-            .entrySet()
-            .stream()
-            .collect(Collectors.toUnmodifiableMap(
-                Map.Entry::getKey,
-                e -> Map.copyOf(e.getValue())
-            ));
+    public long count(String metricKey, MetricLabel metricLabel, long startTime, long endTime, Resolution resolution) {
+        MetricStore store = getStore(metricKey, metricLabel);
+        return store != null ? store.count(startTime, endTime, resolution) : 0;
+    }
+
+    public double last(String metricKey, MetricLabel metricLabel, long startTime, long endTime, Resolution resolution) {
+        MetricStore store = getStore(metricKey, metricLabel);
+        return store != null ? store.last(startTime, endTime, resolution) : 0.0;
+    }
+
+    Series findSeries(String metricKey, Map<String, String> labels) {
+        return shardOf(metricKey, labels).registry.find(metricKey, labels);
+    }
+
+    // The matches of every shard, shard after shard
+    List<Series> matchSeries(String metricKey, Map<String, String> labels) {
+        if (shards.length == 1) return shards[0].registry.match(metricKey, labels);
+
+        List<Series> matches = new ArrayList<>();
+        for (var shard : shards) {
+            matches.addAll(shard.registry.match(metricKey, labels));
+        }
+        return matches;
+    }
+
+    // Series of every metric and shard
+    public int seriesCount() {
+        int count = 0;
+        for (var shard : shards) {
+            count += shard.registry.size();
+        }
+        return count;
+    }
+
+    int seriesCount(String metricKey) {
+        int count = 0;
+        for (var shard : shards) {
+            count += shard.registry.seriesCount(metricKey);
+        }
+        return count;
+    }
+
+    public Resolutions getResolutions() {
+        return resolutions;
+    }
+
+    public Series getOrCreateSeries(String metricKey, Map<String, String> labels) {
+        return shardOf(metricKey, labels).registry.getOrCreate(metricKey, labels);
+    }
+
+    /**
+     * The series a client writes to. Unlike getOrCreateSeries, which restores series too, it refuses
+     * one whose metric name and labels are too large to be logged.
+     *
+     * @throws IllegalArgumentException if they exceed {@link WALFormat#MAX_SERIES_DEFINITION_BYTES}
+     */
+    public Series getOrCreateWrittenSeries(String metricKey, Map<String, String> labels) {
+        WALFormat.checkSeriesDefinition(metricKey, labels);
+        return getOrCreateSeries(metricKey, labels);
+    }
+
+    List<Series> getSeries() {
+        if (shards.length == 1) return shards[0].registry.all();
+
+        List<Series> series = new ArrayList<>();
+        for (var shard : shards) {
+            series.addAll(shard.registry.all());
+        }
+        return series;
+    }
+
+    List<Series> getSeries(int shard) {
+        return shards[shard].registry.all();
+    }
+
+    int shardCount() {
+        return shards.length;
+    }
+
+    public StorageStats storageStats() {
+        long seriesCount = 0;
+        long sampleCount = 0;
+        long storageBytes = 0;
+        long coldStorageBytes = 0;
+
+        for (var series : getSeries()) {
+            seriesCount++;
+            sampleCount += series.getStore().sampleCount();
+            storageBytes += series.getStore().sizeInBytes();
+            coldStorageBytes += series.getStore().coldBytes();
+        }
+
+        return StorageStats.of(seriesCount, sampleCount, storageBytes, coldStorageBytes);
     }
 
     public long getLatestTimestamp() {
-        return Math.min(latestTimestamp, System.currentTimeMillis());
+        long latest = 0;
+        for (var shard : shards) {
+            latest = Math.max(latest, shard.latestTimestamp.get());
+        }
+        return Math.min(latest, System.currentTimeMillis());
+    }
+
+    // Latest timestamp of the shard, recorded with its snapshots
+    long getLatestTimestamp(int shard) {
+        return Math.min(shards[shard].latestTimestamp.get(), System.currentTimeMillis());
     }
 }
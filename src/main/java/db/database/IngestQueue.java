@@ -0,0 +1,164 @@
+package db.database;
+
+import db.TSDBConfiguration;
+import db.model.IngestStats;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decouples accepting writes from applying them. Request threads submit batches, dedicated writer
+ * threads take them off a queue and write them through {@link InMemoryTSDB}, WAL first. The queue
+ * is bounded by the samples accepted but not written yet: once a batch would go over the capacity
+ * it is rejected, so callers can shed load instead of piling up work or blocking their own threads.
+ * A batch larger than the capacity is only accepted into an empty queue.
+ */
+@Slf4j
+@Service
+public class IngestQueue implements Closeable {
+    private static final long POLL_MILLIS = 100;
+
+    private final InMemoryTSDB tsdb;
+    private final TSDBMetrics metrics;
+    private final long capacity;
+    private final long retryAfterSeconds;
+    private final LinkedBlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+    // Samples of the queued batches and of those being written
+    private final AtomicLong pendingSamples = new AtomicLong();
+    private final Thread[] workers;
+    private volatile boolean running = true;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder written = new LongAdder();
+
+    // Samples to write, resolved and written on a writer thread
+    public interface Batch {
+        int size();
+
+        void writeTo(InMemoryTSDB tsdb);
+    }
+
+    private record Task(Batch batch, long acceptedAt, CompletableFuture<Void> done) {
+    }
+
+    public IngestQueue(InMemoryTSDB tsdb, TSDBConfiguration configuration, TSDBMetrics metrics) {
+        this.tsdb = tsdb;
+        this.metrics = metrics;
+        var properties = configuration.ingest();
+        this.capacity = properties.capacity();
+        this.retryAfterSeconds = properties.retryAfterSeconds();
+
+        int workerCount = properties.workers() > 0 ? properties.workers() : Runtime.getRuntime().availableProcessors();
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::drain, "ingest-writer-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues the batch for writing.
+     *
+     * @return completes once the batch is written, exceptionally if writing it failed, with a
+     * {@link WALBackpressureException} when the WAL pushed back
+     * @throws IngestRejectedException if the queue is at capacity
+     */
+    public CompletableFuture<Void> submit(Batch batch) {
+        var done = offer(batch);
+        if (done == null) {
+            rejected.increment();
+            throw new IngestRejectedException("Ingest queue full, " + pendingSamples.get() + " samples pending", retryAfterSeconds);
+        }
+        return done;
+    }
+
+    // Like submit, but returns null instead of rejecting, for callers that wait for room themselves
+    public CompletableFuture<Void> offer(Batch batch) {
+        int size = batch.size();
+        long pending;
+        do {
+            pending = pendingSamples.get();
+            if (!running || (pending > 0 && pending + size > capacity)) {
+                return null;
+            }
+        } while (!pendingSamples.compareAndSet(pending, pending + size));
+
+        var task = new Task(batch, System.nanoTime(), new CompletableFuture<>());
+        queue.add(task);
+        accepted.increment();
+        return task.done();
+    }
+
+    public IngestStats stats() {
+        var wait = metrics.getIngestWait().snapshot();
+        return new IngestStats(
+            queue.size(),
+            pendingSamples.get(),
+            capacity,
+            accepted.sum(),
+            rejected.sum(),
+            written.sum(),
+            wait.meanNanos() / 1e6,
+            wait.maxNanos() / 1e6
+        );
+    }
+
+    private void drain() {
+        while (running || !queue.isEmpty()) {
+            Task task;
+            try {
+                task = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (task == null) continue;
+
+            long start = System.nanoTime();
+            metrics.getIngestWait().record(start - task.acceptedAt());
+
+            int size = task.batch().size();
+            RuntimeException failure = null;
+            try {
+                task.batch().writeTo(tsdb);
+                written.add(size);
+                metrics.getIngestWrite().recordSince(start);
+            } catch (RuntimeException e) {
+                if (!(e instanceof WALBackpressureException)) {
+                    log.error("Failed to write an ingest batch of {} samples", size, e);
+                }
+                failure = e;
+            }
+
+            // Released before completing, a caller retrying right away finds the room
+            pendingSamples.addAndGet(-size);
+            if (failure == null) {
+                task.done().complete(null);
+            } else {
+                task.done().completeExceptionally(failure);
+            }
+        }
+    }
+
+    // Stops accepting batches and waits for the writers to write the queued ones
+    @Override
+    public void close() {
+        running = false;
+        for (var worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
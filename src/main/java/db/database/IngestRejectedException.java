@@ -0,0 +1,15 @@
+package db.database;
+
+import lombok.Getter;
+
+// Thrown by IngestQueue.submit when the queue cannot take the batch
+@Getter
+public class IngestRejectedException extends RuntimeException {
+    // When the caller should try again
+    private final long retryAfterSeconds;
+
+    public IngestRejectedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
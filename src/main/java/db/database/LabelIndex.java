@@ -0,0 +1,80 @@
+package db.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index over the label sets of a single metric: every label name=value pair maps to the
+ * postings of the series carrying it, so non-strict queries intersect postings instead of scanning.
+ */
+class LabelIndex {
+    private final Map<String, Map<String, Postings>> postings = new ConcurrentHashMap<>();
+    private volatile Series[] series = new Series[16];
+    private volatile int size;
+
+    synchronized void add(Series added) {
+        int id = size;
+        var current = series;
+        if (id == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+            series = current;
+        }
+        current[id] = added;
+
+        for (var tag : added.getLabel().tagsView().entrySet()) {
+            postings
+                .computeIfAbsent(tag.getKey(), k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(tag.getValue(), v -> new Postings())
+                .add(id);
+        }
+        size = id + 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Every series whose labels contain all the given ones
+    List<Series> match(Map<String, String> labels) {
+        List<Series> matches = new ArrayList<>();
+
+        if (labels == null || labels.isEmpty()) {
+            int count = size;
+            var current = series;
+            for (int id = 0; id < count; id++) {
+                matches.add(current[id]);
+            }
+            return matches;
+        }
+
+        List<Postings> lists = new ArrayList<>(labels.size());
+        for (var tag : labels.entrySet()) {
+            var byValue = postings.get(tag.getKey());
+            var list = byValue == null ? null : byValue.get(tag.getValue());
+            if (list == null) return matches;
+            lists.add(list);
+        }
+        lists.sort(Comparator.comparingInt(Postings::size));
+
+        var smallest = lists.get(0);
+        int count = smallest.size();
+        for (int i = 0; i < count; i++) {
+            int id = smallest.get(i);
+            if (containedInAll(lists, id)) {
+                matches.add(series[id]);
+            }
+        }
+        return matches;
+    }
+
+    private static boolean containedInAll(List<Postings> lists, int id) {
+        for (int i = 1; i < lists.size(); i++) {
+            if (!lists.get(i).contains(id)) return false;
+        }
+        return true;
+    }
+}
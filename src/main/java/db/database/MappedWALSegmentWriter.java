@@ -0,0 +1,102 @@
+package db.database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static db.database.WALFormat.putVarLong;
+
+/**
+ * Segment preallocated to a fixed size and appended to through a MappedByteBuffer, so writes are
+ * plain memory stores. The header carries the committed offset, which is advanced on every flush
+ * and tells recovery where valid data ends; whatever lies beyond it, such as records of a previous
+ * life of a recycled file, is ignored.
+ */
+class MappedWALSegmentWriter extends WALSegmentWriter {
+    // Room kept free for the largest record plus the segment end record: the definition of a new
+    // series, bounded by WALFormat.MAX_SERIES_DEFINITION_BYTES, and its first sample
+    static final int RESERVED_BYTES = 64 * 1024;
+    private static final int ZERO_FILL_CHUNK = 1024 * 1024;
+
+    private final MappedByteBuffer mapped;
+
+    MappedWALSegmentWriter(Path path, long capacity, long firstSequence) throws IOException {
+        super(path);
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            preallocate(channel, capacity);
+            // the mapping stays valid once the channel is closed
+            this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        mapped.put(WALFormat.MAGIC).put(WALFormat.MAPPED_VERSION).putLong(WALFormat.MAPPED_HEADER_SIZE);
+        begin(firstSequence);
+    }
+
+    static long segmentCapacity(long rotationByteSize) {
+        return Math.max(rotationByteSize, 2L * RESERVED_BYTES);
+    }
+
+    // Marks a segment as empty before it goes back to the recycling pool, so that a crash can never
+    // bring its old records back to life
+    static void resetForReuse(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            var header = ByteBuffer.allocate(WALFormat.MAPPED_HEADER_SIZE);
+            header.put(WALFormat.MAGIC).put(WALFormat.MAPPED_VERSION).putLong(WALFormat.MAPPED_HEADER_SIZE).flip();
+            channel.write(header, 0);
+            channel.force(false);
+        }
+    }
+
+    // Writes zeros so the blocks are allocated up front, instead of on first touch through the mapping
+    private static void preallocate(FileChannel channel, long capacity) throws IOException {
+        long position = channel.size();
+        if (position >= capacity) return;
+
+        var zeros = ByteBuffer.allocateDirect(ZERO_FILL_CHUNK);
+        while (position < capacity) {
+            zeros.clear().limit((int) Math.min(ZERO_FILL_CHUNK, capacity - position));
+            position += channel.write(zeros, position);
+        }
+        channel.force(true);
+    }
+
+    // Publishes the records written so far by advancing the committed offset
+    @Override
+    void flush() {
+        mapped.putLong(WALFormat.COMMITTED_OFFSET_POSITION, mapped.position());
+    }
+
+    @Override
+    void force() {
+        mapped.force();
+    }
+
+    @Override
+    long size() {
+        return mapped.position();
+    }
+
+    @Override
+    boolean isFull() {
+        return mapped.remaining() < RESERVED_BYTES;
+    }
+
+    @Override
+    protected void write(int length, int checksum, ByteBuffer body) throws IOException {
+        if (mapped.remaining() < length + MAX_FRAME_OVERHEAD) {
+            throw new IOException("WAL record of " + length + " bytes does not fit in segment " + path);
+        }
+
+        putVarLong(mapped, length);
+        mapped.putInt(checksum);
+        mapped.put(body);
+    }
+
+    @Override
+    protected void release() {
+        // unmapped once the buffer is garbage collected
+    }
+}
@@ -4,111 +4,453 @@ import lombok.Getter;
 import db.model.DataPoint;
 import db.model.Resolution;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.StampedLock;
 
 import static db.database.MetricUtils.normalizeTimestamp;
 
+/**
+ * The samples of one series at every resolution. Every bucket holds a summary of its samples:
+ * count, sum, min, max and the last one written. Writes only go to the finest resolution, a
+ * background rollup later combines its buckets into the coarser ones in batch. Reads of a coarser
+ * resolution add the tail of the finest one that was not rolled up yet, so they never lag behind.
+ */
 public class MetricStore {
-    private final Map<Resolution, ConcurrentSkipListMap<Long, Double>> metricStoreMap;
-    private final ConcurrentSkipListMap<Long, Double> secondlyStore;
-    private final ConcurrentSkipListMap<Long, Double> minutelyStore;
-    private final ConcurrentSkipListMap<Long, Double> hourlyStore;
+    private final List<Resolution> resolutions;
+    // One series per resolution, at the resolution's index
+    private final ChunkedSeries[] stores;
+    // Keeps reads of the coarser resolutions from seeing a rollup halfway, with its buckets
+    // neither in the tail nor in the coarser series yet, or in both
+    private final StampedLock rollupLock = new StampedLock();
 
     @Getter
     private long latestTimestamp;
 
-    public MetricStore() {
-        this.secondlyStore = new ConcurrentSkipListMap<>();
-        this.minutelyStore = new ConcurrentSkipListMap<>();
-        this.hourlyStore = new ConcurrentSkipListMap<>();
+    // Raw timestamps written since the last snapshot took the range, empty while dirtyFrom > dirtyTo
+    private long dirtyFrom = Long.MAX_VALUE;
+    private long dirtyTo = Long.MIN_VALUE;
 
-        metricStoreMap = Map.of(
-            Resolution.SECONDLY, secondlyStore,
-            Resolution.MINUTELY, minutelyStore,
-            Resolution.HOURLY, hourlyStore
-        );
+    // Counts writes; outOfOrderVersion is the last one that landed before the latest timestamp of its time
+    private long version;
+    private long outOfOrderVersion;
+
+    // WAL sequence number of the last write applied, 0 if none is known. Guarded by the monitor of
+    // the series, see InMemoryTSDB.put
+    @Getter
+    private long appliedSequence;
+
+    record DirtyRange(long from, long to) {
+    }
+
+    /**
+     * What a reader needs to tell whether results it computed are still current: the write version
+     * and latest timestamp when it read the store, and the first bucket of the resolution not yet
+     * evicted. While no out-of-order write happens, later writes only touch buckets from the
+     * latest timestamp on.
+     */
+    record WriteMark(long version, long outOfOrderVersion, long latestTimestamp, long evictedBefore) {
+    }
+
+    public MetricStore(List<Resolution> resolutions) {
+        this.resolutions = resolutions;
+        this.stores = new ChunkedSeries[resolutions.size()];
+        for (int i = 0; i < stores.length; i++) {
+            stores[i] = new ChunkedSeries();
+        }
     }
 
     void addDataPoint(long timestamp, double value) {
-        long secKey = normalizeTimestamp(timestamp, Resolution.SECONDLY);
-        secondlyStore.merge(secKey, value, Double::sum);
+        boolean late = stores[0].merge(normalizeTimestamp(timestamp, resolutions.get(0)), value);
+        if (late) {
+            // The rollup already moved past this bucket, the coarser resolutions take the sample directly
+            for (int i = 1; i < stores.length; i++) {
+                stores[i].merge(normalizeTimestamp(timestamp, resolutions.get(i)), value);
+            }
+        }
 
-        long minKey = normalizeTimestamp(timestamp, Resolution.MINUTELY);
-        minutelyStore.merge(minKey, value, Double::sum);
+        // After the data, so a snapshot or a cached result that reads the marks before this point
+        // still sees the write next time
+        markWritten(timestamp);
+    }
 
-        long hourKey = normalizeTimestamp(timestamp, Resolution.HOURLY);
-        hourlyStore.merge(hourKey, value, Double::sum);
+    // A write logged to the WAL under the given sequence number, applied in sequence order per series
+    void addDataPoint(long timestamp, double value, long sequence) {
+        addDataPoint(timestamp, value);
+        if (sequence > 0) {
+            appliedSequence = sequence;
+        }
+    }
 
+    private synchronized void markWritten(long timestamp) {
+        version++;
+        if (timestamp < latestTimestamp) {
+            outOfOrderVersion = version;
+        }
         latestTimestamp = Math.max(latestTimestamp, timestamp);
+        dirtyFrom = Math.min(dirtyFrom, timestamp);
+        dirtyTo = Math.max(dirtyTo, timestamp);
+    }
+
+    // Restored data may land anywhere in time
+    private synchronized void markRestored() {
+        version++;
+        outOfOrderVersion = version;
+    }
+
+    // Read before the data it describes
+    synchronized WriteMark writeMark(Resolution resolution) {
+        return new WriteMark(version, outOfOrderVersion, latestTimestamp, stores[resolution.index()].evictedBefore());
+    }
+
+    // Whether anything was written since the last takeDirtyRange
+    synchronized boolean isDirty() {
+        return dirtyFrom <= dirtyTo;
+    }
+
+    /**
+     * Returns the range written since the previous call and marks the store clean.
+     *
+     * @return the dirty range, or null if nothing was written
+     */
+    synchronized DirtyRange takeDirtyRange() {
+        if (dirtyFrom > dirtyTo) {
+            return null;
+        }
+        var range = new DirtyRange(dirtyFrom, dirtyTo);
+        dirtyFrom = Long.MAX_VALUE;
+        dirtyTo = Long.MIN_VALUE;
+        return range;
     }
 
     List<DataPoint> query(long startTime, long endTime, Resolution resolution) {
-        var mapToUse = switch (resolution) {
-            case SECONDLY -> secondlyStore;
-            case MINUTELY -> minutelyStore;
-            case HOURLY -> hourlyStore;
-        };
+        List<DataPoint> dataPoints = new ArrayList<>();
+        forEach(startTime, endTime, resolution, (timestamp, value) -> dataPoints.add(new DataPoint(timestamp, value)));
+        return dataPoints;
+    }
+
+    // Streams the sum of every bucket in range without materialising them
+    void forEach(long startTime, long endTime, Resolution resolution, PointConsumer consumer) {
+        forEachSummary(startTime, endTime, resolution, (bucket, count, sum, min, max, last) -> consumer.accept(bucket, sum));
+    }
+
+    // Streams the summary of every bucket in range
+    void forEachSummary(long startTime, long endTime, Resolution resolution, SummaryConsumer consumer) {
+        forEachBucket(normalizeTimestamp(startTime, resolution), normalizeTimestamp(endTime, resolution), resolution, consumer);
+    }
+
+    // Streams the summary of every bucket of a resolution
+    void forEachSummary(Resolution resolution, SummaryConsumer consumer) {
+        forEachBucket(Long.MIN_VALUE, Long.MAX_VALUE, resolution, false, consumer);
+    }
 
-        long normalizedStart = switch (resolution) {
-            case SECONDLY -> normalizeTimestamp(startTime, Resolution.SECONDLY);
-            case MINUTELY -> normalizeTimestamp(startTime, Resolution.MINUTELY);
-            case HOURLY -> normalizeTimestamp(startTime, Resolution.HOURLY);
-        };
+    // Streams the summaries held on the heap, what snapshots write: cold chunks are in block files already
+    void forEachHotSummary(Resolution resolution, SummaryConsumer consumer) {
+        forEachBucket(Long.MIN_VALUE, Long.MAX_VALUE, resolution, true, consumer);
+    }
 
-        long normalizedEnd = switch (resolution) {
-            case SECONDLY -> normalizeTimestamp(endTime, Resolution.SECONDLY);
-            case MINUTELY -> normalizeTimestamp(endTime, Resolution.MINUTELY);
-            case HOURLY -> normalizeTimestamp(endTime, Resolution.HOURLY);
-        };
+    void forEachHotSummary(long startTime, long endTime, Resolution resolution, SummaryConsumer consumer) {
+        forEachBucket(normalizeTimestamp(startTime, resolution), normalizeTimestamp(endTime, resolution), resolution, true, consumer);
+    }
 
+    private void forEachBucket(long from, long to, Resolution resolution, SummaryConsumer consumer) {
+        forEachBucket(from, to, resolution, false, consumer);
+    }
+
+    private void forEachBucket(long from, long to, Resolution resolution, boolean hotOnly, SummaryConsumer consumer) {
+        if (resolution.index() == 0) {
+            stores[0].forEach(from, to, hotOnly, consumer);
+            return;
+        }
+
+        long stamp = rollupLock.readLock();
+        try {
+            var finest = resolutions.get(0);
+            long watermark = stores[0].rollupWatermark();
+            // The bucket the watermark cuts in two, its rolled up part and its tail are combined
+            long split = watermark == Long.MIN_VALUE ? Long.MIN_VALUE : Math.floorDiv(watermark * finest.widthMs(), resolution.widthMs());
+
+            var merger = new TailMerger(split, consumer);
+            stores[resolution.index()].forEach(from, to, hotOnly, merger::acceptRolledUp);
+
+            long tailFrom = Math.max(watermark, Math.floorDiv(bucketStart(from, resolution.widthMs()), finest.widthMs()));
+            long tailTo = Math.floorDiv(bucketEnd(to, resolution.widthMs()), finest.widthMs());
+            var combiner = new BucketCombiner(finest.widthMs(), resolution.widthMs(), merger);
+            stores[0].forEach(tailFrom, tailTo, hotOnly, combiner);
+            combiner.flush();
+            merger.finish();
+        } finally {
+            rollupLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Combines the buckets of the finest resolution that start before untilMillis and were not
+     * rolled up yet into the coarser resolutions. Samples written below that point later go to
+     * every resolution on ingest.
+     */
+    void rollUp(long untilMillis) {
+        if (stores.length == 1) {
+            return;
+        }
+
+        var finest = resolutions.get(0);
+        var combiners = new BucketCombiner[stores.length - 1];
+        for (int i = 1; i < stores.length; i++) {
+            var store = stores[i];
+            combiners[i - 1] = new BucketCombiner(finest.widthMs(), resolutions.get(i).widthMs(), store::merge);
+        }
+
+        long stamp = rollupLock.writeLock();
+        try {
+            stores[0].rollUp(normalizeTimestamp(untilMillis, finest), (bucket, count, sum, min, max, last) -> {
+                for (var combiner : combiners) {
+                    combiner.accept(bucket, count, sum, min, max, last);
+                }
+            });
+            for (var combiner : combiners) {
+                combiner.flush();
+            }
+        } finally {
+            rollupLock.unlockWrite(stamp);
+        }
+    }
+
+    // Bulk loads sorted bucket summaries of one resolution, used when restoring a snapshot
+    void load(Resolution resolution, SummaryColumns summaries) {
+        stores[resolution.index()].load(summaries);
+        markRolledUp(resolution, summaries);
+        markRestored();
+    }
+
+    // Replaces the stored summaries with the given sorted ones, used when applying a delta snapshot
+    void overwrite(Resolution resolution, SummaryColumns summaries) {
+        stores[resolution.index()].overwrite(summaries);
+        markRolledUp(resolution, summaries);
+        markRestored();
+    }
+
+    // Snapshots hold the coarser resolutions with their tail included, restored samples are rolled up already
+    private void markRolledUp(Resolution resolution, SummaryColumns summaries) {
+        if (resolution.index() == 0 && summaries.size > 0) {
+            stores[0].advanceRollupWatermark(summaries.buckets[summaries.size - 1] + 1);
+        }
+    }
 
-        return mapToUse
-            .subMap(normalizedStart, true, normalizedEnd, true)
-            .entrySet()
-            .stream()
-            .map(entry -> new DataPoint(entry.getKey(), entry.getValue()))
-            .toList();
+    /**
+     * Sealed chunks of the resolution, still on the heap, that end before cutoffMillis and hold
+     * nothing written since the last snapshot took the dirty range. Their content is in the snapshot
+     * chain then, so moving them to a block file, which snapshots skip, loses nothing the chain
+     * would restore differently.
+     */
+    List<Map.Entry<Long, GorillaChunk>> coldCandidates(Resolution resolution, long cutoffMillis) {
+        long chunkMs = ChunkedSeries.BUCKETS_PER_CHUNK * resolution.widthMs();
+        long skipFrom;
+        long skipTo;
+        synchronized (this) {
+            skipFrom = dirtyFrom > dirtyTo ? Long.MAX_VALUE : Math.floorDiv(dirtyFrom, chunkMs);
+            skipTo = dirtyFrom > dirtyTo ? Long.MIN_VALUE : Math.floorDiv(dirtyTo, chunkMs);
+        }
+        return stores[resolution.index()].heapChunks(Math.floorDiv(cutoffMillis, chunkMs), skipFrom, skipTo);
     }
 
+    // Swaps a heap chunk for its copy in a block file, see ChunkedSeries.replace
+    boolean replaceWithCold(Resolution resolution, long chunkId, GorillaChunk expected, GorillaChunk cold) {
+        return stores[resolution.index()].replace(chunkId, expected, cold);
+    }
+
+    // Adds a chunk of a block file on restore, before the snapshot chain is loaded over it
+    void attachCold(Resolution resolution, long chunkId, GorillaChunk cold) {
+        stores[resolution.index()].attach(chunkId, cold);
+    }
+
+    synchronized void restoreLatestTimestamp(long timestamp) {
+        latestTimestamp = Math.max(latestTimestamp, timestamp);
+    }
+
+    // The sequence a snapshot recorded with the series, its WAL entries up to there are loaded already
+    void restoreAppliedSequence(long sequence) {
+        appliedSequence = Math.max(appliedSequence, sequence);
+    }
+
+    // Range aggregates fold the bucket summaries, a bucket costs the same whatever its sample count
     public double average(long startTime, long endTime, Resolution resolution) {
-        return query(startTime, endTime, resolution)
-            .stream()
-            .mapToDouble(DataPoint::value)
-            .average()
-            .orElse(0.0);
+        var accumulator = aggregate(startTime, endTime, resolution);
+        return accumulator.count == 0 ? 0.0 : accumulator.sum / accumulator.count;
     }
 
     public double sum(long startTime, long endTime, Resolution resolution) {
-        return query(startTime, endTime, resolution)
-            .stream()
-            .mapToDouble(DataPoint::value)
-            .sum();
+        return aggregate(startTime, endTime, resolution).sum;
     }
 
     public double min(long startTime, long endTime, Resolution resolution) {
-        return query(startTime, endTime, resolution)
-            .stream()
-            .mapToDouble(DataPoint::value)
-            .min()
-            .orElse(0.0);
+        var accumulator = aggregate(startTime, endTime, resolution);
+        return accumulator.count == 0 ? 0.0 : accumulator.min;
     }
 
     public double max(long startTime, long endTime, Resolution resolution) {
-        return query(startTime, endTime, resolution)
-            .stream()
-            .mapToDouble(DataPoint::value)
-            .max()
-            .orElse(0.0);
+        var accumulator = aggregate(startTime, endTime, resolution);
+        return accumulator.count == 0 ? 0.0 : accumulator.max;
+    }
+
+    public long count(long startTime, long endTime, Resolution resolution) {
+        return aggregate(startTime, endTime, resolution).count;
     }
 
-    public Map<Resolution, ConcurrentSkipListMap<Long, Double>> getMetricsForRetention() {
-        return metricStoreMap;
+    public double last(long startTime, long endTime, Resolution resolution) {
+        var accumulator = aggregate(startTime, endTime, resolution);
+        return accumulator.count == 0 ? 0.0 : accumulator.last;
+    }
+
+    private Accumulator aggregate(long startTime, long endTime, Resolution resolution) {
+        var accumulator = new Accumulator();
+        forEachSummary(startTime, endTime, resolution, accumulator);
+        return accumulator;
+    }
+
+    public List<Resolution> getResolutions() {
+        return resolutions;
+    }
+
+    // Drops the buckets of the resolution that are older than the given bucket
+    void dropBefore(Resolution resolution, long bucket) {
+        var store = stores[resolution.index()];
+        if (resolution.index() == 0 && stores.length > 1) {
+            // Buckets not rolled up yet are kept until the rollup has seen them; with a single
+            // tier nothing is rolled up and its watermark never moves
+            bucket = Math.min(bucket, store.rollupWatermark());
+        }
+        store.dropBefore(bucket);
     }
 
     public Map<Long, Double> getDataByResolution(Resolution resolution) {
-        return new HashMap<>(metricStoreMap.get(resolution));
+        Map<Long, Double> data = new LinkedHashMap<>();
+        forEachSummary(resolution, (bucket, count, sum, min, max, last) -> data.put(bucket, sum));
+        return data;
+    }
+
+    long sampleCount() {
+        long count = 0;
+        for (var store : stores) {
+            count += store.sampleCount();
+        }
+        return count;
+    }
+
+    long sizeInBytes() {
+        long bytes = 0;
+        for (var store : stores) {
+            bytes += store.sizeInBytes();
+        }
+        return bytes;
+    }
+
+    long coldBytes() {
+        long bytes = 0;
+        for (var store : stores) {
+            bytes += store.coldBytes();
+        }
+        return bytes;
+    }
+
+    // First millisecond of the bucket, saturating at the ends of the long range
+    private static long bucketStart(long bucket, long widthMs) {
+        if (bucket <= Long.MIN_VALUE / widthMs) return Long.MIN_VALUE;
+        if (bucket >= Long.MAX_VALUE / widthMs) return Long.MAX_VALUE;
+        return bucket * widthMs;
+    }
+
+    // Last millisecond of the bucket, saturating at the ends of the long range
+    private static long bucketEnd(long bucket, long widthMs) {
+        long start = bucketStart(bucket, widthMs);
+        return start > Long.MAX_VALUE - widthMs ? Long.MAX_VALUE : start + widthMs - 1;
+    }
+
+    // Combines consecutive buckets of the finest resolution into the buckets of a coarser one
+    private static final class BucketCombiner implements SummaryConsumer {
+        private final long fineWidthMs;
+        private final long widthMs;
+        private final SummaryConsumer downstream;
+        private final SummaryColumns bucket = new SummaryColumns(1);
+
+        private BucketCombiner(long fineWidthMs, long widthMs, SummaryConsumer downstream) {
+            this.fineWidthMs = fineWidthMs;
+            this.widthMs = widthMs;
+            this.downstream = downstream;
+        }
+
+        @Override
+        public void accept(long fineBucket, long count, double sum, double min, double max, double last) {
+            long coarseBucket = Math.floorDiv(fineBucket * fineWidthMs, widthMs);
+            if (bucket.size == 1 && bucket.buckets[0] != coarseBucket) {
+                flush();
+            }
+            if (bucket.size == 0) {
+                bucket.accept(coarseBucket, count, sum, min, max, last);
+            } else {
+                bucket.combine(0, count, sum, min, max, last);
+            }
+        }
+
+        private void flush() {
+            bucket.forEach(downstream);
+            bucket.clear();
+        }
+    }
+
+    // Streams the rolled up buckets and then the tail ones, combining the two parts of the split bucket
+    private static final class TailMerger implements SummaryConsumer {
+        private final long split;
+        private final SummaryConsumer downstream;
+        private final SummaryColumns held = new SummaryColumns(1);
+
+        private TailMerger(long split, SummaryConsumer downstream) {
+            this.split = split;
+            this.downstream = downstream;
+        }
+
+        private void acceptRolledUp(long bucket, long count, double sum, double min, double max, double last) {
+            if (bucket == split) {
+                held.accept(bucket, count, sum, min, max, last);
+            } else {
+                downstream.accept(bucket, count, sum, min, max, last);
+            }
+        }
+
+        @Override
+        public void accept(long bucket, long count, double sum, double min, double max, double last) {
+            if (held.size == 1 && bucket == split) {
+                // The tail part was written after the rolled up one
+                held.combine(0, count, sum, min, max, last);
+                finish();
+                return;
+            }
+            finish();
+            downstream.accept(bucket, count, sum, min, max, last);
+        }
+
+        private void finish() {
+            held.forEach(downstream);
+            held.clear();
+        }
+    }
+
+    private static class Accumulator implements SummaryConsumer {
+        private long count;
+        private double sum;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double last;
+
+        @Override
+        public void accept(long bucket, long count, double sum, double min, double max, double last) {
+            this.count += count;
+            this.sum += sum;
+            this.min = Math.min(this.min, min);
+            this.max = Math.max(this.max, max);
+            this.last = last;
+        }
     }
-}
\ No newline at end of file
+}
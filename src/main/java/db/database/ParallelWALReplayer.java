@@ -0,0 +1,189 @@
+package db.database;
+
+import db.model.WALEntry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays WAL segments with several threads. Segments are decoded concurrently, each decoded entry
+ * is routed by its series to one of the apply workers, and every worker applies its share of the
+ * segments in segment order. A series is always applied by the same worker, so its samples reach
+ * the store in the order they were logged.
+ * <p>
+ * Decoded entries travel in batches through small bounded queues, one per (segment, worker), which
+ * keeps the memory used by decoders running ahead of the workers bounded.
+ */
+@Slf4j
+class ParallelWALReplayer {
+    private static final int BATCH_SIZE = 4096;
+    private static final int QUEUE_CAPACITY = 4;
+    private static final Batch END_OF_SEGMENT = new Batch(0);
+
+    private final InMemoryTSDB tsdb;
+    private final int parallelism;
+
+    ParallelWALReplayer(InMemoryTSDB tsdb, int parallelism) {
+        this.tsdb = tsdb;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Replays the entries of the segments that neither the checkpoint nor the snapshot of their
+     * series cover.
+     *
+     * @return the number of replayed entries
+     */
+    long replay(File[] segments, WALCheckpoint checkpoint) throws IOException {
+        List<List<BlockingQueue<Batch>>> queues = new ArrayList<>(segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            List<BlockingQueue<Batch>> segmentQueues = new ArrayList<>(parallelism);
+            for (int worker = 0; worker < parallelism; worker++) {
+                segmentQueues.add(new ArrayBlockingQueue<>(QUEUE_CAPACITY));
+            }
+            queues.add(segmentQueues);
+        }
+
+        // Decode tasks start in segment order, so the oldest unfinished segment is always being
+        // decoded and the workers waiting on it make progress
+        ExecutorService decoders = Executors.newFixedThreadPool(parallelism, threadFactory("WAL-Replay-Decoder-"));
+        ExecutorService appliers = Executors.newFixedThreadPool(parallelism, threadFactory("WAL-Replay-Worker-"));
+        try {
+            List<Future<?>> decodeTasks = new ArrayList<>(segments.length);
+            for (int i = 0; i < segments.length; i++) {
+                File segment = segments[i];
+                List<BlockingQueue<Batch>> segmentQueues = queues.get(i);
+                decodeTasks.add(decoders.submit(() -> {
+                    decode(segment, checkpoint, segmentQueues);
+                    return null;
+                }));
+            }
+
+            List<Future<Long>> applyTasks = new ArrayList<>(parallelism);
+            for (int worker = 0; worker < parallelism; worker++) {
+                int partition = worker;
+                applyTasks.add(appliers.submit(() -> apply(queues, partition)));
+            }
+
+            long replayed = 0;
+            for (var task : applyTasks) {
+                replayed += task.get();
+            }
+            for (var task : decodeTasks) {
+                task.get();
+            }
+            return replayed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while replaying the WAL", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to replay the WAL", e.getCause());
+        } finally {
+            decoders.shutdownNow();
+            appliers.shutdownNow();
+        }
+    }
+
+    private void decode(File segment, WALCheckpoint checkpoint, List<BlockingQueue<Batch>> segmentQueues) throws IOException, InterruptedException {
+        Batch[] batches = new Batch[parallelism];
+        try (var reader = WALSegmentReader.open(segment)) {
+            WALEntry entry;
+            while ((entry = reader.next()) != null) {
+                if (checkpoint.covers(entry)) continue;
+
+                var series = tsdb.getOrCreateSeries(entry.metricName(), entry.label().tagsView());
+                int partition = partitionOf(series);
+
+                var batch = batches[partition];
+                if (batch == null) {
+                    batch = batches[partition] = new Batch(BATCH_SIZE);
+                }
+                batch.add(series, entry.sequence(), entry.timestamp(), entry.value());
+                if (batch.isFull()) {
+                    segmentQueues.get(partition).put(batch);
+                    batches[partition] = null;
+                }
+            }
+
+            for (int partition = 0; partition < parallelism; partition++) {
+                if (batches[partition] != null) {
+                    segmentQueues.get(partition).put(batches[partition]);
+                }
+            }
+        } finally {
+            // Workers move on to the next segment even when this one failed, the failure is
+            // reported through the decode task
+            for (var queue : segmentQueues) {
+                queue.put(END_OF_SEGMENT);
+            }
+        }
+    }
+
+    private long apply(List<List<BlockingQueue<Batch>>> queues, int partition) throws InterruptedException {
+        long applied = 0;
+        for (var segmentQueues : queues) {
+            var queue = segmentQueues.get(partition);
+            Batch batch;
+            while ((batch = queue.take()) != END_OF_SEGMENT) {
+                for (int i = 0; i < batch.size; i++) {
+                    if (tsdb.replay(batch.series[i], batch.sequences[i], batch.timestamps[i], batch.values[i])) {
+                        applied++;
+                    }
+                }
+            }
+        }
+        return applied;
+    }
+
+    private int partitionOf(Series series) {
+        // Spread the sequential series ids with a Fibonacci hash
+        return (int) (((series.getId() * 0x9E3779B97F4A7C15L) >>> 32) % parallelism);
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        var counter = new AtomicInteger();
+        return runnable -> {
+            var thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static final class Batch {
+        private final Series[] series;
+        private final long[] sequences;
+        private final long[] timestamps;
+        private final double[] values;
+        private int size;
+
+        private Batch(int capacity) {
+            this.series = new Series[capacity];
+            this.sequences = new long[capacity];
+            this.timestamps = new long[capacity];
+            this.values = new double[capacity];
+        }
+
+        private void add(Series entrySeries, long sequence, long timestamp, double value) {
+            series[size] = entrySeries;
+            sequences[size] = sequence;
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+        }
+
+        private boolean isFull() {
+            return size == series.length;
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package db.database;
+
+@FunctionalInterface
+public interface PointConsumer {
+    void accept(long timestamp, double value);
+}
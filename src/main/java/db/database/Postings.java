@@ -0,0 +1,36 @@
+package db.database;
+
+import java.util.Arrays;
+
+/**
+ * Sorted list of series ids sharing one label name=value pair. Ids are only ever appended in
+ * increasing order by a single writer, readers see a consistent prefix through the volatile size.
+ */
+class Postings {
+    private volatile int[] ids = new int[4];
+    private volatile int size;
+
+    // Callers must hold the owning index lock
+    void add(int id) {
+        int[] current = ids;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+            ids = current;
+        }
+        current[size] = id;
+        size = size + 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(int index) {
+        return ids[index];
+    }
+
+    boolean contains(int id) {
+        int count = size;
+        return Arrays.binarySearch(ids, 0, count, id) >= 0;
+    }
+}
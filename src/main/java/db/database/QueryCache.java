@@ -0,0 +1,207 @@
+package db.database;
+
+import db.TSDBConfiguration;
+import db.model.DataPoint;
+import db.model.MetricLabel;
+import db.model.QueryCacheStats;
+import db.model.Resolution;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static db.database.MetricUtils.normalizeTimestamp;
+
+/**
+ * Caches query results per query shape: metric, labels, match mode and resolution. An entry holds
+ * the points of every matched series over the last range asked for, with the write mark of each
+ * series at the time it was read.
+ * <p>
+ * A lookup reuses what is still current: all cached points of a series that was not written since,
+ * the points before its cached latest timestamp when it was only written in order, and none after
+ * an out-of-order write. Everything else is read from storage, so a dashboard polling a sliding
+ * window only reads the buckets it has not seen and the fresh tail. Entries are evicted least
+ * recently used first once the cached points exceed the configured bound.
+ */
+@Service
+public class QueryCache {
+    private final InMemoryTSDB tsdb;
+    private final long maxPoints;
+    // Access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedPoints;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder partialHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public QueryCache(InMemoryTSDB tsdb, TSDBConfiguration configuration) {
+        this.tsdb = tsdb;
+        this.maxPoints = configuration.queryCache().maxPoints();
+    }
+
+    private record Key(String metricName, Map<String, String> labels, boolean strictMatch, String resolution) {
+    }
+
+    private record Entry(int seriesCount, long fromBucket, long toBucket, Map<Integer, CachedSeries> series, long weight) {
+    }
+
+    private record CachedSeries(Series series, List<DataPoint> points, MetricStore.WriteMark mark) {
+    }
+
+    /**
+     * Same results as {@link InMemoryTSDB#query}, strict or not, served from the cache where it is
+     * still current.
+     */
+    public Map<MetricLabel, List<DataPoint>> query(String metricName, Map<String, String> labels, boolean strictMatch,
+                                                   long startTime, long endTime, Resolution resolution) {
+        if (labels == null) {
+            labels = Map.of();
+        }
+        if (maxPoints <= 0) {
+            misses.increment();
+            return strictMatch
+                ? Map.of(new MetricLabel(labels), tsdb.query(metricName, new MetricLabel(labels), startTime, endTime, resolution))
+                : tsdb.query(metricName, labels, startTime, endTime, resolution);
+        }
+
+        var key = new Key(metricName, Map.copyOf(labels), strictMatch, resolution.name());
+        Entry cached;
+        synchronized (this) {
+            cached = entries.get(key);
+        }
+
+        // Read before matching, a series created in between makes the next lookup match again
+        int seriesCount = tsdb.seriesCount(metricName);
+        List<Series> matched;
+        if (cached != null && cached.seriesCount() == seriesCount) {
+            matched = cached.series().values().stream().map(CachedSeries::series).toList();
+        } else if (strictMatch) {
+            var series = tsdb.findSeries(metricName, labels);
+            matched = series == null ? List.of() : List.of(series);
+        } else {
+            matched = tsdb.matchSeries(metricName, labels);
+        }
+
+        long fromBucket = normalizeTimestamp(startTime, resolution);
+        long toBucket = normalizeTimestamp(endTime, resolution);
+        var lookup = new Lookup();
+        Map<Integer, CachedSeries> read = new HashMap<>();
+        Map<MetricLabel, List<DataPoint>> result = new HashMap<>();
+        long weight = 0;
+        for (var series : matched) {
+            var previous = cached == null ? null : cached.series().get(series.getId());
+            var current = read(series, previous, cached, fromBucket, toBucket, resolution, lookup);
+            read.put(series.getId(), current);
+            result.put(series.getLabel(), current.points());
+            weight += current.points().size() + 1;
+        }
+        if (strictMatch && result.isEmpty()) {
+            result.put(new MetricLabel(labels), List.of());
+        }
+
+        if (cached != null && !lookup.readStorage && matched.size() == cached.series().size()) {
+            hits.increment();
+        } else if (lookup.reused) {
+            partialHits.increment();
+        } else {
+            misses.increment();
+        }
+
+        store(key, new Entry(seriesCount, fromBucket, toBucket, read, weight));
+        return result;
+    }
+
+    public synchronized QueryCacheStats stats() {
+        return new QueryCacheStats(hits.sum(), partialHits.sum(), misses.sum(), evictions.sum(), entries.size(), cachedPoints);
+    }
+
+    // What a lookup did across its series
+    private static class Lookup {
+        private boolean reused;
+        private boolean readStorage;
+    }
+
+    private CachedSeries read(Series series, CachedSeries previous, Entry cached, long fromBucket, long toBucket,
+                              Resolution resolution, Lookup lookup) {
+        var store = series.getStore();
+        var mark = store.writeMark(resolution);
+
+        // Range of cached buckets that are still current
+        long reuseFrom = Long.MAX_VALUE;
+        long reuseTo = Long.MIN_VALUE;
+        if (previous != null) {
+            var old = previous.mark();
+            long currentUntil;
+            if (mark.version() == old.version()) {
+                currentUntil = cached.toBucket();
+            } else if (mark.outOfOrderVersion() <= old.version()) {
+                // Every write since landed at or after the latest timestamp of the cached read
+                currentUntil = normalizeTimestamp(old.latestTimestamp(), resolution) - 1;
+            } else {
+                currentUntil = Long.MIN_VALUE;
+            }
+            reuseFrom = Math.max(fromBucket, Math.max(cached.fromBucket(), mark.evictedBefore()));
+            reuseTo = Math.min(toBucket, Math.min(cached.toBucket(), currentUntil));
+        }
+
+        if (reuseFrom > reuseTo) {
+            lookup.readStorage = true;
+            return new CachedSeries(series, readBuckets(store, fromBucket, toBucket, resolution), mark);
+        }
+
+        lookup.reused = true;
+        var cachedPoints = previous.points();
+        if (reuseFrom == fromBucket && reuseTo == toBucket && reuseFrom <= cached.fromBucket() && reuseTo >= cached.toBucket()) {
+            return new CachedSeries(series, cachedPoints, mark);
+        }
+
+        List<DataPoint> points = new ArrayList<>();
+        if (fromBucket < reuseFrom) {
+            lookup.readStorage = true;
+            points.addAll(readBuckets(store, fromBucket, reuseFrom - 1, resolution));
+        }
+        points.addAll(cachedPoints.subList(lowerBound(cachedPoints, reuseFrom), lowerBound(cachedPoints, reuseTo + 1)));
+        if (reuseTo < toBucket) {
+            lookup.readStorage = true;
+            points.addAll(readBuckets(store, reuseTo + 1, toBucket, resolution));
+        }
+        return new CachedSeries(series, List.copyOf(points), mark);
+    }
+
+    private static List<DataPoint> readBuckets(MetricStore store, long fromBucket, long toBucket, Resolution resolution) {
+        return List.copyOf(store.query(fromBucket * resolution.widthMs(), toBucket * resolution.widthMs(), resolution));
+    }
+
+    // Index of the first point whose bucket is >= the given one
+    private static int lowerBound(List<DataPoint> points, long bucket) {
+        int low = 0;
+        int high = points.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (points.get(mid).timestamp() < bucket) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private synchronized void store(Key key, Entry entry) {
+        var replaced = entries.put(key, entry);
+        if (replaced != null) {
+            cachedPoints -= replaced.weight();
+        }
+        cachedPoints += entry.weight();
+
+        var eldest = entries.entrySet().iterator();
+        while (cachedPoints > maxPoints && eldest.hasNext()) {
+            cachedPoints -= eldest.next().getValue().weight();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package db.database;
+
+import db.TSDBConfiguration;
+import db.model.Resolution;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The rollup tiers of the database, built from configuration and ordered from the finest to the
+ * coarsest. Every width is a multiple of the finest one. Without configured tiers, the historical
+ * secondly, minutely and hourly ones are used. Those keep answering to their old SECONDLY, MINUTELY
+ * and HOURLY names in queries.
+ */
+@Service
+public class Resolutions {
+    private static final Map<String, Long> LEGACY_NAMES = Map.of(
+        "SECONDLY", 1000L,
+        "MINUTELY", 60_000L,
+        "HOURLY", 3_600_000L
+    );
+
+    private final List<Resolution> resolutions;
+    private final Map<String, Resolution> byName = new HashMap<>();
+
+    public Resolutions(TSDBConfiguration configuration) {
+        var tiers = configuration.resolutions();
+        if (tiers == null || tiers.isEmpty()) {
+            tiers = List.of(
+                new TSDBConfiguration.ResolutionProperties(Duration.ofSeconds(1), null),
+                new TSDBConfiguration.ResolutionProperties(Duration.ofMinutes(1), null),
+                new TSDBConfiguration.ResolutionProperties(Duration.ofHours(1), null)
+            );
+        }
+
+        var sorted = new ArrayList<>(tiers);
+        sorted.sort(Comparator.comparing(TSDBConfiguration.ResolutionProperties::width));
+
+        List<Resolution> built = new ArrayList<>(sorted.size());
+        for (var tier : sorted) {
+            long widthMs = tier.width().toMillis();
+            if (widthMs <= 0) {
+                throw new IllegalStateException("Resolution width must be positive: " + tier.width());
+            }
+            if (!built.isEmpty() && built.get(built.size() - 1).widthMs() == widthMs) {
+                throw new IllegalStateException("Resolution " + tier.width() + " is configured twice");
+            }
+            if (!built.isEmpty() && widthMs % built.get(0).widthMs() != 0) {
+                // Coarser tiers are rolled up from whole buckets of the finest one
+                throw new IllegalStateException("Resolution " + tier.width() + " is not a multiple of the finest one, " + sorted.get(0).width());
+            }
+
+            long retentionMs = tier.retention() != null ? tier.retention().toMillis() : configuration.retentionMs();
+            var resolution = new Resolution(format(widthMs), widthMs, retentionMs, built.size());
+            built.add(resolution);
+            byName.put(resolution.name(), resolution);
+        }
+        this.resolutions = List.copyOf(built);
+
+        LEGACY_NAMES.forEach((name, widthMs) -> {
+            var resolution = byWidth(widthMs);
+            if (resolution != null) {
+                byName.put(name, resolution);
+            }
+        });
+    }
+
+    public List<Resolution> all() {
+        return resolutions;
+    }
+
+    public int size() {
+        return resolutions.size();
+    }
+
+    public Resolution get(int index) {
+        return resolutions.get(index);
+    }
+
+    /**
+     * @param name a tier name such as "10s", "5m" or "1d", or a legacy resolution name
+     * @throws IllegalArgumentException if no such tier is configured
+     */
+    public Resolution get(String name) {
+        Resolution resolution = null;
+        if (name != null) {
+            resolution = byName.get(name.toLowerCase(Locale.ROOT));
+            if (resolution == null) {
+                resolution = byName.get(name.toUpperCase(Locale.ROOT));
+            }
+        }
+        if (resolution == null) {
+            throw new IllegalArgumentException("Unknown resolution '" + name + "', configured: " + byName.keySet());
+        }
+        return resolution;
+    }
+
+    /**
+     * Plans a query under a point budget: the finest tier, from finest on, with at most maxPoints
+     * buckets in [from, to] whose retention still reaches back to from. Without such a tier, the
+     * finest one within the budget, or the coarsest one if none is; the points are downsampled then.
+     */
+    public Resolution forBudget(long from, long to, int maxPoints, Resolution finest, long nowMillis) {
+        Resolution fitting = null;
+        for (int i = finest.index(); i < resolutions.size(); i++) {
+            var resolution = resolutions.get(i);
+            long buckets = Math.floorDiv(to, resolution.widthMs()) - Math.floorDiv(from, resolution.widthMs()) + 1;
+            if (buckets > maxPoints) continue;
+
+            if (from >= nowMillis - resolution.retentionMs()) {
+                return resolution;
+            }
+            if (fitting == null) {
+                fitting = resolution;
+            }
+        }
+        return fitting != null ? fitting : resolutions.get(resolutions.size() - 1);
+    }
+
+    // The tier with exactly this bucket width, null if there is none
+    public Resolution byWidth(long widthMs) {
+        for (var resolution : resolutions) {
+            if (resolution.widthMs() == widthMs) {
+                return resolution;
+            }
+        }
+        return null;
+    }
+
+    // Shortest name for the width: 10s, 5m, 1h, 1d, or milliseconds when nothing else divides it
+    private static String format(long widthMs) {
+        if (widthMs % 86_400_000 == 0) return widthMs / 86_400_000 + "d";
+        if (widthMs % 3_600_000 == 0) return widthMs / 3_600_000 + "h";
+        if (widthMs % 60_000 == 0) return widthMs / 60_000 + "m";
+        if (widthMs % 1000 == 0) return widthMs / 1000 + "s";
+        return widthMs + "ms";
+    }
+}
@@ -0,0 +1,22 @@
+package db.database;
+
+import db.model.MetricLabel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * A single time series: a metric name plus one label set, identified by a numeric id that stays
+ * stable for the lifetime of the process and unique across shards. A write to the series is
+ * logged and applied while holding the series' monitor, and snapshots read the series under it,
+ * see {@link InMemoryTSDB#put(Series, long, double)}.
+ */
+@Getter
+@RequiredArgsConstructor
+public class Series {
+    private final int id;
+    // Shard of the InMemoryTSDB holding the series, its WAL logs the series
+    private final int shard;
+    private final String metricName;
+    private final MetricLabel label;
+    private final MetricStore store;
+}
@@ -0,0 +1,323 @@
+package db.database;
+
+import db.model.AggregateFunction;
+import db.model.AggregateSeries;
+import db.model.Aggregation;
+import db.model.DataPoint;
+import db.model.MetricLabel;
+import db.model.Resolution;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static db.database.MetricUtils.normalizeTimestamp;
+
+/**
+ * Evaluates an {@link Aggregation} over a set of series. The series are split into fork-join tasks,
+ * every task folds its series into per-group partial aggregates, one slot per bucket of the range,
+ * and the partials of sibling tasks are merged on the way up. Slots are allocated a page at a time
+ * as buckets are touched, and groups times buckets of a request is bounded by {@link #MAX_SLOTS}.
+ */
+class SeriesAggregator {
+    // Series a task aggregates itself instead of splitting further
+    private static final int LEAF_SIZE = 64;
+    // Bounds the partial aggregates of a request, every group holds up to one slot per bucket
+    static final long MAX_SLOTS = 4_000_000;
+    // Slots allocated together, a partial only holds the pages its series have buckets in
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private final Aggregation aggregation;
+    private final Resolution resolution;
+    private final long startTime;
+    private final long endTime;
+    private final long fromBucket;
+    private final int bucketCount;
+    private final Set<String> by;
+    private final Set<String> without;
+
+    SeriesAggregator(Aggregation aggregation, Resolution resolution, long startTime, long endTime) {
+        if (aggregation.function() == null) {
+            throw new IllegalArgumentException("An aggregation function is required");
+        }
+        if (aggregation.by() != null && aggregation.without() != null) {
+            throw new IllegalArgumentException("Group either 'by' or 'without' labels, not both");
+        }
+        if (aggregation.function() == AggregateFunction.TOPK && aggregation.k() <= 0) {
+            throw new IllegalArgumentException("topk needs a positive 'k'");
+        }
+
+        this.aggregation = aggregation;
+        this.resolution = resolution;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.fromBucket = normalizeTimestamp(startTime, resolution);
+        long buckets = normalizeTimestamp(endTime, resolution) - fromBucket + 1;
+        if (buckets > MAX_SLOTS) {
+            throw new IllegalArgumentException("The range spans " + buckets + " buckets of " + resolution.name()
+                + ", at most " + MAX_SLOTS + " can be aggregated, use a coarser resolution");
+        }
+        this.bucketCount = (int) buckets;
+        this.by = aggregation.by() == null ? null : new HashSet<>(aggregation.by());
+        this.without = aggregation.without() == null ? null : new HashSet<>(aggregation.without());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the groups times the buckets of the range exceed {@link #MAX_SLOTS}
+     */
+    List<AggregateSeries> aggregate(List<Series> series) {
+        var groupOfSeries = new MetricLabel[series.size()];
+        Set<MetricLabel> groupSet = new HashSet<>();
+        for (int i = 0; i < groupOfSeries.length; i++) {
+            groupOfSeries[i] = groupOf(series.get(i));
+            groupSet.add(groupOfSeries[i]);
+        }
+        // TOPK only keeps the top series of every group, no slots
+        if (aggregation.function() != AggregateFunction.TOPK && (long) groupSet.size() * bucketCount > MAX_SLOTS) {
+            throw new IllegalArgumentException(groupSet.size() + " groups of " + bucketCount + " buckets of " + resolution.name()
+                + " exceed the " + MAX_SLOTS + " slots an aggregation may use, use a coarser resolution or fewer groups");
+        }
+
+        var partials = ForkJoinPool.commonPool().invoke(new AggregationTask(series, groupOfSeries, 0, series.size()));
+
+        // Sorted by group labels so responses are stable
+        var groups = new TreeMap<String, Map.Entry<MetricLabel, Partial>>();
+        for (var group : partials.entrySet()) {
+            groups.put(group.getKey().toString(), group);
+        }
+
+        List<AggregateSeries> result = new ArrayList<>();
+        for (var group : groups.values()) {
+            if (aggregation.function() == AggregateFunction.TOPK) {
+                for (var ranked : group.getValue().topSeries()) {
+                    var current = ranked.series();
+                    result.add(new AggregateSeries(current.getLabel().getTags(), current.getStore().query(startTime, endTime, resolution)));
+                }
+            } else {
+                result.add(new AggregateSeries(group.getKey().getTags(), group.getValue().dataPoints()));
+            }
+        }
+        return result;
+    }
+
+    private MetricLabel groupOf(Series series) {
+        if (by == null && without == null) {
+            return new MetricLabel(Map.of());
+        }
+
+        Map<String, String> labels = new HashMap<>();
+        for (var tag : series.getLabel().tagsView().entrySet()) {
+            boolean kept = by != null ? by.contains(tag.getKey()) : !without.contains(tag.getKey());
+            if (kept) {
+                labels.put(tag.getKey(), tag.getValue());
+            }
+        }
+        return new MetricLabel(labels);
+    }
+
+    private final class AggregationTask extends RecursiveTask<Map<MetricLabel, Partial>> {
+        private final List<Series> series;
+        private final MetricLabel[] groups;
+        private final int from;
+        private final int to;
+
+        private AggregationTask(List<Series> series, MetricLabel[] groups, int from, int to) {
+            this.series = series;
+            this.groups = groups;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<MetricLabel, Partial> compute() {
+            if (to - from <= LEAF_SIZE) {
+                Map<MetricLabel, Partial> partials = new HashMap<>();
+                for (int i = from; i < to; i++) {
+                    partials.computeIfAbsent(groups[i], group -> new Partial()).add(series.get(i));
+                }
+                return partials;
+            }
+
+            int middle = (from + to) >>> 1;
+            var left = new AggregationTask(series, groups, from, middle);
+            left.fork();
+            var partials = new AggregationTask(series, groups, middle, to).compute();
+            for (var group : left.join().entrySet()) {
+                partials.merge(group.getKey(), group.getValue(), Partial::merge);
+            }
+            return partials;
+        }
+    }
+
+    private record RankedSeries(Series series, double score) {
+    }
+
+    // Partial aggregate of one group, a slot per bucket of the range in pages allocated on first use; a
+    // slot without samples has a count of 0. Values hold the minimum or maximum for MIN and MAX, the sum otherwise.
+    private final class Partial implements SummaryConsumer {
+        private long[][] counts;
+        private double[][] values;
+        // Top series of the group, smallest score first, for TOPK
+        private PriorityQueue<RankedSeries> top;
+        // State of the series being added, for RATE
+        private boolean hasPrevious;
+        private long previousBucket;
+        private double previousLast;
+
+        void add(Series series) {
+            switch (aggregation.function()) {
+                case TOPK -> addRanked(series);
+                case RATE -> {
+                    hasPrevious = false;
+                    // Starts a bucket early, so the first bucket of the range has a rate too
+                    series.getStore().forEachSummary(startTime - resolution.widthMs(), endTime, resolution, this::acceptRate);
+                }
+                default -> series.getStore().forEachSummary(startTime, endTime, resolution, this);
+            }
+        }
+
+        @Override
+        public void accept(long bucket, long count, double sum, double min, double max, double last) {
+            int slot = slot(bucket);
+            int page = ensurePage(slot);
+            int offset = slot & (PAGE_SIZE - 1);
+            var pageCounts = counts[page];
+            var pageValues = values[page];
+            switch (aggregation.function()) {
+                case MIN -> pageValues[offset] = pageCounts[offset] == 0 ? min : Math.min(pageValues[offset], min);
+                case MAX -> pageValues[offset] = pageCounts[offset] == 0 ? max : Math.max(pageValues[offset], max);
+                default -> pageValues[offset] += sum;
+            }
+            pageCounts[offset] += count;
+        }
+
+        private void acceptRate(long bucket, long count, double sum, double min, double max, double last) {
+            if (hasPrevious && bucket >= fromBucket) {
+                // A counter that went down was reset, it counted up from zero since
+                double increase = last >= previousLast ? last - previousLast : last;
+                double seconds = (bucket - previousBucket) * resolution.widthMs() / 1000.0;
+                int slot = slot(bucket);
+                int page = ensurePage(slot);
+                values[page][slot & (PAGE_SIZE - 1)] += increase / seconds;
+                counts[page][slot & (PAGE_SIZE - 1)]++;
+            }
+            hasPrevious = true;
+            previousBucket = bucket;
+            previousLast = last;
+        }
+
+        private void addRanked(Series series) {
+            if (top == null) {
+                top = new PriorityQueue<>(Comparator.comparingDouble(RankedSeries::score));
+            }
+            offer(new RankedSeries(series, series.getStore().sum(startTime, endTime, resolution)));
+        }
+
+        private void offer(RankedSeries ranked) {
+            top.offer(ranked);
+            if (top.size() > aggregation.k()) {
+                top.poll();
+            }
+        }
+
+        Partial merge(Partial other) {
+            if (other.top != null) {
+                if (top == null) {
+                    return other;
+                }
+                other.top.forEach(this::offer);
+            }
+            if (other.counts == null) {
+                return this;
+            }
+            if (counts == null) {
+                return other;
+            }
+
+            for (int page = 0; page < counts.length; page++) {
+                if (other.counts[page] == null) continue;
+                if (counts[page] == null) {
+                    // Pages are never shared once merged, the other partial is dropped
+                    counts[page] = other.counts[page];
+                    values[page] = other.values[page];
+                    continue;
+                }
+
+                var pageCounts = counts[page];
+                var pageValues = values[page];
+                var otherCounts = other.counts[page];
+                var otherValues = other.values[page];
+                for (int offset = 0; offset < PAGE_SIZE; offset++) {
+                    if (otherCounts[offset] == 0) continue;
+
+                    switch (aggregation.function()) {
+                        case MIN -> pageValues[offset] = pageCounts[offset] == 0 ? otherValues[offset] : Math.min(pageValues[offset], otherValues[offset]);
+                        case MAX -> pageValues[offset] = pageCounts[offset] == 0 ? otherValues[offset] : Math.max(pageValues[offset], otherValues[offset]);
+                        default -> pageValues[offset] += otherValues[offset];
+                    }
+                    pageCounts[offset] += otherCounts[offset];
+                }
+            }
+            return this;
+        }
+
+        List<RankedSeries> topSeries() {
+            List<RankedSeries> ranked = new ArrayList<>(top);
+            ranked.sort(Comparator.comparingDouble(RankedSeries::score).reversed());
+            return ranked;
+        }
+
+        List<DataPoint> dataPoints() {
+            List<DataPoint> dataPoints = new ArrayList<>();
+            if (counts == null) {
+                return dataPoints;
+            }
+
+            for (int page = 0; page < counts.length; page++) {
+                if (counts[page] == null) continue;
+
+                var pageCounts = counts[page];
+                var pageValues = values[page];
+                for (int offset = 0; offset < PAGE_SIZE; offset++) {
+                    if (pageCounts[offset] == 0) continue;
+
+                    double value = switch (aggregation.function()) {
+                        case AVG -> pageValues[offset] / pageCounts[offset];
+                        case COUNT -> pageCounts[offset];
+                        default -> pageValues[offset];
+                    };
+                    dataPoints.add(new DataPoint(fromBucket + ((long) page << PAGE_SHIFT) + offset, value));
+                }
+            }
+            return dataPoints;
+        }
+
+        private int slot(long bucket) {
+            return (int) (bucket - fromBucket);
+        }
+
+        // The page of the slot, allocated if this is its first bucket
+        private int ensurePage(int slot) {
+            if (counts == null) {
+                int pages = (bucketCount + PAGE_SIZE - 1) >>> PAGE_SHIFT;
+                counts = new long[pages][];
+                values = new double[pages][];
+            }
+            int page = slot >>> PAGE_SHIFT;
+            if (counts[page] == null) {
+                counts[page] = new long[PAGE_SIZE];
+                values[page] = new double[PAGE_SIZE];
+            }
+            return page;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package db.database;
+
+import db.model.MetricLabel;
+import db.model.Resolution;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assigns ids to series and resolves (metric name, labels) to the series without allocating on the
+ * hot path. Series are keyed by their label map, whose equals/hashCode contract holds across Map
+ * implementations, so the label map of an incoming request can be used for the lookup as-is.
+ * Label names and values are interned when a series is created.
+ * <p>
+ * A sharded database has a registry per shard. Their ids come from one shared counter, so a series
+ * id is unique across shards, while {@link #get(int)} indexes the series of this registry.
+ */
+public class SeriesRegistry {
+    private final ConcurrentHashMap<String, String> internedStrings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, MetricSeries> metrics = new ConcurrentHashMap<>();
+    private volatile Series[] seriesByIndex = new Series[1024];
+    private volatile int size;
+    private final List<Resolution> resolutions;
+    private final int shard;
+    private final AtomicInteger ids;
+
+    public SeriesRegistry(List<Resolution> resolutions) {
+        this(resolutions, 0, new AtomicInteger());
+    }
+
+    public SeriesRegistry(List<Resolution> resolutions, int shard, AtomicInteger ids) {
+        this.resolutions = resolutions;
+        this.shard = shard;
+        this.ids = ids;
+    }
+
+    public Series getOrCreate(String metricName, Map<String, String> labels) {
+        if (labels == null) labels = Collections.emptyMap();
+
+        var existing = metrics.get(metricName);
+        var metricSeries = existing != null ? existing : metrics.computeIfAbsent(intern(metricName), MetricSeries::new);
+
+        var series = metricSeries.byLabels.get(labels);
+        if (series != null) return series;
+
+        var label = new MetricLabel(internAll(labels));
+        return metricSeries.byLabels.computeIfAbsent(label.tagsView(), k -> register(metricSeries, label));
+    }
+
+    public Series find(String metricName, Map<String, String> labels) {
+        var metricSeries = metrics.get(metricName);
+        if (metricSeries == null) return null;
+        return metricSeries.byLabels.get(labels == null ? Collections.emptyMap() : labels);
+    }
+
+    // The index-th series registered here, in registration order
+    public Series get(int index) {
+        return index < size ? seriesByIndex[index] : null;
+    }
+
+    // Every series of the metric whose labels contain all the given ones
+    List<Series> match(String metricName, Map<String, String> labels) {
+        var metricSeries = metrics.get(metricName);
+        return metricSeries == null ? Collections.emptyList() : metricSeries.labelIndex.match(labels);
+    }
+
+    // Series of the metric, it only grows when a new label set of the metric is written
+    int seriesCount(String metricName) {
+        var metricSeries = metrics.get(metricName);
+        return metricSeries == null ? 0 : metricSeries.labelIndex.size();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public List<Series> all() {
+        int count = size;
+        return new ArrayList<>(Arrays.asList(seriesByIndex).subList(0, count));
+    }
+
+    private synchronized Series register(MetricSeries metricSeries, MetricLabel label) {
+        int index = size;
+        var current = seriesByIndex;
+        if (index == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+            seriesByIndex = current;
+        }
+
+        var series = new Series(ids.getAndIncrement(), shard, metricSeries.metricName, label, new MetricStore(resolutions));
+        current[index] = series;
+        metricSeries.labelIndex.add(series);
+        size = index + 1;
+        return series;
+    }
+
+    private Map<String, String> internAll(Map<String, String> labels) {
+        var interned = new TreeMap<String, String>();
+        for (var tag : labels.entrySet()) {
+            interned.put(intern(tag.getKey()), intern(tag.getValue()));
+        }
+        return interned;
+    }
+
+    private String intern(String value) {
+        if (value == null) return null;
+        var existing = internedStrings.putIfAbsent(value, value);
+        return existing == null ? value : existing;
+    }
+
+    private static class MetricSeries {
+        private final String metricName;
+        private final ConcurrentHashMap<Map<String, String>, Series> byLabels = new ConcurrentHashMap<>();
+        private final LabelIndex labelIndex = new LabelIndex();
+
+        private MetricSeries(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+}
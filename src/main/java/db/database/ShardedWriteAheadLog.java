@@ -0,0 +1,60 @@
+package db.database;
+
+import db.TSDBConfiguration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One {@link WriteAheadLogImpl} per shard, each with its own directory below the configured WAL
+ * path and its own writer thread, so shards log, flush and fsync in parallel. A single shard logs
+ * to the configured path itself. Entries are numbered per shard, so sequence numbers and
+ * checkpoints only mean something to the WAL of one shard: appends, replay and truncation go
+ * through {@link #shards()}, only what holds for every shard at once is offered here.
+ */
+public class ShardedWriteAheadLog implements Closeable {
+    private final List<WriteAheadLog> shards;
+
+    public ShardedWriteAheadLog(TSDBConfiguration.WALProperties walProperties, int shardCount, TSDBMetrics metrics) {
+        var root = Path.of(walProperties.path());
+        FileUtils.checkShardLayout(root, shardCount);
+
+        List<WriteAheadLog> logs = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            var properties = new TSDBConfiguration.WALProperties(
+                FileUtils.shardDirectory(root, shard, shardCount).toString(),
+                walProperties.rotationByteSize(),
+                walProperties.durability(),
+                walProperties.fsyncIntervalMs(),
+                walProperties.bufferCapacity(),
+                walProperties.appendTimeoutMs(),
+                walProperties.backend(),
+                walProperties.replayParallelism()
+            );
+            logs.add(new WriteAheadLogImpl(properties, shardCount == 1 ? "WAL-Writer" : "WAL-Writer-" + shard, metrics));
+        }
+        this.shards = List.copyOf(logs);
+    }
+
+    // The WAL of every shard, in shard order: each logs the series of its shard
+    public List<WriteAheadLog> shards() {
+        return shards;
+    }
+
+    // Blocks until the entries appended to any shard before the call are durable, see WriteAheadLog
+    public void awaitDurability() throws InterruptedException {
+        for (var shard : shards) {
+            shard.awaitDurability();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (var shard : shards) {
+            ((Closeable) shard).close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package db.database;
+
+import lombok.experimental.UtilityClass;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Binary snapshot layout:
+ * <pre>
+ * header  : "TSNP" magic, 1 byte version, long latest timestamp of the database,
+ *           long WAL sequence number the snapshot holds every entry up to,
+ *           varint resolution count, varint bucket width in ms per resolution
+ *           (version 1 has no resolution list, its resolutions are 1s, 1m and 1h;
+ *            versions before 4 have no WAL sequence, their latest timestamp is the checkpoint)
+ * block   : one per series, for every resolution of the header in that order
+ *             varint bucket count
+ *             timestamp column : first timestamp as zigzag varint, then varint deltas (buckets are sorted)
+ *             count column     : varint sample count per bucket, 0 for a single sample whose min,
+ *                                max and last are its sum
+ *             sum column       : per value, the XOR of its bits with the previous value's bits,
+ *                                written as 1 byte (leading zero bytes << 4 | trailing zero bytes)
+ *                                followed by the remaining significant bytes
+ *             min, max and last columns : for the buckets with a non zero count only, the same
+ *                                XOR encoding against the bucket's sum
+ *           (versions 1 and 2 only have the sum column, written as the value column)
+ * footer  : varint series count, per series
+ *             metric name, varint tag count, (name, value)*, long latest timestamp,
+ *             long WAL sequence number of the last write in the block (from version 4),
+ *             long block offset, int block length, int CRC32C of the block
+ * trailer : long footer offset, int CRC32C of the footer, "TSNP" magic
+ * </pre>
+ * Strings use the WAL encoding, see {@link WALFormat}. Files without the magic are the legacy JSON
+ * lines snapshots and are still loaded.
+ */
+@UtilityClass
+public class SnapshotFormat {
+    static final byte[] MAGIC = {'T', 'S', 'N', 'P'};
+    static final byte FIXED_RESOLUTIONS_VERSION = 1;
+    static final byte SUM_ONLY_VERSION = 2;
+    static final byte TIMESTAMP_CHECKPOINT_VERSION = 3;
+    static final byte VERSION = 4;
+    static final int JSON_VERSION = 0;
+    // Fixed part of the header
+    static final int HEADER_SIZE = MAGIC.length + 1 + Long.BYTES;
+    static final int MAX_HEADER_SIZE = 4096;
+    // Bucket widths of version 1 snapshots and of the legacy JSON ones
+    static final long[] FIXED_RESOLUTION_WIDTHS = {1000, 60_000, 3_600_000};
+    static final int TRAILER_SIZE = Long.BYTES + Integer.BYTES + MAGIC.length;
+
+    // Returns the snapshot format version, JSON_VERSION for snapshots written before the binary format
+    static int readVersion(File file) throws IOException {
+        try (var in = new FileInputStream(file)) {
+            byte[] header = in.readNBytes(MAGIC.length + 1);
+            if (header.length == MAGIC.length + 1 && Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+                return header[MAGIC.length];
+            }
+            return JSON_VERSION;
+        }
+    }
+
+    // Byte aligned variant of Gorilla's XOR compression: a repeated value takes 1 byte
+    static void putXor(ByteBuffer buffer, long xor) {
+        if (xor == 0) {
+            buffer.put((byte) (Long.BYTES << 4));
+            return;
+        }
+        int leading = Long.numberOfLeadingZeros(xor) / Byte.SIZE;
+        int trailing = Long.numberOfTrailingZeros(xor) / Byte.SIZE;
+        buffer.put((byte) (leading << 4 | trailing));
+        for (int shift = (Long.BYTES - leading - 1) * Byte.SIZE; shift >= trailing * Byte.SIZE; shift -= Byte.SIZE) {
+            buffer.put((byte) (xor >>> shift));
+        }
+    }
+
+    static long getXor(ByteBuffer buffer) {
+        int header = buffer.get() & 0xFF;
+        int leading = header >>> 4;
+        int trailing = header & 0x0F;
+        long xor = 0;
+        for (int i = leading; i < Long.BYTES - trailing; i++) {
+            xor = xor << Byte.SIZE | (buffer.get() & 0xFF);
+        }
+        return xor << (trailing * Byte.SIZE);
+    }
+}
@@ -1,7 +1,5 @@
 package db.database;
 
-import db.model.MetricLabel;
-import db.model.Resolution;
 import db.model.SnapshotEntry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
@@ -12,66 +10,342 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Map;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
 
 import static db.database.FileUtils.OBJECT_MAPPER;
 
+/**
+ * Keeps a chain of a base snapshot and deltas per shard of the database, in the shard's directory
+ * below the snapshot path. Each shard's snapshots carry the sequence number of the shard's WAL they
+ * hold every entry up to, the checkpoint its own WAL is replayed from, and per series the sequence
+ * of the last write they hold.
+ * <p>
+ * The sequence is read before any series is, and a series is read under its monitor, which writers
+ * hold from logging a write until it is applied: every write logged up to the sequence is in the
+ * snapshot, and of the later ones exactly those up to the sequence recorded with their series.
+ */
 @Slf4j
 @Service
 public class SnapshotManager {
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String DELTA_SUFFIX = ".delta";
+
     private final Path snapshotPath;
+    private final Path[] shardPaths;
+    private final int maxDeltas;
+    private final Resolutions resolutions;
+    private final TSDBMetrics metrics;
+    // Per shard, set when a delta could not be written or restored, the chain can't be extended safely anymore
+    private final boolean[] fullSnapshotRequired;
+    // Per shard, the checkpoint of the latest snapshot loaded or written
+    private final WALCheckpoint[] checkpoints;
 
-    public SnapshotManager(TSDBConfiguration configuration) throws IOException {
+    public SnapshotManager(TSDBConfiguration configuration, Resolutions resolutions, TSDBMetrics metrics) throws IOException {
+        this.resolutions = resolutions;
+        this.metrics = metrics;
         this.snapshotPath = Paths.get(configuration.snapshot().path());
+        this.maxDeltas = configuration.snapshot().maxDeltas();
         if (!Files.exists(snapshotPath)) {
             Files.createDirectories(snapshotPath);
         }
 
+        int shardCount = Math.max(1, configuration.shards());
+        FileUtils.checkShardLayout(snapshotPath, shardCount);
+        this.shardPaths = new Path[shardCount];
+        this.fullSnapshotRequired = new boolean[shardCount];
+        this.checkpoints = new WALCheckpoint[shardCount];
+        Arrays.fill(checkpoints, WALCheckpoint.NONE);
+        for (int shard = 0; shard < shardCount; shard++) {
+            shardPaths[shard] = FileUtils.shardDirectory(snapshotPath, shard, shardCount);
+            Files.createDirectories(shardPaths[shard]);
+        }
+    }
+
+    /**
+     * Writes a delta holding the series written since the previous snapshot, chained to the latest
+     * base snapshot. Once the chain is long or large enough, a new base is written from memory
+     * instead, which compacts the chain, and the previous chain is deleted.
+     */
+    public synchronized void save(InMemoryTSDB tsdb) throws IOException {
+        // A shard failing leaves the others to be snapshotted
+        IOException failure = null;
+        for (int shard = 0; shard < shardPaths.length; shard++) {
+            try {
+                save(tsdb, shard);
+            } catch (IOException e) {
+                metrics.getSnapshotFailures().increment();
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void save(InMemoryTSDB tsdb, int shard) throws IOException {
+        File base = FileUtils.findLatestSnapshot(shardPaths[shard].toFile());
+        List<File> deltas = base == null ? List.of() : findDeltas(base);
+
+        if (base == null || fullSnapshotRequired[shard] || deltas.size() >= maxDeltas || totalLength(deltas) > base.length()) {
+            saveFull(tsdb, shard);
+        } else {
+            saveDelta(tsdb, shard, base);
+        }
     }
 
-    public void save(InMemoryTSDB tsdb) throws IOException {
-        Map<String, Map<MetricLabel, MetricStore>> metrics = tsdb.getMetrics();
-        Path filePath = snapshotPath.toAbsolutePath().resolve(System.currentTimeMillis() + ".snapshot");
+    private void saveFull(InMemoryTSDB tsdb, int shard) throws IOException {
+        long start = System.nanoTime();
+        long walSequence = tsdb.lastSequence(shard);
+        List<Series> series = tsdb.getSeries(shard);
+        Path filePath = shardPaths[shard].toAbsolutePath().resolve(System.currentTimeMillis() + SNAPSHOT_SUFFIX);
+        fullSnapshotRequired[shard] = false;
+
+        try {
+            writeAtomically(filePath, tsdb.getLatestTimestamp(shard), walSequence, writer -> {
+                for (var entry : series) {
+                    // Taken as the data is read, anything written after goes into the next delta
+                    synchronized (entry) {
+                        entry.getStore().takeDirtyRange();
+                        writer.write(entry);
+                    }
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            fullSnapshotRequired[shard] = true;
+            throw e;
+        }
+        checkpoints[shard] = WALCheckpoint.atSequence(walSequence);
+        deleteOlderChains(filePath.toFile());
+        metrics.getFullSnapshots().recordSince(start);
 
-        try (var writer = new java.io.FileWriter(filePath.toFile())) {
-            for (var entry : metrics.entrySet()) {
-                var metricKey = entry.getKey();
+        log.info("Wrote snapshot {} with {} series in {} ms",
+            displayName(filePath), series.size(), (System.nanoTime() - start) / 1_000_000);
+    }
 
-                for (var metricStoreEntry : entry.getValue().entrySet()) {
-                    var tags = metricStoreEntry.getKey().getTags();
-                    var metricStore = metricStoreEntry.getValue();
+    private void saveDelta(InMemoryTSDB tsdb, int shard, File base) throws IOException {
+        long start = System.nanoTime();
+        long latestTimestamp = tsdb.getLatestTimestamp(shard);
+        long walSequence = tsdb.lastSequence(shard);
+        List<Series> series = tsdb.getSeries(shard);
+        // Without a delta the previous checkpoint stands, writes still being applied are not missed
+        if (series.stream().noneMatch(entry -> entry.getStore().isDirty())) {
+            return;
+        }
 
-                    for (var resolution : Resolution.values()) {
-                        var snapshotEntry = new SnapshotEntry(metricKey, tags, metricStore.getDataByResolution(resolution));
-                        writer.write(OBJECT_MAPPER.writeValueAsString(snapshotEntry));
-                        writer.write("\n");
+        String baseId = base.getName().substring(0, base.getName().length() - SNAPSHOT_SUFFIX.length());
+        Path filePath = base.toPath().toAbsolutePath().resolveSibling(baseId + "_" + System.currentTimeMillis() + DELTA_SUFFIX);
+        int dirtySeries;
+        try {
+            dirtySeries = writeAtomically(filePath, latestTimestamp, walSequence, writer -> {
+                for (var entry : series) {
+                    synchronized (entry) {
+                        var range = entry.getStore().takeDirtyRange();
+                        if (range != null) {
+                            writer.write(entry, range);
+                        }
                     }
                 }
+            });
+        } catch (IOException | RuntimeException e) {
+            // The dirty ranges taken are gone, only a full snapshot captures them again
+            fullSnapshotRequired[shard] = true;
+            throw e;
+        }
+        checkpoints[shard] = WALCheckpoint.atSequence(walSequence);
+        metrics.getDeltaSnapshots().recordSince(start);
+
+        log.info("Wrote delta snapshot {} with {} dirty series in {} ms",
+            displayName(filePath), dirtySeries, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // Where the shard's WAL is covered up to by its latest snapshot, the WAL can be truncated up to there
+    public synchronized WALCheckpoint checkpoint(int shard) {
+        return checkpoints[shard];
+    }
+
+    // The file name, prefixed with its shard directory when sharded
+    private String displayName(Path filePath) {
+        return snapshotPath.toAbsolutePath().relativize(filePath.toAbsolutePath()).toString();
+    }
+
+    private interface SnapshotBody {
+        void writeTo(BinarySnapshotWriter writer) throws IOException;
+    }
+
+    // Written aside and renamed once complete, so a crash never leaves a partial snapshot behind.
+    // Returns the number of series written.
+    private int writeAtomically(Path filePath, long latestTimestamp, long walSequence, SnapshotBody body) throws IOException {
+        Path tempPath = filePath.resolveSibling(filePath.getFileName() + ".tmp");
+        int seriesCount;
+        try (var writer = new BinarySnapshotWriter(tempPath, latestTimestamp, walSequence, resolutions.all())) {
+            body.writeTo(writer);
+            seriesCount = writer.seriesCount();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+        Files.move(tempPath, filePath, StandardCopyOption.ATOMIC_MOVE);
+        return seriesCount;
+    }
+
+    // Deltas chained to the base, oldest first
+    private List<File> findDeltas(File base) {
+        String prefix = base.getName().substring(0, base.getName().length() - SNAPSHOT_SUFFIX.length()) + "_";
+        File[] files = base.getAbsoluteFile().getParentFile().listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(DELTA_SUFFIX));
+        if (files == null) {
+            return List.of();
+        }
+
+        Arrays.sort(files, Comparator.comparingLong(file -> {
+            String name = file.getName();
+            try {
+                return Long.parseLong(name.substring(prefix.length(), name.length() - DELTA_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                return Long.MAX_VALUE;
+            }
+        }));
+        return List.of(files);
+    }
+
+    private static long totalLength(List<File> files) {
+        long length = 0;
+        for (var file : files) {
+            length += file.length();
+        }
+        return length;
+    }
+
+    // Removes the snapshots and deltas superseded by a new base
+    private void deleteOlderChains(File base) {
+        File[] files = base.getAbsoluteFile().getParentFile().listFiles((dir, name) ->
+            (name.endsWith(SNAPSHOT_SUFFIX) || name.endsWith(DELTA_SUFFIX)) && !name.equals(base.getName()));
+        if (files == null) return;
+
+        for (var file : files) {
+            if (!file.delete()) {
+                log.warn("Could not delete superseded snapshot file {}", file);
+            }
+        }
+    }
+
+    /**
+     * Loads the chain of every shard into the database, over the chunks it may already hold from
+     * the cold tier.
+     *
+     * @return false if no shard has a snapshot
+     */
+    public synchronized boolean load(InMemoryTSDB tsdb) throws IOException {
+        boolean loaded = false;
+        for (int shard = 0; shard < shardPaths.length; shard++) {
+            File base = FileUtils.findLatestSnapshot(shardPaths[shard].toFile());
+            if (!loadBySnapshot(tsdb, shard, base)) {
+                continue;
+            }
+            loaded = true;
+
+            for (var delta : findDeltas(base)) {
+                try {
+                    applyDelta(tsdb, shard, delta);
+                } catch (IOException e) {
+                    // Later deltas only make sense on top of this one
+                    log.warn("Could not apply delta snapshot {}, ignoring it and the rest of the chain", delta, e);
+                    fullSnapshotRequired[shard] = true;
+                    break;
+                }
             }
         }
+        return loaded;
     }
 
-    public InMemoryTSDB load(RetentionPolicy retentionPolicy, WriteAheadLog writeAheadLog) throws IOException {
-        return loadBySnapshot(retentionPolicy, writeAheadLog, FileUtils.findLatestSnapshot(snapshotPath.toFile()));
+    private void applyDelta(InMemoryTSDB tsdb, int shard, File delta) throws IOException {
+        try (var reader = new BinarySnapshotReader(delta, resolutions)) {
+            for (var entry : reader.readIndex()) {
+                var series = tsdb.getOrCreateSeries(entry.metricName(), entry.tags());
+                reader.load(entry, series.getStore(), true);
+            }
+            tsdb.restoreLatestTimestamp(shard, reader.latestTimestamp());
+            checkpoints[shard] = reader.checkpoint();
+        }
+        log.info("Applied delta snapshot {}", displayName(delta.toPath()));
     }
 
-    public InMemoryTSDB loadBySnapshot(RetentionPolicy retentionPolicy, WriteAheadLog writeAheadLog, File file) throws IOException {
-        var tsdb = new InMemoryTSDB(retentionPolicy, writeAheadLog);
+    /**
+     * Loads a base snapshot of the shard into the database.
+     *
+     * @return false if there is no such file
+     */
+    public boolean loadBySnapshot(InMemoryTSDB tsdb, int shard, File file) throws IOException {
         if (file == null || !file.exists()) {
-            log.info("No snapshot file found!");
-            return null;
+            log.info("No snapshot file found in {}", shardPaths[shard]);
+            return false;
+        }
+
+        long start = System.nanoTime();
+        int version = SnapshotFormat.readVersion(file);
+        switch (version) {
+            case SnapshotFormat.VERSION, SnapshotFormat.TIMESTAMP_CHECKPOINT_VERSION, SnapshotFormat.SUM_ONLY_VERSION,
+                 SnapshotFormat.FIXED_RESOLUTIONS_VERSION -> loadBinary(tsdb, shard, file);
+            case SnapshotFormat.JSON_VERSION -> loadJson(tsdb, shard, file);
+            default -> throw new IOException("Unsupported snapshot version " + version + " in " + file);
+        }
+        log.info("Loaded snapshot {} ({} bytes, {} series) in {} ms",
+            displayName(file.toPath()), file.length(), tsdb.getSeries(shard).size(), (System.nanoTime() - start) / 1_000_000);
+
+        return true;
+    }
+
+    private void loadBinary(InMemoryTSDB tsdb, int shard, File file) throws IOException {
+        try (var reader = new BinarySnapshotReader(file, resolutions)) {
+            for (var entry : reader.readIndex()) {
+                var series = tsdb.getOrCreateSeries(entry.metricName(), entry.tags());
+                reader.load(entry, series.getStore(), false);
+            }
+            tsdb.restoreLatestTimestamp(shard, reader.latestTimestamp());
+            checkpoints[shard] = reader.checkpoint();
         }
+    }
+
+    // Legacy format: one JSON line per series and resolution, secondly, minutely and hourly in that order
+    private void loadJson(InMemoryTSDB tsdb, int shard, File file) throws IOException {
+        long[] widths = SnapshotFormat.FIXED_RESOLUTION_WIDTHS;
         try (var reader = new java.io.FileReader(file)) {
             var bufferedReader = new java.io.BufferedReader(reader);
             String line;
+            int lineNumber = 0;
             while ((line = bufferedReader.readLine()) != null) {
+                long widthMs = widths[lineNumber++ % widths.length];
                 var snapshotEntry = OBJECT_MAPPER.readValue(line, SnapshotEntry.class);
-                for (var dataPoint : snapshotEntry.dataPoints().entrySet()) {
-                    tsdb.putInternal(snapshotEntry.metricKey(), new MetricLabel(snapshotEntry.labels()), dataPoint.getKey(), dataPoint.getValue());
+                var series = tsdb.getOrCreateSeries(snapshotEntry.metricKey(), snapshotEntry.labels());
+
+                // Only the bucket sums were kept, each is restored as a single sample
+                var dataPoints = new TreeMap<>(snapshotEntry.dataPoints());
+                var summaries = new SummaryColumns(dataPoints.size());
+                for (var dataPoint : dataPoints.entrySet()) {
+                    double value = dataPoint.getValue();
+                    summaries.accept(dataPoint.getKey(), 1, value, value, value, value);
+                }
+
+                var resolution = resolutions.byWidth(widthMs);
+                if (resolution != null) {
+                    series.getStore().load(resolution, summaries);
+                }
+
+                int size = summaries.size;
+                if (widthMs == widths[0] && size > 0) {
+                    long latest = summaries.buckets[size - 1] * widthMs;
+                    series.getStore().restoreLatestTimestamp(latest);
+                    tsdb.restoreLatestTimestamp(shard, latest);
                 }
             }
         }
-
-        return tsdb;
+        checkpoints[shard] = WALCheckpoint.atTimestamp(tsdb.getLatestTimestamp(shard));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,82 @@
+package db.database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static db.database.WALFormat.putVarLong;
+
+// Segment that grows by appends through a FileChannel, records are buffered until flush
+class StreamWALSegmentWriter extends WALSegmentWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long rotationByteSize;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long size;
+
+    StreamWALSegmentWriter(Path path, long rotationByteSize, long firstSequence) throws IOException {
+        super(path);
+        this.rotationByteSize = rotationByteSize;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        buffer.put(WALFormat.MAGIC).put(WALFormat.VERSION);
+        size = WALFormat.HEADER_SIZE;
+        begin(firstSequence);
+    }
+
+    // Hands the buffered records over to the OS
+    @Override
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    long size() {
+        return size;
+    }
+
+    @Override
+    boolean isFull() {
+        return size > rotationByteSize;
+    }
+
+    @Override
+    protected void write(int length, int checksum, ByteBuffer body) throws IOException {
+        if (buffer.remaining() < length + MAX_FRAME_OVERHEAD) {
+            flush();
+        }
+        if (buffer.remaining() < length + MAX_FRAME_OVERHEAD) {
+            // Record larger than the buffer, write it straight through
+            var large = ByteBuffer.allocate(length + MAX_FRAME_OVERHEAD);
+            putVarLong(large, length);
+            large.putInt(checksum).put(body).flip();
+            while (large.hasRemaining()) {
+                channel.write(large);
+            }
+            size += large.limit();
+            return;
+        }
+
+        int start = buffer.position();
+        putVarLong(buffer, length);
+        buffer.putInt(checksum);
+        buffer.put(body);
+        size += buffer.position() - start;
+    }
+
+    @Override
+    protected void release() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,105 @@
+package db.database;
+
+import java.util.Arrays;
+
+/**
+ * Growable columns of bucket summaries, kept sorted by bucket by their users. Appending through
+ * {@link #accept} makes it a collector for any summary stream.
+ */
+class SummaryColumns implements SummaryConsumer {
+    long[] buckets;
+    long[] counts;
+    double[] sums;
+    double[] mins;
+    double[] maxs;
+    double[] lasts;
+    int size;
+
+    SummaryColumns(int capacity) {
+        buckets = new long[capacity];
+        counts = new long[capacity];
+        sums = new double[capacity];
+        mins = new double[capacity];
+        maxs = new double[capacity];
+        lasts = new double[capacity];
+    }
+
+    int capacity() {
+        return buckets.length;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    @Override
+    public void accept(long bucket, long count, double sum, double min, double max, double last) {
+        if (size == buckets.length) {
+            grow(Math.max(1, size * 2));
+        }
+        set(size++, bucket, count, sum, min, max, last);
+    }
+
+    void set(int index, long bucket, long count, double sum, double min, double max, double last) {
+        buckets[index] = bucket;
+        counts[index] = count;
+        sums[index] = sum;
+        mins[index] = min;
+        maxs[index] = max;
+        lasts[index] = last;
+    }
+
+    // Folds a summary of the same bucket into the one at index, the given one being written later
+    void combine(int index, long count, double sum, double min, double max, double last) {
+        counts[index] += count;
+        sums[index] += sum;
+        mins[index] = Math.min(mins[index], min);
+        maxs[index] = Math.max(maxs[index], max);
+        lasts[index] = last;
+    }
+
+    // Opens a slot at index, shifting the following summaries, growing up to maxCapacity
+    void insert(int index, int maxCapacity, long bucket, long count, double sum, double min, double max, double last) {
+        if (size == buckets.length) {
+            grow(Math.min(buckets.length * 2, maxCapacity));
+        }
+        int moved = size - index;
+        System.arraycopy(buckets, index, buckets, index + 1, moved);
+        System.arraycopy(counts, index, counts, index + 1, moved);
+        System.arraycopy(sums, index, sums, index + 1, moved);
+        System.arraycopy(mins, index, mins, index + 1, moved);
+        System.arraycopy(maxs, index, maxs, index + 1, moved);
+        System.arraycopy(lasts, index, lasts, index + 1, moved);
+        set(index, bucket, count, sum, min, max, last);
+        size++;
+    }
+
+    // Copies the summaries in [from, to) with at least minCapacity room
+    SummaryColumns copy(int from, int to, int minCapacity) {
+        var copy = new SummaryColumns(0);
+        int capacity = Math.max(to - from, minCapacity);
+        copy.buckets = Arrays.copyOfRange(buckets, from, from + capacity);
+        copy.counts = Arrays.copyOfRange(counts, from, from + capacity);
+        copy.sums = Arrays.copyOfRange(sums, from, from + capacity);
+        copy.mins = Arrays.copyOfRange(mins, from, from + capacity);
+        copy.maxs = Arrays.copyOfRange(maxs, from, from + capacity);
+        copy.lasts = Arrays.copyOfRange(lasts, from, from + capacity);
+        copy.size = to - from;
+        return copy;
+    }
+
+    void forEach(SummaryConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            consumer.accept(buckets[i], counts[i], sums[i], mins[i], maxs[i], lasts[i]);
+        }
+    }
+
+    private void grow(int capacity) {
+        buckets = Arrays.copyOf(buckets, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        sums = Arrays.copyOf(sums, capacity);
+        mins = Arrays.copyOf(mins, capacity);
+        maxs = Arrays.copyOf(maxs, capacity);
+        lasts = Arrays.copyOf(lasts, capacity);
+    }
+}
@@ -0,0 +1,7 @@
+package db.database;
+
+// Receives the summary of one bucket: how many samples fell in it, their sum, min and max, and the last one written
+@FunctionalInterface
+public interface SummaryConsumer {
+    void accept(long bucket, long count, double sum, double min, double max, double last);
+}
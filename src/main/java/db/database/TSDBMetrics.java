@@ -0,0 +1,50 @@
+package db.database;
+
+import lombok.Getter;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms the database records about itself, exported by /server/stats.
+ * They are recorded once per request, batch, group commit or background run, never per sample,
+ * so recording stays off the per-sample hot path.
+ */
+@Getter
+@Service
+public class TSDBMetrics {
+    // Requests, from arrival until they are answered
+    private final LatencyHistogram putRequests = new LatencyHistogram();
+    private final LatencyHistogram writeRequests = new LatencyHistogram();
+    private final LatencyHistogram queries = new LatencyHistogram();
+    private final LatencyHistogram streamQueries = new LatencyHistogram();
+    private final LatencyHistogram aggregations = new LatencyHistogram();
+
+    // Ingest batches, from acceptance until a writer picks them up, and writing them
+    private final LatencyHistogram ingestWait = new LatencyHistogram();
+    private final LatencyHistogram ingestWrite = new LatencyHistogram();
+
+    // WAL group commits: writing and flushing a batch of entries, fsync and segment rotation
+    private final LatencyHistogram walFlush = new LatencyHistogram();
+    private final LatencyHistogram walFsync = new LatencyHistogram();
+    private final LatencyHistogram walRotate = new LatencyHistogram();
+    private final LongAdder walEntries = new LongAdder();
+    private final LongAdder walBackpressure = new LongAdder();
+
+    private final LatencyHistogram fullSnapshots = new LatencyHistogram();
+    private final LatencyHistogram deltaSnapshots = new LatencyHistogram();
+    private final LongAdder snapshotFailures = new LongAdder();
+
+    private final LatencyHistogram retentionSweeps = new LatencyHistogram();
+    private final LongAdder sweptSeries = new LongAdder();
+    private final LatencyHistogram rollups = new LatencyHistogram();
+
+    // Runs moving chunks to the cold tier, and the chunks moved off the heap
+    private final LatencyHistogram coldSpills = new LatencyHistogram();
+    private final LongAdder coldChunks = new LongAdder();
+
+    // WAL replay at startup
+    private final AtomicLong replayedEntries = new AtomicLong();
+    private final AtomicLong replayNanos = new AtomicLong();
+}
@@ -6,7 +6,6 @@ import db.TSDBConfiguration;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.time.Duration;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -14,28 +13,80 @@ import java.util.concurrent.TimeUnit;
 @Service
 public class TSDBScheduler implements Closeable {
     private final ScheduledExecutorService executor;
+    private final TSDBMetrics metrics;
+    private int sweepCursor;
 
     public TSDBScheduler(
         TSDBConfiguration configuration,
         TSDBBootstrapper bootstrapper,
         InMemoryTSDB tsdb,
         ScheduledExecutorService executor,
-        WriteAheadLog writeAheadLog
+        ShardedWriteAheadLog writeAheadLog,
+        SnapshotManager snapshotManager,
+        ColdStorage coldStorage,
+        TSDBMetrics metrics
     ) {
         this.executor = executor;
-        initScheduledJobs(configuration, bootstrapper, tsdb, executor, writeAheadLog);
+        this.metrics = metrics;
+        initScheduledJobs(configuration, bootstrapper, tsdb, executor, writeAheadLog, snapshotManager, coldStorage);
     }
 
-    private void initScheduledJobs(TSDBConfiguration configuration, TSDBBootstrapper bootstrapper, InMemoryTSDB tsdb, ScheduledExecutorService executor, WriteAheadLog writeAheadLog) {
+    private void initScheduledJobs(TSDBConfiguration configuration, TSDBBootstrapper bootstrapper, InMemoryTSDB tsdb, ScheduledExecutorService executor, ShardedWriteAheadLog writeAheadLog, SnapshotManager snapshotManager, ColdStorage coldStorage) {
         executor.scheduleAtFixedRate(() -> schedulePeriodicSnapshotting(bootstrapper, tsdb), configuration.snapshot().initialDelayMs(), configuration.snapshot().intervalMs(), TimeUnit.MILLISECONDS);
 
-        executor.scheduleAtFixedRate(() -> schedulePeriodicTruncating(writeAheadLog), configuration.snapshot().initialDelayMs(), configuration.snapshot().intervalMs(), TimeUnit.MILLISECONDS);
+        executor.scheduleAtFixedRate(() -> schedulePeriodicTruncating(writeAheadLog, snapshotManager), configuration.snapshot().initialDelayMs(), configuration.snapshot().intervalMs(), TimeUnit.MILLISECONDS);
+
+        var retention = configuration.retention();
+        executor.scheduleWithFixedDelay(() -> sweepRetention(tsdb, retention.sweepBatchSize()), retention.sweepIntervalMs(), retention.sweepIntervalMs(), TimeUnit.MILLISECONDS);
+
+        var rollup = configuration.rollup();
+        executor.scheduleWithFixedDelay(() -> rollUp(tsdb, rollup.delayMs()), rollup.intervalMs(), rollup.intervalMs(), TimeUnit.MILLISECONDS);
+
+        if (coldStorage.isEnabled()) {
+            long intervalMs = configuration.coldStorage().intervalMs();
+            executor.scheduleWithFixedDelay(() -> spillCold(coldStorage, tsdb), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void spillCold(ColdStorage coldStorage, InMemoryTSDB tsdb) {
+        try {
+            coldStorage.spill(tsdb, System.currentTimeMillis());
+        } catch (IOException | RuntimeException e) {
+            log.error("Moving chunks to the cold tier failed", e);
+        }
+    }
+
+    // Buckets younger than the delay are left to the tail, they may still be receiving samples
+    private void rollUp(InMemoryTSDB tsdb, long delayMs) {
+        long start = System.nanoTime();
+        try {
+            tsdb.rollUp(System.currentTimeMillis() - delayMs);
+            metrics.getRollups().recordSince(start);
+        } catch (RuntimeException e) {
+            log.error("Rollup failed", e);
+        }
+    }
+
+    // Visits a bounded number of series per tick, a full pass over the database spans several ticks
+    private void sweepRetention(InMemoryTSDB tsdb, int batchSize) {
+        long start = System.nanoTime();
+        try {
+            int from = sweepCursor;
+            sweepCursor = tsdb.sweepRetention(from, batchSize, System.currentTimeMillis());
+            metrics.getRetentionSweeps().recordSince(start);
+            metrics.getSweptSeries().add(sweepCursor > from ? sweepCursor - from : sweepCursor);
+        } catch (RuntimeException e) {
+            log.error("Retention sweep failed", e);
+        }
     }
 
-    private void schedulePeriodicTruncating(WriteAheadLog writeAheadLog) {
-        long twoWeeksAgo = System.currentTimeMillis() - Duration.ofMinutes(1).toMillis();
+    // Drops the segments each shard's latest snapshot holds entirely
+    private void schedulePeriodicTruncating(ShardedWriteAheadLog writeAheadLog, SnapshotManager snapshotManager) {
+        var shards = writeAheadLog.shards();
         try {
-            writeAheadLog.truncateUpTo(twoWeeksAgo);
+            for (int shard = 0; shard < shards.size(); shard++) {
+                shards.get(shard).truncateUpTo(snapshotManager.checkpoint(shard));
+            }
         } catch (IOException e) {
             log.error("Truncating TSDB scheduled job failed", e);
         }
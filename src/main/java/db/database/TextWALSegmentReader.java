@@ -0,0 +1,52 @@
+package db.database;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import db.model.MetricLabel;
+import db.model.WALEntry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Map;
+
+import static db.database.FileUtils.OBJECT_MAPPER;
+
+// Legacy ';;' separated text segments, written before the binary format was introduced
+class TextWALSegmentReader implements WALSegmentReader {
+    static final String SEPARATOR = ";;";
+
+    private final BufferedReader reader;
+
+    TextWALSegmentReader(File file) throws IOException {
+        this.reader = new BufferedReader(new FileReader(file));
+    }
+
+    @Override
+    public WALEntry next() throws IOException {
+        String line = reader.readLine();
+        if (line == null) return null;
+
+        String[] parts = line.split(SEPARATOR, 4);
+        if (parts.length < 4) throw new IOException("Invalid WAL line: " + line);
+
+        long timestamp = Long.parseLong(parts[0]);
+        String metricName = parts[1];
+        Map<String, String> map = OBJECT_MAPPER.readValue(parts[2], new TypeReference<>() {});
+        MetricLabel label = new MetricLabel(map);
+        double value = Double.parseDouble(parts[3]);
+
+        return new WALEntry(0, timestamp, metricName, label, value);
+    }
+
+    static long lastTimestamp(File file) throws IOException {
+        String lastLine = FileUtils.readLastLine(file);
+        if (lastLine == null || lastLine.isEmpty()) return Long.MIN_VALUE;
+        return Long.parseLong(lastLine.split(SEPARATOR, 4)[0]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,8 @@
+package db.database;
+
+// Thrown by WriteAheadLog.append when the WAL cannot accept more entries in time
+public class WALBackpressureException extends RuntimeException {
+    public WALBackpressureException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,51 @@
+package db.database;
+
+import db.model.WALEntry;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where a shard's snapshot chain leaves off in the shard's WAL: every entry numbered up to
+ * sequence is in the snapshot. Entries after it may be too, for the series whose snapshot block
+ * was written later, see {@link MetricStore#getAppliedSequence()}.
+ * <p>
+ * Snapshots written before the entries were numbered only carry their latest timestamp; the
+ * unnumbered entries are then taken as covered up to it, which is all those snapshots allow.
+ */
+public record WALCheckpoint(long sequence, long timestamp) {
+    // Nothing is covered, the whole WAL is replayed
+    static final WALCheckpoint NONE = new WALCheckpoint(0, Long.MIN_VALUE);
+
+    // A snapshot holding every numbered entry up to sequence, and every unnumbered one
+    static WALCheckpoint atSequence(long sequence) {
+        return new WALCheckpoint(sequence, Long.MAX_VALUE);
+    }
+
+    // A snapshot written before entries were numbered
+    static WALCheckpoint atTimestamp(long timestamp) {
+        return new WALCheckpoint(0, timestamp);
+    }
+
+    boolean covers(WALEntry entry) {
+        return entry.sequence() == 0 ? entry.timestamp() <= timestamp : entry.sequence() <= sequence;
+    }
+
+    /**
+     * Whether every entry of the segment is covered. A numbered segment ends one before the first
+     * sequence of the segment after it, so the last segment is never taken as covered.
+     *
+     * @param next the segment following it, null for the last one
+     */
+    boolean covers(File segment, File next) throws IOException {
+        long first = WALSegmentReader.firstSequence(segment);
+        if (first == 0) {
+            return WALSegmentReader.lastTimestamp(segment) <= timestamp;
+        }
+        if (next == null) {
+            return false;
+        }
+        long nextFirst = WALSegmentReader.firstSequence(next);
+        return nextFirst > 0 && nextFirst - 1 <= sequence;
+    }
+}
@@ -0,0 +1,135 @@
+package db.database;
+
+import lombok.experimental.UtilityClass;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Binary WAL segment layout:
+ * <pre>
+ * header : "TWAL" magic, 1 byte version
+ *          version 2 (preallocated, memory mapped segments) adds a long committed offset,
+ *          data beyond it is not part of the segment
+ * record : varint length | int CRC32C of body | body
+ * body   : 1 byte type | payload
+ *   SEGMENT_START     : long sequence number of the first sample of the segment, the first record
+ *   SERIES_DEFINITION : varint series id, metric name, varint tag count, (name, value)*
+ *   SAMPLE            : varint series id, zigzag varint delta from the previous sample timestamp, raw double
+ *   SEGMENT_END       : long highest timestamp in the segment, written when the segment is closed
+ * </pre>
+ * Samples are numbered consecutively across the segments of a WAL, the sequence number of a
+ * sample is the segment's first sequence plus the samples before it in the segment. Snapshots
+ * record the sequence they are complete up to. Segments written before SEGMENT_START existed
+ * have unnumbered samples.
+ * <p>
+ * Strings are a varint byte length followed by UTF-8 bytes. Segments without the magic are the
+ * legacy text format and are still replayed.
+ */
+@UtilityClass
+public class WALFormat {
+    static final byte[] MAGIC = {'T', 'W', 'A', 'L'};
+    static final byte VERSION = 1;
+    static final byte MAPPED_VERSION = 2;
+    static final int TEXT_VERSION = 0;
+    static final int HEADER_SIZE = MAGIC.length + 1;
+    static final int COMMITTED_OFFSET_POSITION = HEADER_SIZE;
+    static final int MAPPED_HEADER_SIZE = HEADER_SIZE + Long.BYTES;
+
+    static final byte SERIES_DEFINITION = 1;
+    static final byte SAMPLE = 2;
+    static final byte SEGMENT_END = 3;
+    static final byte SEGMENT_START = 4;
+    // 1 byte length, 4 bytes CRC, 1 byte type, 8 bytes timestamp
+    static final int SEGMENT_END_SIZE = 14;
+    // Largest SERIES_DEFINITION body of a series written by clients, well within the room a mapped segment keeps free
+    static final int MAX_SERIES_DEFINITION_BYTES = 32 * 1024;
+    // Varint of an int, the longest one
+    private static final int MAX_VARINT_INT_BYTES = 5;
+
+    // Returns the segment format version, TEXT_VERSION for segments written before the binary format
+    static int readVersion(File file) throws IOException {
+        try (var in = new FileInputStream(file)) {
+            byte[] header = in.readNBytes(HEADER_SIZE);
+            if (header.length == HEADER_SIZE && Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+                return header[MAGIC.length];
+            }
+            return TEXT_VERSION;
+        }
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putVarLong(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Checks that the SERIES_DEFINITION record of the series fits a WAL segment.
+     *
+     * @throws IllegalArgumentException if it takes more than {@link #MAX_SERIES_DEFINITION_BYTES}
+     */
+    static void checkSeriesDefinition(String metricName, Map<String, String> labels) {
+        // A char takes at most 3 UTF-8 bytes, the exact size is only worked out near the limit
+        if (seriesDefinitionSize(metricName, labels, false) <= MAX_SERIES_DEFINITION_BYTES) return;
+
+        int size = seriesDefinitionSize(metricName, labels, true);
+        if (size > MAX_SERIES_DEFINITION_BYTES) {
+            throw new IllegalArgumentException("Metric name and labels of series '" + metricName + "' take " + size
+                + " bytes, at most " + MAX_SERIES_DEFINITION_BYTES + " are allowed");
+        }
+    }
+
+    private static int seriesDefinitionSize(String metricName, Map<String, String> labels, boolean exact) {
+        int size = 1 + 2 * MAX_VARINT_INT_BYTES + stringSize(metricName, exact);
+        if (labels != null) {
+            for (var label : labels.entrySet()) {
+                size += stringSize(label.getKey(), exact) + stringSize(label.getValue(), exact);
+            }
+        }
+        return size;
+    }
+
+    private static int stringSize(String value, boolean exact) {
+        int length = exact ? value.getBytes(StandardCharsets.UTF_8).length : 3 * value.length();
+        return MAX_VARINT_INT_BYTES + length;
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = (int) getVarLong(buffer);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
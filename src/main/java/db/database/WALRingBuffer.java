@@ -0,0 +1,123 @@
+package db.database;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, pre-allocated multi-producer / single-consumer ring of pending WAL appends.
+ * Producers reserve room with a CAS, claim a slot from the tail, fill it in and publish it by
+ * writing the slot's sequence marker. The consumer reads contiguous published slots from the head
+ * and releases them in bulk. No locks are taken on either side.
+ * <p>
+ * Reserving and claiming are separate steps, so a producer can make sure of the room first and
+ * claim its slots later without a chance of finding the ring full.
+ */
+class WALRingBuffer {
+    private final int capacity;
+    private final int mask;
+    private final Series[] series;
+    private final long[] timestamps;
+    private final double[] values;
+    // published.get(i) == sequence + 1 once the slot claimed with that sequence is filled in
+    private final AtomicLongArray published;
+    private final AtomicLong tail = new AtomicLong();
+    // Slots claimed plus slots reserved but not claimed yet, never more than capacity ahead of the head
+    private final AtomicLong committed = new AtomicLong();
+    private volatile long head;
+
+    WALRingBuffer(int requestedCapacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+        this.mask = capacity - 1;
+        this.series = new Series[capacity];
+        this.timestamps = new long[capacity];
+        this.values = new double[capacity];
+        this.published = new AtomicLongArray(capacity);
+    }
+
+    // Reserves room for count entries, false when the ring has less room left
+    boolean tryReserve(int count) {
+        long reserved;
+        do {
+            reserved = committed.get();
+            if (reserved + count - head > capacity) {
+                return false;
+            }
+        } while (!committed.compareAndSet(reserved, reserved + count));
+        return true;
+    }
+
+    // Gives back reserved room that will not be claimed
+    void cancelReservation(int count) {
+        committed.addAndGet(-count);
+    }
+
+    /**
+     * Claims a slot in room reserved with tryReserve.
+     *
+     * @return the sequence number of the appended entry, counted from 1
+     */
+    long offerReserved(Series entrySeries, long timestamp, double value) {
+        long claimed = tail.getAndIncrement();
+        int index = (int) (claimed & mask);
+        series[index] = entrySeries;
+        timestamps[index] = timestamp;
+        values[index] = value;
+        published.set(index, claimed + 1);
+        return claimed + 1;
+    }
+
+    // Consumer only: number of contiguous published entries from the head, at most max
+    int available(int max) {
+        long start = head;
+        int count = 0;
+        while (count < max) {
+            long sequence = start + count;
+            if (published.get((int) (sequence & mask)) != sequence + 1) break;
+            count++;
+        }
+        return count;
+    }
+
+    Series seriesAt(int offset) {
+        return series[(int) ((head + offset) & mask)];
+    }
+
+    long timestampAt(int offset) {
+        return timestamps[(int) ((head + offset) & mask)];
+    }
+
+    double valueAt(int offset) {
+        return values[(int) ((head + offset) & mask)];
+    }
+
+    // Consumer only: frees the first count entries for producers
+    void release(int count) {
+        long start = head;
+        for (int i = 0; i < count; i++) {
+            series[(int) ((start + i) & mask)] = null;
+        }
+        head = start + count;
+    }
+
+    // Sequence number of the last released entry
+    long consumedSequence() {
+        return head;
+    }
+
+    // Sequence number of the last claimed entry
+    long claimedSequence() {
+        return tail.get();
+    }
+
+    boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    int size() {
+        return (int) (tail.get() - head);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
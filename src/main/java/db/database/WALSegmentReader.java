@@ -0,0 +1,49 @@
+package db.database;
+
+import db.model.WALEntry;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+// Reads the entries of a single WAL segment, whatever format it was written in
+interface WALSegmentReader extends Closeable {
+    /**
+     * @return the next entry, or null once the segment is exhausted or its valid data ends
+     */
+    WALEntry next() throws IOException;
+
+    static WALSegmentReader open(File file) throws IOException {
+        int version = WALFormat.readVersion(file);
+        return switch (version) {
+            case WALFormat.TEXT_VERSION -> new TextWALSegmentReader(file);
+            case WALFormat.VERSION, WALFormat.MAPPED_VERSION -> new BinaryWALSegmentReader(file);
+            default -> throw new IOException("Unsupported WAL segment version " + version + " in " + file);
+        };
+    }
+
+    // Highest timestamp stored in the segment, Long.MIN_VALUE when it holds no entries
+    static long lastTimestamp(File file) throws IOException {
+        int version = WALFormat.readVersion(file);
+        if (version == WALFormat.TEXT_VERSION) {
+            return TextWALSegmentReader.lastTimestamp(file);
+        }
+        return BinaryWALSegmentReader.lastTimestamp(file);
+    }
+
+    // Sequence number of the first entry of the segment, 0 when its entries are not numbered
+    static long firstSequence(File file) throws IOException {
+        if (WALFormat.readVersion(file) == WALFormat.TEXT_VERSION) {
+            return 0;
+        }
+        return BinaryWALSegmentReader.firstSequence(file);
+    }
+
+    // Sequence number of the last entry of the segment, 0 when its entries are not numbered
+    static long lastSequence(File file) throws IOException {
+        if (WALFormat.readVersion(file) == WALFormat.TEXT_VERSION) {
+            return 0;
+        }
+        return BinaryWALSegmentReader.lastSequence(file);
+    }
+}
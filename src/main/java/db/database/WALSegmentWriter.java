@@ -0,0 +1,130 @@
+package db.database;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.zip.CRC32C;
+
+import static db.database.WALFormat.SAMPLE;
+import static db.database.WALFormat.SEGMENT_END;
+import static db.database.WALFormat.SEGMENT_START;
+import static db.database.WALFormat.SERIES_DEFINITION;
+import static db.database.WALFormat.putString;
+import static db.database.WALFormat.putVarLong;
+import static db.database.WALFormat.zigZag;
+
+// Encodes the records of one binary WAL segment, see WALFormat for the layout. Subclasses decide
+// where the framed records go. Not thread safe.
+abstract class WALSegmentWriter implements Closeable {
+    // varint length + CRC
+    static final int MAX_FRAME_OVERHEAD = 9;
+
+    protected final Path path;
+    private final CRC32C crc = new CRC32C();
+    private final BitSet definedSeries = new BitSet();
+    private ByteBuffer record = ByteBuffer.allocate(256);
+    private long previousTimestamp;
+    private long highestTimestamp = Long.MIN_VALUE;
+    // Sequence number of the next sample appended
+    private long nextSequence;
+
+    protected WALSegmentWriter(Path path) {
+        this.path = path;
+    }
+
+    // Writes the segment's first record, called by subclasses once their header is in place
+    protected final void begin(long firstSequence) throws IOException {
+        record.clear();
+        record.put(SEGMENT_START);
+        record.putLong(firstSequence);
+        writeRecord();
+        nextSequence = firstSequence;
+    }
+
+    // Appends a sample, preceded by the series definition the first time the series shows up in this segment
+    void append(Series series, long timestamp, double value) throws IOException {
+        if (!definedSeries.get(series.getId())) {
+            writeSeriesDefinition(series);
+            definedSeries.set(series.getId());
+        }
+
+        record.clear();
+        record.put(SAMPLE);
+        putVarLong(record, series.getId());
+        putVarLong(record, zigZag(timestamp - previousTimestamp));
+        record.putDouble(value);
+        writeRecord();
+
+        previousTimestamp = timestamp;
+        highestTimestamp = Math.max(highestTimestamp, timestamp);
+        nextSequence++;
+    }
+
+    // The sequence number the next segment starts at once this one is full
+    long nextSequence() {
+        return nextSequence;
+    }
+
+    // Makes the records appended so far visible to readers of the segment
+    abstract void flush() throws IOException;
+
+    // fsyncs the data flushed so far
+    abstract void force() throws IOException;
+
+    abstract long size();
+
+    // True once the segment should be rotated
+    abstract boolean isFull();
+
+    Path path() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        record.clear();
+        record.put(SEGMENT_END);
+        record.putLong(highestTimestamp);
+        writeRecord();
+        flush();
+        force();
+        release();
+    }
+
+    // Writes one framed record: varint length, CRC32C and the body
+    protected abstract void write(int length, int checksum, ByteBuffer body) throws IOException;
+
+    protected abstract void release() throws IOException;
+
+    private void writeSeriesDefinition(Series series) throws IOException {
+        while (true) {
+            try {
+                record.clear();
+                record.put(SERIES_DEFINITION);
+                putVarLong(record, series.getId());
+                putString(record, series.getMetricName());
+
+                var tags = series.getLabel().tagsView();
+                putVarLong(record, tags.size());
+                for (var tag : tags.entrySet()) {
+                    putString(record, tag.getKey());
+                    putString(record, tag.getValue());
+                }
+                break;
+            } catch (BufferOverflowException e) {
+                record = ByteBuffer.allocate(record.capacity() * 2);
+            }
+        }
+        writeRecord();
+    }
+
+    private void writeRecord() throws IOException {
+        record.flip();
+        crc.reset();
+        crc.update(record.duplicate());
+        write(record.remaining(), (int) crc.getValue(), record);
+    }
+}
@@ -1,17 +1,62 @@
 package db.database;
 
-import db.model.MetricLabel;
 import db.model.WALEntry;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
 
+// The WAL of one shard, see ShardedWriteAheadLog for the logs of every shard
 public interface WriteAheadLog {
-    void append(String metricName, MetricLabel label, long timestamp, double value);
+    /**
+     * @return the sequence number of the entry in the WAL of the series' shard, 0 if it was not logged
+     */
+    long append(Series series, long timestamp, double value);
 
-    Iterator<WALEntry> readFrom(long checkpointTimestamp) throws IOException;
+    /**
+     * Reserves room for count entries, so that as many appendReserved calls after it never wait.
+     *
+     * @throws WALBackpressureException if the room does not free up within the append timeout
+     */
+    void reserve(int count);
+
+    // Gives back reserved room that will not be appended to
+    void cancelReservation(int count);
+
+    /**
+     * Appends into room reserved with reserve, without waiting.
+     *
+     * @return the sequence number of the entry, as append
+     */
+    long appendReserved(Series series, long timestamp, double value);
+
+    /**
+     * Blocks until every entry appended before the call is durable, when the WAL runs in a strict
+     * durability mode. Returns immediately otherwise.
+     */
+    void awaitDurability() throws InterruptedException;
+
+    // Entries the checkpoint does not cover, those it covers are in the snapshot
+    Iterator<WALEntry> readFrom(WALCheckpoint checkpoint) throws IOException;
+
+    // The segments readFrom would go through, in replay order
+    File[] segmentsFrom(WALCheckpoint checkpoint) throws IOException;
 
     void rotate() throws IOException;
 
-    void truncateUpTo(long timestamp) throws IOException;
+    // Deletes the segments whose entries the checkpoint covers, except the one being written
+    void truncateUpTo(WALCheckpoint checkpoint) throws IOException;
+
+    // Sequence number of the last entry appended, entries are numbered from 1 per shard
+    long lastSequence();
+
+    /**
+     * Numbers the entries appended from now on after the given sequence, if they would not be
+     * already. For a WAL that lost its segments while a snapshot still holds later entries; only
+     * possible before the first append.
+     */
+    void startAfter(long sequence) throws IOException;
+
+    // Entries appended but not written to a segment yet
+    int pendingEntries();
 }
@@ -1,70 +1,148 @@
 package db.database;
 
 import lombok.extern.slf4j.Slf4j;
-import db.model.MetricLabel;
 import db.model.WALEntry;
-import org.springframework.stereotype.Service;
 import db.TSDBConfiguration;
+import db.TSDBConfiguration.WALProperties.Backend;
+import db.TSDBConfiguration.WALProperties.Durability;
 
-import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Iterator;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 @Slf4j
-@Service
 public class WriteAheadLogImpl implements WriteAheadLog, Closeable {
     private static final String LOG_FILE_FORMAT = "%s/metrics_%d.log";
-    public static final String SEPARATOR = ";;";
+    private static final String RECYCLED_SUFFIX = ".recycled";
+    private static final int MAX_RECYCLED_SEGMENTS = 4;
+
+    private static final int MAX_BATCH_SIZE = 4096;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long BACKPRESSURE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
 
     private final TSDBConfiguration.WALProperties walProperties;
-    private final BlockingQueue<String> writeQueue = new LinkedBlockingQueue<>();
+    private final WALRingBuffer writeQueue;
+    private final Object durabilityMonitor = new Object();
+    private volatile boolean writerParked;
+    // Sequence numbers of the last entry handed to the OS and the last one fsynced; awaitDurability
+    // waits on durableSequence, which only moves after a force
+    private volatile long writtenSequence;
+    private long syncedSequence;
+    private volatile long durableSequence;
+    // Sequence number in the WAL of the entry before the first one of the ring, entries are numbered
+    // on from the previous run
+    private volatile long sequenceBase;
+    private long lastSyncMillis = System.currentTimeMillis();
 
+    private final String writerName;
+    private final TSDBMetrics metrics;
     private Thread writerThread;
     private volatile boolean running = true;
-    private BufferedWriter logWriter;
+    private WALSegmentWriter logWriter;
     private final AtomicInteger logFileCount;
     private final AtomicLong bytesWritten;
 
-    public WriteAheadLogImpl(TSDBConfiguration configuration) {
-        this.walProperties = configuration.walProperties();
+    public WriteAheadLogImpl(TSDBConfiguration.WALProperties walProperties, TSDBMetrics metrics) {
+        this(walProperties, "WAL-Writer", metrics);
+    }
+
+    // Logs to walProperties.path(), with a writer thread of the given name
+    public WriteAheadLogImpl(TSDBConfiguration.WALProperties walProperties, String writerName, TSDBMetrics metrics) {
+        this.walProperties = walProperties;
+        this.writerName = writerName;
+        this.metrics = metrics;
+        this.writeQueue = new WALRingBuffer(walProperties.bufferCapacity());
 
         if (new File(walProperties.path()).mkdirs()) {
             log.info("WAL log directory initialised");
         }
         this.logFileCount = new AtomicInteger(FileUtils.findLatestLogFile(walProperties.path()));
-        if (logFileCount.get() <= 0) logFileCount.incrementAndGet();
+        // Never append to a segment left by a previous run, it may be a text segment or lack its trailer
+        if (logFileCount.get() <= 0 || FileUtils.bytesWrittenSoFar(currentLogFile()) > 0) logFileCount.incrementAndGet();
 
         this.bytesWritten = new AtomicLong(0);
+        this.sequenceBase = findLastSequence();
 
         startWriterThread();
-        initWriter();
+        initWriter(sequenceBase + 1);
+    }
+
+    private String currentLogFile() {
+        return String.format(LOG_FILE_FORMAT, walProperties.path(), logFileCount.get());
+    }
+
+    // Last sequence number of the newest segment that numbers its entries, 0 when there is none
+    private long findLastSequence() {
+        File[] files = segments();
+        FileUtils.sortBySegmentNumber(files);
+        for (int i = files.length - 1; i >= 0; i--) {
+            try {
+                if (WALSegmentReader.firstSequence(files[i]) > 0) {
+                    return WALSegmentReader.lastSequence(files[i]);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not read the sequence numbers of log file {}", files[i], e);
+            }
+        }
+        return 0;
     }
 
-    private void initWriter() {
+    private File[] segments() {
+        File[] files = new File(walProperties.path()).listFiles((dir, name) -> name.endsWith(".log"));
+        return files == null ? new File[0] : files;
+    }
+
+    // Starts a segment whose first entry gets the given sequence number
+    private void initWriter(long firstSequence) {
         try {
-            var currentLogFile = String.format(LOG_FILE_FORMAT, walProperties.path(), logFileCount.get());
-            if (FileUtils.fileExists(currentLogFile)) {
-                this.logWriter = new BufferedWriter(new FileWriter(currentLogFile, true));
-                this.bytesWritten.set(FileUtils.bytesWrittenSoFar(currentLogFile));
-            } else {
-                this.logWriter = new BufferedWriter(new FileWriter(currentLogFile, true));
+            var currentLogFile = Path.of(currentLogFile());
+            // A segment holding entries is never overwritten, even one the numbering did not expect
+            while (FileUtils.bytesWrittenSoFar(currentLogFile.toString()) > 0) {
+                log.warn("Log file {} already exists, numbering on after it", currentLogFile);
+                logFileCount.incrementAndGet();
+                currentLogFile = Path.of(currentLogFile());
             }
+            // An empty one is started over
+            Files.deleteIfExists(currentLogFile);
+            this.logWriter = switch (walProperties.backend()) {
+                case STREAM -> new StreamWALSegmentWriter(currentLogFile, walProperties.rotationByteSize(), firstSequence);
+                case MMAP -> {
+                    var recycled = findRecycledSegment();
+                    if (recycled != null) {
+                        Files.move(recycled.toPath(), currentLogFile);
+                    }
+                    yield new MappedWALSegmentWriter(currentLogFile, MappedWALSegmentWriter.segmentCapacity(walProperties.rotationByteSize()), firstSequence);
+                }
+            };
+            // The numbering survives the segments before it being truncated
+            logWriter.flush();
+            this.bytesWritten.set(logWriter.size());
         } catch (IOException e) {
             throw new UncheckedIOException("Failed to initialize WAL writer", e);
         }
     }
 
+    private File[] recycledSegments() {
+        File[] files = new File(walProperties.path()).listFiles((dir, name) -> name.endsWith(RECYCLED_SUFFIX));
+        return files == null ? new File[0] : files;
+    }
+
+    private File findRecycledSegment() {
+        long capacity = MappedWALSegmentWriter.segmentCapacity(walProperties.rotationByteSize());
+        for (File file : recycledSegments()) {
+            if (file.length() == capacity) return file;
+        }
+        return null;
+    }
+
     private void startWriterThread() {
         writerThread = new Thread(() -> {
             while (running) {
@@ -86,76 +164,238 @@ public class WriteAheadLogImpl implements WriteAheadLog, Closeable {
                     }
                 }
             }
-        }, "WAL-Writer");
+        }, writerName);
         writerThread.start();
     }
 
-    private void processQueue() throws InterruptedException, IOException {
+    // Group commit: drains whatever queued up while the previous batch was written, writes it with a
+    // single flush and fsyncs according to the configured durability mode
+    private void processQueue() throws IOException {
         while (running || !writeQueue.isEmpty()) {
-            String entry = writeQueue.poll(100, TimeUnit.MILLISECONDS);
-            if (entry != null) {
-                logWriter.write(entry);
-
-                if (bytesWritten.addAndGet(entry.getBytes(StandardCharsets.UTF_8).length) > walProperties.rotationByteSize()) {
-                    rotate();
+            int count = writeQueue.available(MAX_BATCH_SIZE);
+            if (count > 0) {
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    logWriter.append(writeQueue.seriesAt(i), writeQueue.timestampAt(i), writeQueue.valueAt(i));
+                    if (logWriter.isFull()) {
+                        rotate();
+                    }
                 }
-
                 logWriter.flush();
+                writeQueue.release(count);
+                writtenSequence = writeQueue.consumedSequence();
+                bytesWritten.set(logWriter.size());
+                metrics.getWalFlush().recordSince(start);
+                metrics.getWalEntries().add(count);
+            } else {
+                awaitAppends();
             }
+            syncIfDue();
         }
     }
 
+    // Parks the writer until a producer publishes an entry; producers unpark it when they see the flag.
+    // Entries still waiting for an interval fsync cut the park short, so they are synced on time
+    // even when nothing else is appended.
+    private void awaitAppends() {
+        long parkNanos = IDLE_PARK_NANOS;
+        if (walProperties.durability() == Durability.INTERVAL_MS && writtenSequence > syncedSequence) {
+            long untilSync = lastSyncMillis + walProperties.fsyncIntervalMs() - System.currentTimeMillis();
+            parkNanos = Math.min(parkNanos, TimeUnit.MILLISECONDS.toNanos(Math.max(untilSync, 0)));
+        }
+
+        writerParked = true;
+        if (writeQueue.available(1) == 0 && running && parkNanos > 0) {
+            LockSupport.parkNanos(this, parkNanos);
+        }
+        writerParked = false;
+    }
+
+    // Entries are only taken as durable once forced; with NONE that is at rotation and close
+    private void syncIfDue() throws IOException {
+        long written = writtenSequence;
+        if (written == syncedSequence) return;
+
+        long now = System.currentTimeMillis();
+        boolean sync = switch (walProperties.durability()) {
+            case NONE -> false;
+            case INTERVAL_MS -> now - lastSyncMillis >= walProperties.fsyncIntervalMs();
+            case EVERY_BATCH -> true;
+        };
+        if (!sync) return;
+
+        long start = System.nanoTime();
+        logWriter.force();
+        metrics.getWalFsync().recordSince(start);
+        lastSyncMillis = now;
+        markDurable(written);
+    }
+
+    private void markDurable(long sequence) {
+        syncedSequence = sequence;
+        synchronized (durabilityMonitor) {
+            durableSequence = sequence;
+            durabilityMonitor.notifyAll();
+        }
+    }
+
+    // Lock-free: reserves a slot in the ring buffer and claims it
+    @Override
+    public long append(Series series, long timestamp, double value) {
+        if (!running) return 0;
+
+        reserve(1);
+        return appendReserved(series, timestamp, value);
+    }
+
+    /**
+     * Lock-free: reserves room in the ring buffer. When the ring is full, because the disk cannot keep
+     * up, the caller waits for up to appendTimeoutMs and then gets a WALBackpressureException.
+     */
     @Override
-    public synchronized void append(String metricName, MetricLabel label, long timestamp, double value) {
-        if (running) {
-            String entry = timestamp + SEPARATOR + metricName + SEPARATOR + label + SEPARATOR + value + "\n";
-            writeQueue.add(entry);
+    public void reserve(int count) {
+        if (!running) return;
+        if (count > writeQueue.capacity()) {
+            throw new IllegalArgumentException(count + " entries exceed the WAL buffer of " + writeQueue.capacity());
+        }
+
+        long deadline = 0;
+        while (!writeQueue.tryReserve(count)) {
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + TimeUnit.MILLISECONDS.toNanos(walProperties.appendTimeoutMs());
+            } else if (now - deadline > 0) {
+                metrics.getWalBackpressure().increment();
+                throw new WALBackpressureException("WAL buffer full, " + writeQueue.capacity() + " entries pending");
+            }
+            wakeWriter();
+            LockSupport.parkNanos(BACKPRESSURE_PARK_NANOS);
         }
     }
 
     @Override
-    public Iterator<WALEntry> readFrom(long checkpointTimestamp) {
-        File[] files = new File(walProperties.path()).listFiles((dir, name) -> name.endsWith(".log"));
-        return new WriteAheadLogIterator(files, checkpointTimestamp);
+    public void cancelReservation(int count) {
+        writeQueue.cancelReservation(count);
+    }
+
+    @Override
+    public long appendReserved(Series series, long timestamp, double value) {
+        if (!running) return 0;
+
+        long sequence = writeQueue.offerReserved(series, timestamp, value);
+        wakeWriter();
+        return sequenceBase + sequence;
+    }
+
+    private void wakeWriter() {
+        if (writerParked) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    @Override
+    public void awaitDurability() throws InterruptedException {
+        if (walProperties.durability() != Durability.EVERY_BATCH) return;
+
+        long target = writeQueue.claimedSequence();
+        synchronized (durabilityMonitor) {
+            while (durableSequence < target && running) {
+                durabilityMonitor.wait(100);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<WALEntry> readFrom(WALCheckpoint checkpoint) {
+        return new WriteAheadLogIterator(segmentsFrom(checkpoint), checkpoint);
+    }
+
+    @Override
+    public File[] segmentsFrom(WALCheckpoint checkpoint) {
+        return WriteAheadLogIterator.segmentsFrom(segments(), checkpoint);
+    }
+
+    @Override
+    public long lastSequence() {
+        return sequenceBase + writeQueue.claimedSequence();
+    }
+
+    @Override
+    public synchronized void startAfter(long sequence) throws IOException {
+        if (sequence <= lastSequence()) return;
+        if (writeQueue.claimedSequence() > 0) {
+            throw new IllegalStateException("WAL entries can only be renumbered before the first append");
+        }
+
+        log.warn("WAL of {} ends at sequence {}, behind the snapshot at {}; numbering on from there",
+            walProperties.path(), lastSequence(), sequence);
+        sequenceBase = sequence;
+        // The active segment holds no entries yet, it is started over with the new numbering
+        logWriter.close();
+        Files.delete(logWriter.path());
+        initWriter(sequence + 1);
     }
 
     @Override
     public synchronized void rotate() throws IOException {
-        if (bytesWritten.get() > walProperties.rotationByteSize()) {
+        if (logWriter.isFull()) {
+            long start = System.nanoTime();
             bytesWritten.set(0);
-            logWriter.flush();
+            // closing forces the segment to disk, everything written so far is durable
             logWriter.close();
+            markDurable(writtenSequence);
             logFileCount.incrementAndGet();
-            initWriter();
+            initWriter(logWriter.nextSequence());
+            metrics.getWalRotate().recordSince(start);
         }
     }
 
     @Override
-    public synchronized void truncateUpTo(long timestamp) {
-        File dir = new File(walProperties.path());
-        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
-        if (files == null) return;
+    public int pendingEntries() {
+        return writeQueue.size();
+    }
+
+    @Override
+    public synchronized void truncateUpTo(WALCheckpoint checkpoint) {
+        File[] files = segments();
+        FileUtils.sortBySegmentNumber(files);
+
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            // the active segment is still being written to
+            if (file.toPath().equals(logWriter.path())) continue;
 
-        for (File file : files) {
             try {
-                String lastLine = FileUtils.readLastLine(file);
-                if (lastLine == null) break;
-                else {
-                    long ts = Long.parseLong(lastLine.split(SEPARATOR)[0]);
-                    if (ts <= timestamp) {
-                        Files.delete(file.toPath());
-                        log.info("Deleted log file {}", file.getAbsolutePath());
-                    }
+                if (checkpoint.covers(file, i + 1 < files.length ? files[i + 1] : null)) {
+                    discard(file);
                 }
-            } catch (IOException ex) {
+            } catch (IOException | RuntimeException ex) {
                 // DO NOTHING
             }
         }
     }
 
+    // Preallocated segments are kept for reuse instead of being deleted and recreated
+    private void discard(File file) throws IOException {
+        long capacity = MappedWALSegmentWriter.segmentCapacity(walProperties.rotationByteSize());
+        if (walProperties.backend() == Backend.MMAP
+            && WALFormat.readVersion(file) == WALFormat.MAPPED_VERSION
+            && file.length() == capacity
+            && recycledSegments().length < MAX_RECYCLED_SEGMENTS) {
+            MappedWALSegmentWriter.resetForReuse(file.toPath());
+            Files.move(file.toPath(), file.toPath().resolveSibling("segment_" + System.nanoTime() + RECYCLED_SUFFIX));
+            log.info("Recycled log file {}", file.getAbsolutePath());
+            return;
+        }
+
+        Files.delete(file.toPath());
+        log.info("Deleted log file {}", file.getAbsolutePath());
+    }
+
     @Override
     public void close() throws IOException {
         running = false;
+        LockSupport.unpark(writerThread);
 
         // Then, wait for the thread to process remaining entries
         if (writerThread != null) {
@@ -166,7 +406,7 @@ public class WriteAheadLogImpl implements WriteAheadLog, Closeable {
             }
         }
 
-        logWriter.flush();
         logWriter.close();
+        markDurable(writtenSequence);
     }
 }
@@ -1,75 +1,69 @@
 package db.database;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import db.model.MetricLabel;
 import db.model.WALEntry;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.NoSuchElementException;
 
-import static db.database.FileUtils.OBJECT_MAPPER;
-import static db.database.WriteAheadLogImpl.SEPARATOR;
-
 public class WriteAheadLogIterator implements Iterator<WALEntry> {
     private final File[] files;
+    private final WALCheckpoint checkpoint;
     private int currentIndex = 0;
-    private BufferedReader reader;
-    private String lineToParse;
+    private WALSegmentReader reader;
+    private WALEntry nextEntry;
 
-    public WriteAheadLogIterator(File[] files, long checkpointTimestamp) {
+    // Iterates the entries of the given segments in order, skipping those the checkpoint covers
+    public WriteAheadLogIterator(File[] files, WALCheckpoint checkpoint) {
         this.files = files;
-        Arrays.sort(files, Comparator.comparing(File::getName));
+        this.checkpoint = checkpoint;
 
-        // Find the first file whose last timestamp >= checkpointTimestamp
-        for (int i = 0; i < files.length; i++) {
-            File file = files[i];
+        if (currentIndex < files.length) {
             try {
-                String lastLine = FileUtils.readLastLine(file);
-                if (lastLine == null) continue;
-
-                long ts = Long.parseLong(lastLine.split(SEPARATOR, 4)[0]);
-                if (ts >= checkpointTimestamp) {
-                    currentIndex = i;
-                    break;
-                }
-            } catch (IOException ignored) {
-                // ignored!
+                reader = WALSegmentReader.open(files[currentIndex]);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to open WAL segment during initialization", e);
             }
         }
+    }
 
-        // Initialize reader if a valid file was found
-        if (currentIndex < files.length) {
+    // Segments in replay order, starting at the first one the checkpoint does not cover entirely
+    public static File[] segmentsFrom(File[] files, WALCheckpoint checkpoint) {
+        FileUtils.sortBySegmentNumber(files);
+
+        for (int i = 0; i < files.length; i++) {
             try {
-                reader = new BufferedReader(new FileReader(files[currentIndex]));
-            } catch (FileNotFoundException e) {
-                throw new UncheckedIOException("File not found during WAL initialization", e);
+                if (!checkpoint.covers(files[i], i + 1 < files.length ? files[i + 1] : null)) {
+                    return Arrays.copyOfRange(files, i, files.length);
+                }
+            } catch (IOException | RuntimeException ignored) {
+                // ignored!
             }
         }
+        return new File[0];
     }
 
     @Override
     public boolean hasNext() {
         try {
-            while (reader != null && (lineToParse = reader.readLine()) == null) {
-                currentIndex++;
-                if (currentIndex >= files.length) {
-                    reader.close();
+            while (reader != null && nextEntry == null) {
+                nextEntry = reader.next();
+                if (nextEntry == null) {
+                    reader.close(); // close previous reader
                     reader = null;
-                    return false;
+                    currentIndex++;
+                    if (currentIndex < files.length) {
+                        reader = WALSegmentReader.open(files[currentIndex]);
+                    }
+                } else if (checkpoint.covers(nextEntry)) {
+                    // already part of the snapshot
+                    nextEntry = null;
                 }
-                reader.close(); // close previous reader
-                reader = new BufferedReader(new FileReader(files[currentIndex]));
             }
-            return lineToParse != null;
+            return nextEntry != null;
         } catch (IOException ex) {
             throw new UncheckedIOException(ex);
         }
@@ -77,25 +71,12 @@ public class WriteAheadLogIterator implements Iterator<WALEntry> {
 
     @Override
     public WALEntry next() {
-        if (lineToParse == null && !hasNext()) {
+        if (!hasNext()) {
             throw new NoSuchElementException();
         }
 
-        try {
-            String[] parts = lineToParse.split(SEPARATOR, 4);
-            if (parts.length < 4) throw new IOException("Invalid WAL line: " + lineToParse);
-
-            long timestamp = Long.parseLong(parts[0]);
-            String metricName = parts[1];
-            Map<String, String> map = OBJECT_MAPPER.readValue(parts[2], new TypeReference<>() {});
-            MetricLabel label = new MetricLabel(map);
-            double value = Double.parseDouble(parts[3]);
-
-            lineToParse = null; // reset for next iteration
-            return new WALEntry(timestamp, metricName, label, value);
-        } catch (IOException e) {
-            throw new NoSuchElementException("Failed to parse WAL line: " + e.getMessage());
-        }
+        WALEntry entry = nextEntry;
+        nextEntry = null; // reset for next iteration
+        return entry;
     }
 }
-
@@ -0,0 +1,17 @@
+package db.model;
+
+/**
+ * Functions that aggregate a set of series bucket by bucket. They work on the bucket summaries:
+ * SUM, AVG, MIN, MAX and COUNT cover every sample of the group in the bucket, RATE adds up the
+ * per-second increase of the last value of each series, read as a counter, and TOPK keeps the k
+ * series of the group with the largest sum over the range.
+ */
+public enum AggregateFunction {
+    SUM,
+    AVG,
+    MIN,
+    MAX,
+    COUNT,
+    TOPK,
+    RATE
+}
@@ -0,0 +1,8 @@
+package db.model;
+
+import java.util.List;
+import java.util.Map;
+
+// One group of an aggregation: its labels and its aggregated buckets
+public record AggregateSeries(Map<String, String> labels, List<DataPoint> dataPoints) {
+}
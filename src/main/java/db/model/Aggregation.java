@@ -0,0 +1,11 @@
+package db.model;
+
+import java.util.List;
+
+/**
+ * How to aggregate the matched series: the function and the labels the groups are made of, either
+ * only the {@code by} labels or every label but the {@code without} ones. All series form a single
+ * group when neither is given. {@code k} is the number of series TOPK keeps per group.
+ */
+public record Aggregation(AggregateFunction function, List<String> by, List<String> without, int k) {
+}
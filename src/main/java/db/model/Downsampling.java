@@ -0,0 +1,12 @@
+package db.model;
+
+/**
+ * How a series is thinned down to a point budget when even the chosen resolution holds more
+ * buckets than the budget. LTTB (Largest-Triangle-Three-Buckets) keeps the points that carry the
+ * visual shape of the series, MINMAX keeps the lowest and the highest point of every slice so no
+ * spike is lost.
+ */
+public enum Downsampling {
+    LTTB,
+    MINMAX
+}
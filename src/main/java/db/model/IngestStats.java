@@ -0,0 +1,15 @@
+package db.model;
+
+/**
+ * State of the ingest queue. Pending samples were accepted and are queued or being written, wait
+ * times run from acceptance until a writer picks the batch up.
+ */
+public record IngestStats(long queuedBatches,
+                          long pendingSamples,
+                          long capacity,
+                          long acceptedBatches,
+                          long rejectedBatches,
+                          long writtenSamples,
+                          double averageWaitMs,
+                          double maxWaitMs) {
+}
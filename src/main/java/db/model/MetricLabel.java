@@ -3,16 +3,24 @@ package db.model;
 import com.fasterxml.jackson.core.JsonProcessingException;
 
 import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import static db.database.FileUtils.OBJECT_MAPPER;
 
 public class MetricLabel implements Serializable {
     private final TreeMap<String, String> tags;
+    // Labels are immutable, so the hash and the serialized form are computed once
+    private final int hash;
+    private transient String serialized;
+    private transient Map<String, String> view;
 
     public MetricLabel(Map<String, String> tags) {
         this.tags = new TreeMap<>(tags);
+        this.hash = this.tags.hashCode();
     }
 
     public boolean containsAll(Map<String, String> tags) {
@@ -23,27 +31,74 @@ public class MetricLabel implements Serializable {
         return Map.copyOf(tags);
     }
 
+    // Read-only view of the tags, without the copy made by getTags. Reuses the cached hash, which
+    // keeps lookups keyed by the view cheap when replaying the WAL.
+    public Map<String, String> tagsView() {
+        if (view == null) {
+            view = new TagsView(Collections.unmodifiableMap(tags), hash);
+        }
+        return view;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
 
         MetricLabel metricKey = (MetricLabel) o;
-        return tags.equals(metricKey.tags);
+        return hash == metricKey.hash && tags.equals(metricKey.tags);
     }
 
     @Override
     public int hashCode() {
-        return tags.hashCode();
+        return hash;
     }
 
     @Override
     public String toString() {
-        try {
-            return OBJECT_MAPPER.writeValueAsString(tags);
-        } catch (JsonProcessingException e) {
-            // DO NOTHING
+        if (serialized == null) {
+            try {
+                serialized = OBJECT_MAPPER.writeValueAsString(tags);
+            } catch (JsonProcessingException e) {
+                // DO NOTHING
+                return "";
+            }
+        }
+        return serialized;
+    }
+
+    private static class TagsView extends AbstractMap<String, String> {
+        private final Map<String, String> tags;
+        private final int hash;
+
+        private TagsView(Map<String, String> tags, int hash) {
+            this.tags = tags;
+            this.hash = hash;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return tags.entrySet();
+        }
+
+        @Override
+        public String get(Object key) {
+            return tags.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return tags.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return tags.size();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
         }
-        return "";
     }
 }
@@ -0,0 +1,13 @@
+package db.model;
+
+/**
+ * Query cache counters since startup. A partial hit reused part of a cached result and only read
+ * the buckets written since, or outside the cached range, from storage.
+ */
+public record QueryCacheStats(long hits,
+                              long partialHits,
+                              long misses,
+                              long evictions,
+                              long entries,
+                              long cachedPoints) {
+}
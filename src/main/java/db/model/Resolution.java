@@ -1,7 +1,9 @@
 package db.model;
 
-public enum Resolution {
-    SECONDLY,
-    MINUTELY,
-    HOURLY
+/**
+ * A rollup tier: samples are summarised into buckets of widthMs and kept for retentionMs. Bucket keys
+ * are the bucket index, timestamp / widthMs. The index orders the resolutions of a database from
+ * the finest to the coarsest.
+ */
+public record Resolution(String name, long widthMs, long retentionMs, int index) {
 }
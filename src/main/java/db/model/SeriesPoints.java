@@ -0,0 +1,8 @@
+package db.model;
+
+import java.util.List;
+import java.util.Map;
+
+// The points of one series, the unit a streamed query sends at a time
+public record SeriesPoints(String metricName, Map<String, String> labels, List<DataPoint> dataPoints) {
+}
@@ -0,0 +1,30 @@
+package db.model;
+
+/**
+ * Memory footprint of the stored samples, compared against the estimated cost of keeping the
+ * same samples as boxed entries of a ConcurrentSkipListMap. Storage bytes are those on the heap,
+ * chunks moved to the cold tier count in the cold storage bytes of their block files instead.
+ */
+public record StorageStats(long seriesCount,
+                           long sampleCount,
+                           long storageBytes,
+                           long coldStorageBytes,
+                           double bytesPerSample,
+                           long skipListBytes,
+                           double skipListBytesPerSample) {
+    // Node (24) + boxed Long key (16) + boxed Double value (16) + ~1/3 index node (8), with compressed oops
+    public static final int SKIP_LIST_BYTES_PER_SAMPLE = 64;
+
+    public static StorageStats of(long seriesCount, long sampleCount, long storageBytes, long coldStorageBytes) {
+        double bytesPerSample = sampleCount == 0 ? 0.0 : (double) storageBytes / sampleCount;
+        return new StorageStats(
+            seriesCount,
+            sampleCount,
+            storageBytes,
+            coldStorageBytes,
+            bytesPerSample,
+            sampleCount * SKIP_LIST_BYTES_PER_SAMPLE,
+            sampleCount == 0 ? 0.0 : SKIP_LIST_BYTES_PER_SAMPLE
+        );
+    }
+}
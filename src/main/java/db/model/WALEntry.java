@@ -2,5 +2,9 @@ package db.model;
 
 import java.io.Serializable;
 
-public record WALEntry(long timestamp, String metricName, MetricLabel label, double value) implements Serializable {
-}
\ No newline at end of file
+/**
+ * @param sequence position of the entry in its shard's WAL, counted from 1; 0 for entries of segments
+ *                 written before entries were numbered
+ */
+public record WALEntry(long sequence, long timestamp, String metricName, MetricLabel label, double value) implements Serializable {
+}
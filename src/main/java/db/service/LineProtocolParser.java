@@ -0,0 +1,332 @@
+package db.service;
+
+import db.database.InMemoryTSDB;
+import db.database.IngestQueue;
+import db.database.Series;
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Parses one line-protocol request body and queues its samples for writing in batches. A line is
+ * <pre>metric[,label=value...] value [timestamp]</pre>
+ * with the timestamp in milliseconds, the arrival time of the request when it is missing. Spaces,
+ * commas and equal signs in names and values are escaped with a backslash. Empty lines and lines
+ * starting with '#' are skipped.
+ * <p>
+ * Buffers are copied into one reusable array and parsed in place, a line may span buffers. Series
+ * are resolved through the {@link SeriesKeyCache}, values and timestamps are parsed from the bytes,
+ * so a line of a known series allocates nothing but its slot in a batch.
+ * <p>
+ * Full batches are held until {@link #queueBatches()}, which queues them. Once a batch of the request
+ * is in the ingest queue, a full queue makes the request wait for its own batches to be written,
+ * so a large body is read at the pace of the writers; a request with nothing queued is rejected.
+ * Not thread-safe, a parser serves one request.
+ */
+class LineProtocolParser {
+    static final int BATCH_SIZE = 1024;
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    private static final int MAX_FAST_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final IngestQueue ingestQueue;
+    private final InMemoryTSDB tsdb;
+    private final SeriesKeyCache seriesKeys;
+    private final long receivedAt;
+
+    private byte[] bytes = new byte[8192];
+    // Bytes of an unfinished line, kept at the start of the array until the next buffer
+    private int pending;
+    private long lineNumber;
+
+    // Handed over when full, a new batch is started then
+    private Series[] batchSeries = new Series[BATCH_SIZE];
+    private long[] batchTimestamps = new long[BATCH_SIZE];
+    private double[] batchValues = new double[BATCH_SIZE];
+    private int batchSize;
+    private final ArrayDeque<SampleBatch> ready = new ArrayDeque<>();
+    private long accepted;
+    private final List<CompletableFuture<Void>> queued = new ArrayList<>();
+    // Batches before it are written
+    private int firstUnwritten;
+
+    LineProtocolParser(IngestQueue ingestQueue, InMemoryTSDB tsdb, SeriesKeyCache seriesKeys) {
+        this.ingestQueue = ingestQueue;
+        this.tsdb = tsdb;
+        this.seriesKeys = seriesKeys;
+        this.receivedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Parses the complete lines of the buffer, the bytes after its last newline are kept for the next
+     * one. Does not release the buffer.
+     *
+     * @throws IllegalArgumentException if a line is malformed, the batches queued before it are written
+     */
+    void feed(DataBuffer buffer) {
+        int readable = buffer.readableByteCount();
+        ensureCapacity(pending + readable);
+        buffer.read(bytes, pending, readable);
+
+        int end = pending + readable;
+        int lineStart = 0;
+        for (int i = pending; i < end; i++) {
+            if (bytes[i] == '\n') {
+                parseLine(lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+
+        pending = end - lineStart;
+        if (pending > MAX_LINE_BYTES) {
+            throw new IllegalArgumentException("Line " + (lineNumber + 1) + " is longer than " + MAX_LINE_BYTES + " bytes");
+        }
+        System.arraycopy(bytes, lineStart, bytes, 0, pending);
+    }
+
+    // Parses the last line, which may lack a newline, and hands over what is left of the batch
+    void finish() {
+        if (pending > 0) {
+            parseLine(0, pending);
+            pending = 0;
+        }
+        flush();
+    }
+
+    /**
+     * Queues the full batches, waiting for the earlier batches of the request to be written while the
+     * ingest queue is full.
+     *
+     * @return completes once every batch is queued, with an {@link db.database.IngestRejectedException}
+     * if the queue is full and none of the request's batches is pending
+     */
+    Mono<Void> queueBatches() {
+        while (!ready.isEmpty()) {
+            var done = ingestQueue.offer(ready.peek());
+            if (done == null) {
+                var unwritten = oldestUnwritten();
+                if (unwritten == null) {
+                    done = ingestQueue.submit(ready.peek());
+                } else {
+                    // Resumes off the writer thread that completes the batch
+                    return Mono.fromFuture(unwritten, true)
+                        .publishOn(Schedulers.parallel())
+                        .then(Mono.defer(this::queueBatches));
+                }
+            }
+            queued.add(done);
+            accepted += ready.poll().size();
+        }
+        return Mono.empty();
+    }
+
+    long accepted() {
+        return accepted;
+    }
+
+    // Completes once every queued batch is written
+    CompletableFuture<Void> written() {
+        return CompletableFuture.allOf(queued.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private void parseLine(int from, int to) {
+        lineNumber++;
+        if (to > from && bytes[to - 1] == '\r') to--;
+        if (from == to || bytes[from] == '#') return;
+
+        // Series key, hashed while looking for the space that ends it
+        int hash = 0;
+        int keyEnd = from;
+        while (keyEnd < to && bytes[keyEnd] != ' ') {
+            if (bytes[keyEnd] == '\\' && keyEnd + 1 < to) {
+                hash = 31 * hash + bytes[keyEnd++];
+            }
+            hash = 31 * hash + bytes[keyEnd++];
+        }
+        if (keyEnd == to) {
+            throw malformed("missing value");
+        }
+
+        int valueStart = skipSpaces(keyEnd, to);
+        int valueEnd = valueStart;
+        while (valueEnd < to && bytes[valueEnd] != ' ') valueEnd++;
+        if (valueStart == valueEnd) {
+            throw malformed("missing value");
+        }
+        double value = parseValue(valueStart, valueEnd);
+
+        long timestamp = receivedAt;
+        int timestampStart = skipSpaces(valueEnd, to);
+        if (timestampStart < to) {
+            int timestampEnd = timestampStart;
+            while (timestampEnd < to && bytes[timestampEnd] != ' ') timestampEnd++;
+            if (skipSpaces(timestampEnd, to) != to) {
+                throw malformed("unexpected content after the timestamp");
+            }
+            timestamp = parseTimestamp(timestampStart, timestampEnd);
+        }
+
+        var series = seriesKeys.get(bytes, from, keyEnd, hash);
+        if (series == null) {
+            series = resolveSeries(from, keyEnd);
+            seriesKeys.put(bytes, from, keyEnd, hash, series);
+        }
+
+        batchSeries[batchSize] = series;
+        batchTimestamps[batchSize] = timestamp;
+        batchValues[batchSize] = value;
+        if (++batchSize == BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    private CompletableFuture<Void> oldestUnwritten() {
+        while (firstUnwritten < queued.size() && queued.get(firstUnwritten).isDone()) {
+            firstUnwritten++;
+        }
+        return firstUnwritten < queued.size() ? queued.get(firstUnwritten) : null;
+    }
+
+    private void flush() {
+        if (batchSize == 0) return;
+
+        ready.add(new SampleBatch(batchSeries, batchTimestamps, batchValues, batchSize));
+        batchSeries = new Series[BATCH_SIZE];
+        batchTimestamps = new long[BATCH_SIZE];
+        batchValues = new double[BATCH_SIZE];
+        batchSize = 0;
+    }
+
+    private record SampleBatch(Series[] series, long[] timestamps, double[] values, int size) implements IngestQueue.Batch {
+        @Override
+        public void writeTo(InMemoryTSDB tsdb) {
+            tsdb.put(series, timestamps, values, size);
+        }
+    }
+
+    // Slow path for a series key not in the cache: decodes the metric name and labels
+    private Series resolveSeries(int from, int to) {
+        int nameEnd = unescapedIndexOf(',', from, to);
+        String metricName = decode(from, nameEnd);
+        if (metricName.isBlank()) {
+            throw malformed("missing metric name");
+        }
+
+        Map<String, String> labels = new HashMap<>();
+        int pairStart = nameEnd + 1;
+        while (pairStart < to) {
+            int pairEnd = unescapedIndexOf(',', pairStart, to);
+            int equals = unescapedIndexOf('=', pairStart, pairEnd);
+            if (equals == pairStart || equals >= pairEnd - 1) {
+                throw malformed("labels must be written as name=value");
+            }
+            labels.put(decode(pairStart, equals), decode(equals + 1, pairEnd));
+            pairStart = pairEnd + 1;
+        }
+        return tsdb.getOrCreateWrittenSeries(metricName, labels);
+    }
+
+    private int unescapedIndexOf(char separator, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\\') {
+                i++;
+            } else if (bytes[i] == separator) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    // UTF-8 string of the bytes with backslash escapes removed
+    private String decode(int from, int to) {
+        byte[] unescaped = new byte[to - from];
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\\' && i + 1 < to) i++;
+            unescaped[length++] = bytes[i];
+        }
+        return new String(unescaped, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Plain decimals with at most 15 digits are parsed from the bytes: the digits and the power of ten
+     * are then exact doubles, so a single division rounds correctly. Anything else, such as exponents,
+     * NaN or longer numbers, goes through Double.parseDouble.
+     */
+    private double parseValue(int from, int to) {
+        int i = from;
+        boolean negative = bytes[i] == '-';
+        if (negative || bytes[i] == '+') i++;
+
+        long digits = 0;
+        int digitCount = 0;
+        int scale = -1;
+        for (; i < to; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                digits = digits * 10 + (b - '0');
+                digitCount++;
+            } else if (b == '.' && scale < 0) {
+                scale = digitCount;
+            } else {
+                break;
+            }
+        }
+
+        if (i == to && digitCount > 0 && digitCount <= MAX_FAST_DIGITS) {
+            double value = scale < 0 ? digits : digits / POWERS_OF_TEN[digitCount - scale];
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.ISO_8859_1));
+        } catch (NumberFormatException e) {
+            throw malformed("invalid value");
+        }
+    }
+
+    private long parseTimestamp(int from, int to) {
+        if (to - from > 18) {
+            throw malformed("timestamp out of range");
+        }
+        long timestamp = 0;
+        for (int i = from; i < to; i++) {
+            byte b = bytes[i];
+            if (b < '0' || b > '9') {
+                throw malformed("invalid timestamp");
+            }
+            timestamp = timestamp * 10 + (b - '0');
+        }
+        if (timestamp <= 0) {
+            throw malformed("timestamp must be positive");
+        }
+        return timestamp;
+    }
+
+    private int skipSpaces(int from, int to) {
+        while (from < to && bytes[from] == ' ') from++;
+        return from;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            byte[] grown = new byte[Math.max(capacity, bytes.length * 2)];
+            System.arraycopy(bytes, 0, grown, 0, pending);
+            bytes = grown;
+        }
+    }
+
+    private IllegalArgumentException malformed(String reason) {
+        return new IllegalArgumentException("Line " + lineNumber + ": " + reason);
+    }
+}
@@ -0,0 +1,47 @@
+package db.service;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import jakarta.validation.constraints.NotNull;
+
+import java.util.List;
+import java.util.Map;
+
+public record MetricAggregateRequest(
+    @JsonProperty(required = true)
+    @NotNull
+    String metricName,
+
+    // series whose labels contain all of these are aggregated
+    Map<String, String> labels,
+
+    @JsonProperty(required = true)
+    @NotNull
+    long from,
+
+    @JsonProperty(required = true)
+    @NotNull
+    long to,
+
+    // name of a configured resolution: 10s, 5m, 1d... or SECONDLY, MINUTELY, HOURLY; with maxDataPoints,
+    // the finest one the query may use, the finest configured one when not set
+    String resolution,
+
+    // sum, avg, min, max, count, topk or rate
+    @JsonProperty(required = true)
+    @NotNull
+    String function,
+
+    // labels of the groups, at most one of the two; a single group when neither is set
+    List<String> by,
+
+    List<String> without,
+
+    // series kept per group by topk
+    int k,
+
+    // points per group at most, 0 for no limit, see MetricQueryRequest
+    int maxDataPoints,
+
+    // lttb (the default) or minmax
+    String downsample) {
+}
@@ -2,7 +2,6 @@ package db.service;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import jakarta.validation.constraints.NotNull;
-import db.model.Resolution;
 
 import java.util.Map;
 
@@ -23,6 +22,14 @@ public record MetricQueryRequest(
     @NotNull
     long to,
 
-    @NotNull
-    Resolution resolution) {
+    // name of a configured resolution: 10s, 5m, 1d... or SECONDLY, MINUTELY, HOURLY; with maxDataPoints,
+    // the finest one the query may use, the finest configured one when not set
+    String resolution,
+
+    // points per series at most, 0 for no limit: the finest resolution within the budget is read, and
+    // downsampled when even the coarsest one holds more buckets
+    int maxDataPoints,
+
+    // lttb (the default) or minmax
+    String downsample) {
 }
@@ -1,51 +1,276 @@
 package db.service;
 
+import db.database.Downsampler;
 import db.database.InMemoryTSDB;
+import db.database.IngestQueue;
+import db.database.IngestRejectedException;
+import db.database.LatencyHistogram;
+import db.database.QueryCache;
+import db.database.Series;
+import db.database.TSDBMetrics;
+import db.database.WALBackpressureException;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
+import db.model.AggregateFunction;
+import db.model.AggregateSeries;
+import db.model.Aggregation;
 import db.model.DataPoint;
+import db.model.Downsampling;
 import db.model.MetricLabel;
+import db.model.Resolution;
+import db.model.SeriesPoints;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 @RestController
 @RequestMapping("/metrics")
 @RequiredArgsConstructor
 public class MetricsController {
+    // The resolution a query was answered at, the unit of the returned bucket timestamps
+    static final String RESOLUTION_HEADER = "X-Resolution";
+
     private final InMemoryTSDB inMemoryTSDB;
+    private final QueryCache queryCache;
+    private final IngestQueue ingestQueue;
+    private final TSDBMetrics metrics;
+    private final SeriesKeyCache seriesKeys = new SeriesKeyCache();
 
+    // Writes on the ingest writers, a full ingest queue is answered with 429 and Retry-After. The
+    // series are resolved first, so a request with a series that cannot be written writes nothing.
     @PostMapping("/put")
-    public Mono<String> putMetrics(@Valid @RequestBody List<MetricPutRequest> requests) {
+    public Mono<ResponseEntity<String>> putMetrics(@Valid @RequestBody List<MetricPutRequest> requests) {
+        var written = Mono
+            .defer(() -> Mono.fromFuture(ingestQueue.submit(PutBatch.resolve(requests, inMemoryTSDB))))
+            .then(acknowledge("ok"));
+        return timed(written, metrics.getPutRequests())
+            .onErrorResume(IngestRejectedException.class, e -> Mono.just(tooManyRequests(e)))
+            .onErrorMap(WALBackpressureException.class, e -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage(), e))
+            .onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e));
+    }
+
+    /**
+     * Line-protocol ingest, see {@link LineProtocolParser} for the format. The body is parsed as it
+     * arrives, so it is not bound by the in-memory size limit of /put. Its batches are queued as they
+     * are parsed and the body is read at the pace of the writers; the request is only answered with
+     * 429 when none of its batches can get into the queue, the ones queued before are still written.
+     *
+     * @return the number of samples written
+     */
+    @PostMapping(value = "/write", consumes = MediaType.TEXT_PLAIN_VALUE)
+    public Mono<ResponseEntity<String>> write(@RequestBody Flux<DataBuffer> body) {
+        var parser = new LineProtocolParser(ingestQueue, inMemoryTSDB, seriesKeys);
+        var written = body
+            .concatMap(buffer -> {
+                try {
+                    parser.feed(buffer);
+                } finally {
+                    DataBufferUtils.release(buffer);
+                }
+                return parser.queueBatches();
+            })
+            .then(Mono.defer(() -> {
+                parser.finish();
+                return parser.queueBatches();
+            }))
+            .then(Mono.defer(() -> Mono.fromFuture(parser.written())))
+            .then(Mono.defer(() -> acknowledge(String.valueOf(parser.accepted()))));
+        return timed(written, metrics.getWriteRequests())
+            .onErrorResume(IngestRejectedException.class, e -> Mono.just(tooManyRequests(e)))
+            .onErrorMap(WALBackpressureException.class, e -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage(), e))
+            .onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e));
+    }
+
+    private record PutBatch(Series[] series, long[] timestamps, double[] values) implements IngestQueue.Batch {
+        // Throws IllegalArgumentException for a series that cannot be written, before any is
+        static PutBatch resolve(List<MetricPutRequest> requests, InMemoryTSDB tsdb) {
+            int size = requests.size();
+            var batch = new PutBatch(new Series[size], new long[size], new double[size]);
+            for (int i = 0; i < size; i++) {
+                var request = requests.get(i);
+                batch.series[i] = tsdb.getOrCreateWrittenSeries(request.metricName(), request.labels());
+                batch.timestamps[i] = request.timestamp();
+                batch.values[i] = request.value();
+            }
+            return batch;
+        }
+
+        @Override
+        public int size() {
+            return series.length;
+        }
+
+        @Override
+        public void writeTo(InMemoryTSDB tsdb) {
+            tsdb.put(series, timestamps, values, series.length);
+        }
+    }
+
+    // Only blocks when the WAL acknowledges writes after fsync, so keep it off the event loop
+    private Mono<ResponseEntity<String>> acknowledge(String body) {
+        return Mono
+            .fromCallable(() -> {
+                inMemoryTSDB.awaitDurability();
+                return ResponseEntity.ok(body);
+            })
+            .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    // Records the time from subscription until the mono terminates or is cancelled
+    private static <T> Mono<T> timed(Mono<T> mono, LatencyHistogram histogram) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return mono.doFinally(signal -> histogram.recordSince(start));
+        });
+    }
+
+    private static <T> Flux<T> timed(Flux<T> flux, LatencyHistogram histogram) {
+        return Flux.defer(() -> {
+            long start = System.nanoTime();
+            return flux.doFinally(signal -> histogram.recordSince(start));
+        });
+    }
+
+    private static ResponseEntity<String> tooManyRequests(IngestRejectedException e) {
+        return ResponseEntity
+            .status(HttpStatus.TOO_MANY_REQUESTS)
+            .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+            .body(e.getMessage());
+    }
+
+    @PostMapping("/query")
+    public Mono<ResponseEntity<Map<MetricLabel, List<DataPoint>>>> query(@RequestBody MetricQueryRequest query) {
+        if (query.from() >= query.to()) {
+            return Mono.error(new IllegalArgumentException("'from' timestamp should be less than 'to' timestamp"));
+        }
+
+        QueryPlan plan;
         try {
-            requests
-                .parallelStream()
-                .forEach(request -> inMemoryTSDB.put(request.metricName(), request.labels(), request.timestamp(), request.value()));
-            return Mono.just("ok");
-        } catch (Exception e) {
+            plan = plan(query.resolution(), query.from(), query.to(), query.maxDataPoints(), query.downsample());
+        } catch (IllegalArgumentException e) {
             return Mono.error(e);
         }
+
+        long start = System.nanoTime();
+        var result = queryCache.query(query.metricName(), query.labels(), query.strictMatch(), query.from(), query.to(), plan.resolution());
+        if (plan.limited()) {
+            // Cached results are shared, the downsampled ones go to a map of their own
+            Map<MetricLabel, List<DataPoint>> downsampled = new LinkedHashMap<>();
+            result.forEach((label, dataPoints) -> downsampled.put(label, plan.downsample(dataPoints)));
+            result = downsampled;
+        }
+        metrics.getQueries().recordSince(start);
+        return Mono.just(plan.respond(result));
     }
 
-    @PostMapping("/query")
-    public Mono<Map<MetricLabel, List<DataPoint>>> query(@RequestBody MetricQueryRequest query) {
+    // Streams the matching series as NDJSON, one line per series, read from storage as the client consumes them
+    @PostMapping(value = "/query/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Mono<ResponseEntity<Flux<SeriesPoints>>> streamQuery(@RequestBody MetricQueryRequest query) {
         if (query.from() >= query.to()) {
             return Mono.error(new IllegalArgumentException("'from' timestamp should be less than 'to' timestamp"));
         }
 
+        QueryPlan plan;
+        try {
+            plan = plan(query.resolution(), query.from(), query.to(), query.maxDataPoints(), query.downsample());
+        } catch (IllegalArgumentException e) {
+            return Mono.error(e);
+        }
+
+        var resolution = plan.resolution();
+        Flux<SeriesPoints> series;
         if (query.strictMatch()) {
             var label = query.labels() == null ? new MetricLabel(Collections.emptyMap()) : new MetricLabel(query.labels());
-            return Mono.just(Map.of(label, inMemoryTSDB.query(query.metricName(), label, query.from(), query.to(), query.resolution())));
+            series = Flux.defer(() -> Flux.just(new SeriesPoints(
+                query.metricName(), label.getTags(), inMemoryTSDB.query(query.metricName(), label, query.from(), query.to(), resolution)
+            )));
         } else {
-            return Mono.just(
-                inMemoryTSDB.query(query.metricName(), query.labels(), query.from(), query.to(), query.resolution())
-            );
+            series = Flux.fromStream(() -> inMemoryTSDB.streamQuery(query.metricName(), query.labels(), query.from(), query.to(), resolution));
+        }
+        if (plan.limited()) {
+            series = series.map(points -> new SeriesPoints(points.metricName(), points.labels(), plan.downsample(points.dataPoints())));
+        }
+        return Mono.just(plan.respond(timed(series, metrics.getStreamQueries())));
+    }
+
+    // Aggregates the matching series into groups server side, only the groups are sent back
+    @PostMapping("/aggregate")
+    public Mono<ResponseEntity<List<AggregateSeries>>> aggregate(@Valid @RequestBody MetricAggregateRequest request) {
+        if (request.from() >= request.to()) {
+            return Mono.error(new IllegalArgumentException("'from' timestamp should be less than 'to' timestamp"));
+        }
+
+        QueryPlan plan;
+        Aggregation aggregation;
+        try {
+            plan = plan(request.resolution(), request.from(), request.to(), request.maxDataPoints(), request.downsample());
+            var function = AggregateFunction.valueOf(request.function().toUpperCase(Locale.ROOT));
+            aggregation = new Aggregation(function, request.by(), request.without(), request.k());
+        } catch (IllegalArgumentException e) {
+            return Mono.error(e);
+        }
+
+        // Runs on the fork-join pool and waits for it, so keep it off the event loop
+        var aggregated = Mono
+            .fromCallable(() -> {
+                var groups = inMemoryTSDB.aggregate(request.metricName(), request.labels(), request.from(), request.to(), plan.resolution(), aggregation);
+                if (!plan.limited()) return groups;
+                return groups.stream()
+                    .map(group -> new AggregateSeries(group.labels(), plan.downsample(group.dataPoints())))
+                    .toList();
+            })
+            .subscribeOn(Schedulers.boundedElastic());
+        return timed(aggregated, metrics.getAggregations()).map(plan::respond);
+    }
+
+    /**
+     * The resolution a query is read at: the named one, or with a point budget the finest one from
+     * the named one on that fits the range into the budget, see {@link db.database.Resolutions#forBudget}.
+     *
+     * @throws IllegalArgumentException for an unknown resolution, downsampling method or a budget below 2
+     */
+    private QueryPlan plan(String resolutionName, long from, long to, int maxDataPoints, String downsample) {
+        var resolutions = inMemoryTSDB.getResolutions();
+        if (maxDataPoints == 0) {
+            return new QueryPlan(resolutions.get(resolutionName), 0, null);
+        }
+        if (maxDataPoints < 2) {
+            throw new IllegalArgumentException("'maxDataPoints' should be at least 2, or 0 for no limit");
+        }
+
+        var finest = resolutionName == null ? resolutions.get(0) : resolutions.get(resolutionName);
+        var downsampling = downsample == null ? Downsampling.LTTB : Downsampling.valueOf(downsample.toUpperCase(Locale.ROOT));
+        return new QueryPlan(resolutions.forBudget(from, to, maxDataPoints, finest, System.currentTimeMillis()), maxDataPoints, downsampling);
+    }
+
+    private record QueryPlan(Resolution resolution, int maxDataPoints, Downsampling downsampling) {
+        boolean limited() {
+            return maxDataPoints > 0;
+        }
+
+        List<DataPoint> downsample(List<DataPoint> dataPoints) {
+            return Downsampler.downsample(dataPoints, maxDataPoints, downsampling);
+        }
+
+        <T> ResponseEntity<T> respond(T body) {
+            return ResponseEntity.ok().header(RESOLUTION_HEADER, resolution.name()).body(body);
         }
     }
 }
@@ -0,0 +1,99 @@
+package db.service;
+
+import db.database.LatencyHistogram;
+
+import java.util.Map;
+
+/**
+ * Builds a Prometheus text exposition (format 0.0.4). Every metric family is written in one go,
+ * so its samples stay together as the format requires. Latencies are written as summaries in
+ * seconds, with a separate _max gauge.
+ */
+class PrometheusText {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final StringBuilder text = new StringBuilder(8192);
+
+    PrometheusText counter(String name, String help, long value) {
+        header(name, "counter", help);
+        sample(name, "", value);
+        return this;
+    }
+
+    // One sample per label value
+    PrometheusText counter(String name, String help, String label, Map<String, Long> values) {
+        header(name, "counter", help);
+        values.forEach((value, count) -> sample(name, label(label, value), count));
+        return this;
+    }
+
+    PrometheusText gauge(String name, String help, double value) {
+        header(name, "gauge", help);
+        sample(name, "", value);
+        return this;
+    }
+
+    PrometheusText gauge(String name, String help, String label, Map<String, ? extends Number> values) {
+        header(name, "gauge", help);
+        values.forEach((value, number) -> sample(name, label(label, value), number.doubleValue()));
+        return this;
+    }
+
+    PrometheusText summary(String name, String help, LatencyHistogram.Snapshot snapshot) {
+        return summary(name, help, null, Map.of("", snapshot));
+    }
+
+    // A summary of the latencies per label value, or of the single histogram when label is null
+    PrometheusText summary(String name, String help, String label, Map<String, LatencyHistogram.Snapshot> snapshots) {
+        header(name, "summary", help);
+        snapshots.forEach((value, snapshot) -> {
+            String labels = label == null ? "" : label + "=\"" + value + "\"";
+            for (double quantile : QUANTILES) {
+                String quantileLabel = "quantile=\"" + quantile + "\"";
+                sample(name, "{" + (labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel) + "}",
+                    seconds(snapshot.valueAtQuantile(quantile)));
+            }
+            String sampleLabels = labels.isEmpty() ? "" : "{" + labels + "}";
+            sample(name + "_sum", sampleLabels, seconds(snapshot.sumNanos()));
+            sample(name + "_count", sampleLabels, snapshot.count());
+        });
+
+        header(name + "_max", "gauge", "Largest value of " + name);
+        snapshots.forEach((value, snapshot) ->
+            sample(name + "_max", label == null ? "" : label(label, value), seconds(snapshot.maxNanos())));
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+
+    private void header(String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private void sample(String name, String labels, long value) {
+        text.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private void sample(String name, String labels, double value) {
+        text.append(name).append(labels).append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            text.append((long) value);
+        } else {
+            text.append(value);
+        }
+        text.append('\n');
+    }
+
+    private static String label(String name, String value) {
+        return "{" + name + "=\"" + value + "\"}";
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
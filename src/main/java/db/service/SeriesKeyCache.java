@@ -0,0 +1,34 @@
+package db.service;
+
+import db.database.Series;
+
+import java.util.Arrays;
+
+/**
+ * Resolves the raw series key of a line-protocol line, the bytes before its value, to the series it
+ * names. A hit compares bytes only, so a known series is written to without decoding its metric
+ * name and labels into Strings. The cache is direct-mapped and lossy: a colliding key replaces the
+ * entry, which is then just rebuilt from the registry on its next miss. Series are never removed
+ * from the registry, so a cached entry cannot go stale.
+ */
+class SeriesKeyCache {
+    private static final int SLOTS = 1 << 16;
+
+    private final Entry[] entries = new Entry[SLOTS];
+
+    // Immutable, so racing readers either see a whole entry or none
+    private record Entry(byte[] key, int hash, Series series) {
+    }
+
+    Series get(byte[] bytes, int from, int to, int hash) {
+        var entry = entries[hash & (SLOTS - 1)];
+        if (entry != null && entry.hash == hash && Arrays.equals(entry.key, 0, entry.key.length, bytes, from, to)) {
+            return entry.series;
+        }
+        return null;
+    }
+
+    void put(byte[] bytes, int from, int to, int hash, Series series) {
+        entries[hash & (SLOTS - 1)] = new Entry(Arrays.copyOfRange(bytes, from, to), hash, series);
+    }
+}
@@ -1,5 +1,12 @@
 package db.service;
 
+import db.database.InMemoryTSDB;
+import db.database.IngestQueue;
+import db.database.QueryCache;
+import db.model.IngestStats;
+import db.model.QueryCacheStats;
+import db.model.StorageStats;
+import lombok.RequiredArgsConstructor;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -7,9 +14,36 @@ import reactor.core.publisher.Mono;
 
 @RestController
 @RequestMapping("/server")
+@RequiredArgsConstructor
 public class ServiceController {
+    private final InMemoryTSDB inMemoryTSDB;
+    private final QueryCache queryCache;
+    private final IngestQueue ingestQueue;
+    private final StatsExporter statsExporter;
+
     @GetMapping("/ping")
     public Mono<String> ping() {
         return Mono.just("pong");
     }
+
+    @GetMapping("/storage")
+    public Mono<StorageStats> storage() {
+        return Mono.just(inMemoryTSDB.storageStats());
+    }
+
+    @GetMapping("/query-cache")
+    public Mono<QueryCacheStats> queryCacheStats() {
+        return Mono.just(queryCache.stats());
+    }
+
+    @GetMapping("/ingest")
+    public Mono<IngestStats> ingestStats() {
+        return Mono.just(ingestQueue.stats());
+    }
+
+    // The database's own counters and latency summaries, for Prometheus to scrape
+    @GetMapping(value = "/stats", produces = PrometheusText.CONTENT_TYPE)
+    public Mono<String> stats() {
+        return Mono.fromSupplier(statsExporter::export);
+    }
 }
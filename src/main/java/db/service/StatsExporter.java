@@ -0,0 +1,85 @@
+package db.service;
+
+import db.database.ColdStorage;
+import db.database.InMemoryTSDB;
+import db.database.IngestQueue;
+import db.database.QueryCache;
+import db.database.ShardedWriteAheadLog;
+import db.database.TSDBMetrics;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Collects the database's own metrics into the Prometheus text format served by /server/stats
+@Service
+@RequiredArgsConstructor
+class StatsExporter {
+    private final TSDBMetrics metrics;
+    private final InMemoryTSDB tsdb;
+    private final ShardedWriteAheadLog writeAheadLog;
+    private final IngestQueue ingestQueue;
+    private final QueryCache queryCache;
+    private final ColdStorage coldStorage;
+
+    String export() {
+        var text = new PrometheusText();
+        var ingest = ingestQueue.stats();
+        var cache = queryCache.stats();
+
+        text.gauge("tsdb_series", "Series stored", tsdb.seriesCount())
+            .gauge("tsdb_latest_sample_timestamp_seconds", "Timestamp of the latest sample written", tsdb.getLatestTimestamp() / 1e3);
+
+        text.summary("tsdb_request_seconds", "Time to answer a request", "endpoint", Map.of(
+                "put", metrics.getPutRequests().snapshot(),
+                "write", metrics.getWriteRequests().snapshot(),
+                "query", metrics.getQueries().snapshot(),
+                "query_stream", metrics.getStreamQueries().snapshot(),
+                "aggregate", metrics.getAggregations().snapshot()))
+            .counter("tsdb_query_cache_requests_total", "Queries answered through the query cache", "result", Map.of(
+                "hit", cache.hits(),
+                "partial_hit", cache.partialHits(),
+                "miss", cache.misses()))
+            .counter("tsdb_query_cache_evictions_total", "Queries evicted from the query cache", cache.evictions())
+            .gauge("tsdb_query_cache_points", "Points held by the query cache", cache.cachedPoints());
+
+        text.counter("tsdb_ingest_batches_total", "Batches offered to the ingest queue", "result", Map.of(
+                "accepted", ingest.acceptedBatches(),
+                "rejected", ingest.rejectedBatches()))
+            .counter("tsdb_ingest_samples_written_total", "Samples written by the ingest writers", ingest.writtenSamples())
+            .gauge("tsdb_ingest_queued_batches", "Batches waiting for an ingest writer", ingest.queuedBatches())
+            .gauge("tsdb_ingest_pending_samples", "Samples accepted but not written yet", ingest.pendingSamples())
+            .summary("tsdb_ingest_wait_seconds", "Time a batch waits in the ingest queue", metrics.getIngestWait().snapshot())
+            .summary("tsdb_ingest_write_seconds", "Time to write a batch, WAL append included", metrics.getIngestWrite().snapshot());
+
+        Map<String, Integer> pending = new LinkedHashMap<>();
+        var shards = writeAheadLog.shards();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            pending.put(String.valueOf(shard), shards.get(shard).pendingEntries());
+        }
+        text.gauge("tsdb_wal_pending_entries", "Entries appended to the WAL buffer but not written yet", "shard", pending)
+            .counter("tsdb_wal_entries_total", "Entries written to WAL segments", metrics.getWalEntries().sum())
+            .counter("tsdb_wal_backpressure_total", "Appends rejected because the WAL buffer stayed full", metrics.getWalBackpressure().sum())
+            .summary("tsdb_wal_flush_seconds", "Time to write and flush a group commit", metrics.getWalFlush().snapshot())
+            .summary("tsdb_wal_fsync_seconds", "Time to fsync a WAL segment", metrics.getWalFsync().snapshot())
+            .summary("tsdb_wal_rotate_seconds", "Time to close a full WAL segment and open the next", metrics.getWalRotate().snapshot());
+
+        text.summary("tsdb_snapshot_seconds", "Time to write a snapshot of a shard", "kind", Map.of(
+                "full", metrics.getFullSnapshots().snapshot(),
+                "delta", metrics.getDeltaSnapshots().snapshot()))
+            .counter("tsdb_snapshot_failures_total", "Shard snapshots that could not be written", metrics.getSnapshotFailures().sum())
+            .gauge("tsdb_replay_entries", "WAL entries replayed at startup", metrics.getReplayedEntries().get())
+            .gauge("tsdb_replay_seconds", "Time the WAL replay took at startup", metrics.getReplayNanos().get() / 1e9);
+
+        text.summary("tsdb_retention_sweep_seconds", "Time of a retention sweep tick", metrics.getRetentionSweeps().snapshot())
+            .counter("tsdb_retention_swept_series_total", "Series visited by the retention sweeper", metrics.getSweptSeries().sum())
+            .summary("tsdb_rollup_seconds", "Time of a rollup run over every series", metrics.getRollups().snapshot());
+
+        text.summary("tsdb_cold_spill_seconds", "Time of a run moving chunks to the cold tier", metrics.getColdSpills().snapshot())
+            .counter("tsdb_cold_chunks_total", "Chunks moved from the heap to block files", metrics.getColdChunks().sum())
+            .gauge("tsdb_cold_block_bytes", "Bytes of the block files in use", coldStorage.blockBytes());
+
+        return text.toString();
+    }
+}